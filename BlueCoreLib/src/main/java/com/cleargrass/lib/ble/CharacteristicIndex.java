@@ -0,0 +1,195 @@
+package com.cleargrass.lib.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 服务发现完成后建立的特征值索引。
+ *
+ * 以 (service UUID, characteristic UUID) 的 msb/lsb 四个 long 作为 key，开放寻址保存在数组中，
+ * 每次读写、订阅查找特征值时不需要遍历服务列表，也不会创建新对象。
+ * 同一个 UUID 的服务只索引第一个，与 BluetoothGatt.getService(UUID) 一致；
+ * 同一个服务中 UUID 重复的特征值按属性分别记录第一个满足条件的。
+ *
+ * qpblue 和 TelinkOtaLib 的 Peripheral 共用。
+ */
+public final class CharacteristicIndex {
+
+    public static final int ROLE_ANY = 0;
+    public static final int ROLE_READ = 1;
+    public static final int ROLE_WRITE = 2;
+    public static final int ROLE_WRITE_NO_RESPONSE = 3;
+    // 优先 NOTIFY，没有时使用 INDICATE
+    public static final int ROLE_NOTIFY = 4;
+    private static final int ROLE_COUNT = 5;
+
+    private final long[] characteristicKeys;
+    private final BluetoothGattCharacteristic[] characteristics;
+    private final int characteristicMask;
+
+    private final long[] serviceKeys;
+    private final BluetoothGattService[] services;
+    private final int serviceMask;
+
+    private CharacteristicIndex(int serviceCount, int characteristicCount) {
+        int serviceSlots = tableSize(serviceCount);
+        serviceMask = serviceSlots - 1;
+        serviceKeys = new long[serviceSlots * 2];
+        services = new BluetoothGattService[serviceSlots];
+
+        int characteristicSlots = tableSize(characteristicCount);
+        characteristicMask = characteristicSlots - 1;
+        characteristicKeys = new long[characteristicSlots * 4];
+        characteristics = new BluetoothGattCharacteristic[characteristicSlots * ROLE_COUNT];
+    }
+
+    public static CharacteristicIndex build(List<BluetoothGattService> serviceList) {
+        int characteristicCount = 0;
+        for (BluetoothGattService service : serviceList) {
+            characteristicCount += service.getCharacteristics().size();
+        }
+        CharacteristicIndex index = new CharacteristicIndex(serviceList.size(), characteristicCount);
+        for (BluetoothGattService service : serviceList) {
+            if (index.addService(service)) {
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    index.addCharacteristic(service.getUuid(), characteristic);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 负载不超过 1/2 的 2 的幂
+     */
+    private static int tableSize(int count) {
+        int size = 4;
+        while (size < count * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int hash(long a, long b) {
+        long h = a * 0x9E3779B97F4A7C15L ^ b;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private static int hash(long a, long b, long c, long d) {
+        return hash(hash(a, b) * 31L + c, d);
+    }
+
+    private boolean addService(BluetoothGattService service) {
+        UUID uuid = service.getUuid();
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        int slot = hash(msb, lsb) & serviceMask;
+        while (services[slot] != null) {
+            if (serviceKeys[slot * 2] == msb && serviceKeys[slot * 2 + 1] == lsb) {
+                // 重复的服务 UUID，保留第一个
+                return false;
+            }
+            slot = (slot + 1) & serviceMask;
+        }
+        serviceKeys[slot * 2] = msb;
+        serviceKeys[slot * 2 + 1] = lsb;
+        services[slot] = service;
+        return true;
+    }
+
+    private void addCharacteristic(UUID serviceUUID, BluetoothGattCharacteristic characteristic) {
+        int slot = characteristicSlot(serviceUUID, characteristic.getUuid(), true);
+        int base = slot * ROLE_COUNT;
+        int properties = characteristic.getProperties();
+        if (characteristics[base + ROLE_ANY] == null) {
+            characteristics[base + ROLE_ANY] = characteristic;
+        }
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0 && characteristics[base + ROLE_READ] == null) {
+            characteristics[base + ROLE_READ] = characteristic;
+        }
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0 && characteristics[base + ROLE_WRITE] == null) {
+            characteristics[base + ROLE_WRITE] = characteristic;
+        }
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0 && characteristics[base + ROLE_WRITE_NO_RESPONSE] == null) {
+            characteristics[base + ROLE_WRITE_NO_RESPONSE] = characteristic;
+        }
+        BluetoothGattCharacteristic notify = characteristics[base + ROLE_NOTIFY];
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            if (notify == null || (notify.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+                characteristics[base + ROLE_NOTIFY] = characteristic;
+            }
+        } else if ((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0 && notify == null) {
+            characteristics[base + ROLE_NOTIFY] = characteristic;
+        }
+    }
+
+    /**
+     * @return key 所在的位置；不存在时 insert 为 true 则新建，否则返回 -1
+     */
+    private int characteristicSlot(UUID serviceUUID, UUID characteristicUUID, boolean insert) {
+        long serviceMsb = serviceUUID.getMostSignificantBits();
+        long serviceLsb = serviceUUID.getLeastSignificantBits();
+        long msb = characteristicUUID.getMostSignificantBits();
+        long lsb = characteristicUUID.getLeastSignificantBits();
+        int slot = hash(serviceMsb, serviceLsb, msb, lsb) & characteristicMask;
+        while (characteristics[slot * ROLE_COUNT + ROLE_ANY] != null) {
+            int k = slot * 4;
+            if (characteristicKeys[k] == serviceMsb && characteristicKeys[k + 1] == serviceLsb
+                    && characteristicKeys[k + 2] == msb && characteristicKeys[k + 3] == lsb) {
+                return slot;
+            }
+            slot = (slot + 1) & characteristicMask;
+        }
+        if (!insert) {
+            return -1;
+        }
+        int k = slot * 4;
+        characteristicKeys[k] = serviceMsb;
+        characteristicKeys[k + 1] = serviceLsb;
+        characteristicKeys[k + 2] = msb;
+        characteristicKeys[k + 3] = lsb;
+        return slot;
+    }
+
+    public BluetoothGattService findService(UUID serviceUUID) {
+        long msb = serviceUUID.getMostSignificantBits();
+        long lsb = serviceUUID.getLeastSignificantBits();
+        int slot = hash(msb, lsb) & serviceMask;
+        while (services[slot] != null) {
+            if (serviceKeys[slot * 2] == msb && serviceKeys[slot * 2 + 1] == lsb) {
+                return services[slot];
+            }
+            slot = (slot + 1) & serviceMask;
+        }
+        return null;
+    }
+
+    /**
+     * @return 具有 role 对应属性的特征值，没有时返回 null
+     */
+    public BluetoothGattCharacteristic find(UUID serviceUUID, UUID characteristicUUID, int role) {
+        int slot = characteristicSlot(serviceUUID, characteristicUUID, false);
+        return slot < 0 ? null : characteristics[slot * ROLE_COUNT + role];
+    }
+
+    /**
+     * @return 具有 role 对应属性的特征值，没有时退而使用任意一个 UUID 相同的特征值
+     */
+    public BluetoothGattCharacteristic findOrAny(UUID serviceUUID, UUID characteristicUUID, int role) {
+        int slot = characteristicSlot(serviceUUID, characteristicUUID, false);
+        if (slot < 0) {
+            return null;
+        }
+        BluetoothGattCharacteristic characteristic = characteristics[slot * ROLE_COUNT + role];
+        return characteristic != null ? characteristic : characteristics[slot * ROLE_COUNT + ROLE_ANY];
+    }
+
+    public static int writeRole(int writeType) {
+        return writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? ROLE_WRITE_NO_RESPONSE : ROLE_WRITE;
+    }
+}
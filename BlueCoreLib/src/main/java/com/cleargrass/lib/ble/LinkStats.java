@@ -0,0 +1,135 @@
+package com.cleargrass.lib.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+/**
+ * 一次连接的链路参数和吞吐量统计，连接建立时清零。
+ *
+ * 吞吐量只统计传输过程中的时间：相邻两包的间隔超过 {@link #IDLE_GAP_MILLIS} 时视为空闲，
+ * 空闲时间不计入。每段连续传输的第一包没有可计的时间，它的字节也不计入吞吐量（仍计入总字节数），
+ * 这样偶尔的单条指令既不会把平均值拉低，也不会把它抬高。
+ *
+ * qpblue 和 TelinkOtaLib 的 Peripheral 共用。对外只提供读取，统计由 Peripheral 通过 {@link LinkStatsRecorder} 更新。
+ */
+public final class LinkStats {
+
+    public static final long IDLE_GAP_MILLIS = 500;
+    private static final long IDLE_GAP_NANOS = IDLE_GAP_MILLIS * 1000000L;
+
+    private int txPhy = BluetoothDevice.PHY_LE_1M;
+    private int rxPhy = BluetoothDevice.PHY_LE_1M;
+    // 连接建立前和 reset 后的 MTU
+    private final int defaultMtu;
+    private int mtu;
+
+    private long bytesSent;
+    // 与 sendNanos 对应的字节数，不含每段传输的第一包
+    private long timedBytesSent;
+    private long sendNanos;
+    private long lastSentAt;
+
+    private long bytesReceived;
+    private long timedBytesReceived;
+    private long receiveNanos;
+    private long lastReceivedAt;
+
+    /**
+     * @param defaultMtu 还没有协商 MTU 时的值，一般为 23
+     */
+    LinkStats(int defaultMtu) {
+        this.defaultMtu = defaultMtu;
+        this.mtu = defaultMtu;
+    }
+
+    synchronized void reset() {
+        txPhy = BluetoothDevice.PHY_LE_1M;
+        rxPhy = BluetoothDevice.PHY_LE_1M;
+        mtu = defaultMtu;
+        bytesSent = 0;
+        timedBytesSent = 0;
+        sendNanos = 0;
+        lastSentAt = 0;
+        bytesReceived = 0;
+        timedBytesReceived = 0;
+        receiveNanos = 0;
+        lastReceivedAt = 0;
+    }
+
+    synchronized void setPhy(int txPhy, int rxPhy) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    synchronized void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    synchronized void recordSent(int bytes) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (lastSentAt != 0 && now - lastSentAt < IDLE_GAP_NANOS) {
+            sendNanos += now - lastSentAt;
+            timedBytesSent += bytes;
+        }
+        lastSentAt = now;
+        bytesSent += bytes;
+    }
+
+    synchronized void recordReceived(int bytes) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (lastReceivedAt != 0 && now - lastReceivedAt < IDLE_GAP_NANOS) {
+            receiveNanos += now - lastReceivedAt;
+            timedBytesReceived += bytes;
+        }
+        lastReceivedAt = now;
+        bytesReceived += bytes;
+    }
+
+    /**
+     * @return BluetoothDevice.PHY_LE_1M / PHY_LE_2M / PHY_LE_CODED
+     */
+    public synchronized int getTxPhy() {
+        return txPhy;
+    }
+
+    public synchronized int getRxPhy() {
+        return rxPhy;
+    }
+
+    public synchronized boolean isLe2MPhy() {
+        return txPhy == BluetoothDevice.PHY_LE_2M && rxPhy == BluetoothDevice.PHY_LE_2M;
+    }
+
+    public synchronized int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return 已写入的有效数据字节数（不含 ATT 头）
+     */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return 读取和通知收到的有效数据字节数
+     */
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized float getSendBytesPerSecond() {
+        return sendNanos > 0 ? timedBytesSent * 1e9f / sendNanos : 0;
+    }
+
+    public synchronized float getReceiveBytesPerSecond() {
+        return receiveNanos > 0 ? timedBytesReceived * 1e9f / receiveNanos : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LinkStats{txPhy=" + txPhy + ", rxPhy=" + rxPhy + ", mtu=" + mtu
+                + ", sent=" + bytesSent + "B @" + (int) getSendBytesPerSecond() + "B/s"
+                + ", received=" + bytesReceived + "B @" + (int) getReceiveBytesPerSecond() + "B/s}";
+    }
+}
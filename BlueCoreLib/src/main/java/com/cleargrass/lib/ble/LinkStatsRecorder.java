@@ -0,0 +1,48 @@
+package com.cleargrass.lib.ble;
+
+/**
+ * 更新 {@link LinkStats} 的入口，由 Peripheral 私有持有。
+ *
+ * 交给使用者的 LinkStats 只有 getter，无法修改连接的统计。
+ */
+public final class LinkStatsRecorder {
+
+    private final LinkStats stats;
+
+    /**
+     * @param defaultMtu 还没有协商 MTU 时的值，一般为 23
+     */
+    public LinkStatsRecorder(int defaultMtu) {
+        this.stats = new LinkStats(defaultMtu);
+    }
+
+    /**
+     * @return 只读的统计，随本对象的更新变化
+     */
+    public LinkStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 连接建立时调用
+     */
+    public void reset() {
+        stats.reset();
+    }
+
+    public void setPhy(int txPhy, int rxPhy) {
+        stats.setPhy(txPhy, rxPhy);
+    }
+
+    public void setMtu(int mtu) {
+        stats.setMtu(mtu);
+    }
+
+    public void recordSent(int bytes) {
+        stats.recordSent(bytes);
+    }
+
+    public void recordReceived(int bytes) {
+        stats.recordReceived(bytes);
+    }
+}
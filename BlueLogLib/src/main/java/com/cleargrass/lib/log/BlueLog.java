@@ -0,0 +1,161 @@
+package com.cleargrass.lib.log;
+
+import android.util.Log;
+
+/**
+ * qpblue、TelinkOtaLib、TiOtaLib 共用的日志入口。
+ *
+ * 两级过滤：
+ * <ul>
+ *     <li>编译期：{@link BuildConfig#LOG_LEVEL}，{@link #V}/{@link #D}/{@link #I} 是常量，
+ *     写成 {@code if (BlueLog.D) {...}} 的代码块在 release 中会被编译器直接去掉</li>
+ *     <li>运行期：{@link #setLevel(int)}</li>
+ * </ul>
+ * 需要拼接或转换 hex 的日志使用 {@link Message} 或 (prefix, bytes) 重载，
+ * 只有日志确实会输出时才会生成字符串。
+ */
+public final class BlueLog {
+
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Log.ASSERT + 1;
+
+    /**
+     * 编译期日志级别
+     */
+    public static final int COMPILE_LEVEL = BuildConfig.LOG_LEVEL;
+
+    public static final boolean V = COMPILE_LEVEL <= VERBOSE;
+    public static final boolean D = COMPILE_LEVEL <= DEBUG;
+    public static final boolean I = COMPILE_LEVEL <= INFO;
+    public static final boolean W = COMPILE_LEVEL <= WARN;
+    public static final boolean E = COMPILE_LEVEL <= ERROR;
+
+    /**
+     * 延迟生成的日志内容，只有日志会输出时才调用。
+     */
+    public interface Message {
+        String get();
+    }
+
+    private static volatile int level = COMPILE_LEVEL;
+    private static volatile LogSink sink = LogcatSink.INSTANCE;
+
+    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+
+    private BlueLog() {
+    }
+
+    /**
+     * 设置运行期日志级别，不能低于编译期级别。
+     */
+    public static void setLevel(int level) {
+        BlueLog.level = level;
+    }
+
+    public static int getLevel() {
+        return Math.max(level, COMPILE_LEVEL);
+    }
+
+    /**
+     * 设置日志输出位置，默认输出到 logcat。
+     * 可以使用 {@link RingBufferSink} 把写 logcat 的工作移到后台线程。
+     */
+    public static void setSink(LogSink sink) {
+        BlueLog.sink = sink == null ? LogcatSink.INSTANCE : sink;
+    }
+
+    public static LogSink getSink() {
+        return sink;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= COMPILE_LEVEL && priority >= level;
+    }
+
+    public static void println(int priority, String tag, String msg, Throwable tr) {
+        if (isLoggable(priority)) {
+            sink.println(priority, tag, msg, tr);
+        }
+    }
+
+    public static void v(String tag, String msg) {
+        if (V) println(VERBOSE, tag, msg, null);
+    }
+
+    public static void v(String tag, Message msg) {
+        if (V && isLoggable(VERBOSE)) sink.println(VERBOSE, tag, msg.get(), null);
+    }
+
+    public static void v(String tag, String prefix, byte[] bytes) {
+        if (V && isLoggable(VERBOSE)) sink.println(VERBOSE, tag, prefix + toHex(bytes), null);
+    }
+
+    public static void d(String tag, String msg) {
+        if (D) println(DEBUG, tag, msg, null);
+    }
+
+    public static void d(String tag, String msg, Throwable tr) {
+        if (D) println(DEBUG, tag, msg, tr);
+    }
+
+    public static void d(String tag, Message msg) {
+        if (D && isLoggable(DEBUG)) sink.println(DEBUG, tag, msg.get(), null);
+    }
+
+    public static void d(String tag, String prefix, byte[] bytes) {
+        if (D && isLoggable(DEBUG)) sink.println(DEBUG, tag, prefix + toHex(bytes), null);
+    }
+
+    public static void i(String tag, String msg) {
+        if (I) println(INFO, tag, msg, null);
+    }
+
+    public static void i(String tag, String msg, Throwable tr) {
+        if (I) println(INFO, tag, msg, tr);
+    }
+
+    public static void i(String tag, Message msg) {
+        if (I && isLoggable(INFO)) sink.println(INFO, tag, msg.get(), null);
+    }
+
+    public static void w(String tag, String msg) {
+        if (W) println(WARN, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        if (W) println(WARN, tag, msg, tr);
+    }
+
+    public static void w(String tag, Message msg) {
+        if (W && isLoggable(WARN)) sink.println(WARN, tag, msg.get(), null);
+    }
+
+    public static void e(String tag, String msg) {
+        if (E) println(ERROR, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        if (E) println(ERROR, tag, msg, tr);
+    }
+
+    public static void e(String tag, Message msg) {
+        if (E && isLoggable(ERROR)) sink.println(ERROR, tag, msg.get(), null);
+    }
+
+    public static String toHex(byte[] bytes) {
+        if (bytes == null) {
+            return "null";
+        }
+        char[] hexChars = new char[bytes.length * 2];
+        for (int j = 0; j < bytes.length; j++) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+}
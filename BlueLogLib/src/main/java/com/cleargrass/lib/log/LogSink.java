@@ -0,0 +1,11 @@
+package com.cleargrass.lib.log;
+
+/**
+ * 日志输出位置。
+ */
+public interface LogSink {
+    /**
+     * @param tr 可以为 null
+     */
+    void println(int priority, String tag, String msg, Throwable tr);
+}
@@ -0,0 +1,22 @@
+package com.cleargrass.lib.log;
+
+import android.util.Log;
+
+/**
+ * 直接写入 logcat。
+ */
+public final class LogcatSink implements LogSink {
+
+    public static final LogcatSink INSTANCE = new LogcatSink();
+
+    private LogcatSink() {
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        if (tr != null) {
+            msg = msg + '\n' + Log.getStackTraceString(tr);
+        }
+        Log.println(priority, tag, msg);
+    }
+}
@@ -0,0 +1,134 @@
+package com.cleargrass.lib.log;
+
+/**
+ * 异步日志输出。
+ *
+ * 调用线程只把日志放进固定大小的环形缓冲区，由后台线程写入 delegate（默认 logcat）。
+ * 缓冲区满时覆盖最旧的日志并计数，不会阻塞调用线程，适合 OTA 等逐包打印日志的场景。
+ */
+public final class RingBufferSink implements LogSink {
+
+    private final LogSink delegate;
+    private final int capacity;
+    private final int[] priorities;
+    private final String[] tags;
+    private final String[] messages;
+    private final Throwable[] throwables;
+
+    private final Object lock = new Object();
+    // 下一个读取位置和缓冲区中的日志数量
+    private int head;
+    private int size;
+    private long dropped;
+    // 已经在日志中报告过的丢弃数量
+    private long reportedDropped;
+    private boolean closed;
+
+    private final Thread worker;
+
+    public RingBufferSink(int capacity) {
+        this(capacity, LogcatSink.INSTANCE);
+    }
+
+    public RingBufferSink(int capacity, LogSink delegate) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+        }
+        this.capacity = capacity;
+        this.delegate = delegate;
+        this.priorities = new int[capacity];
+        this.tags = new String[capacity];
+        this.messages = new String[capacity];
+        this.throwables = new Throwable[capacity];
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "BlueLog-writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            if (size == capacity) {
+                // 覆盖最旧的一条
+                head = (head + 1) % capacity;
+                size--;
+                dropped++;
+            }
+            int index = (head + size) % capacity;
+            priorities[index] = priority;
+            tags[index] = tag;
+            messages[index] = msg;
+            throwables[index] = tr;
+            size++;
+            if (size == 1) {
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * @return 因缓冲区已满而被丢弃的日志数量
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * 停止后台线程，缓冲区中剩余的日志会先写完。
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notify();
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            int priority;
+            String tag;
+            String msg;
+            Throwable tr;
+            long droppedSinceLast = 0;
+            synchronized (lock) {
+                while (size == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (size == 0) {
+                    return;
+                }
+                priority = priorities[head];
+                tag = tags[head];
+                msg = messages[head];
+                tr = throwables[head];
+                tags[head] = null;
+                messages[head] = null;
+                throwables[head] = null;
+                head = (head + 1) % capacity;
+                size--;
+                if (dropped > reportedDropped) {
+                    droppedSinceLast = dropped - reportedDropped;
+                    reportedDropped = dropped;
+                }
+            }
+            if (droppedSinceLast > 0) {
+                delegate.println(BlueLog.WARN, "BlueLog", droppedSinceLast + " log lines dropped", null);
+            }
+            delegate.println(priority, tag, msg, tr);
+        }
+    }
+}
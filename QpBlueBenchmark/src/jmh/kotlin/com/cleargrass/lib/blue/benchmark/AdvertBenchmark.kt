@@ -0,0 +1,60 @@
+package com.cleargrass.lib.blue.benchmark
+
+import com.cleargrass.lib.blue.core.UUIDHelper
+import com.cleargrass.lib.blue.core.UUIDs
+import com.cleargrass.lib.blue.data.FrameControl
+import com.cleargrass.lib.blue.data.QingpingAdvert
+import com.cleargrass.lib.blue.data.ScanResultParsed
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.util.UUID
+
+/**
+ * 每条广播都会执行的解析，以及日志中常用的 UUID 显示。
+ */
+@State(Scope.Benchmark)
+open class AdvertBenchmark {
+    // flags | fdcd service data: frame control 0x88，产品 0x0C，MAC 倒序，温湿度 + 电量
+    private val scanRecord = byteArrayOf(
+        0x02, 0x01, 0x06,
+        0x14, 0x16, 0xCD.toByte(), 0xFD.toByte(),
+        0x88.toByte(), 0x0C, 0x66, 0x55, 0x44, 0x33, 0x22, 0x11,
+        0x01, 0x04, 0xF5.toByte(), 0x00, 0x58, 0x02,
+        0x02, 0x01, 0x5A
+    )
+    private val advert = QingpingAdvert()
+    private val uuid: UUID = UUIDs.COMMON_READ
+    private val longUuid: UUID = UUIDs.SERVICE
+
+    @Benchmark
+    fun scanResultParsed(): ScanResultParsed {
+        return ScanResultParsed(scanRecord)
+    }
+
+    @Benchmark
+    fun frameControl(): FrameControl {
+        return FrameControl(scanRecord[7])
+    }
+
+    @Benchmark
+    fun decodeAdvert(): Float {
+        advert.decode(scanRecord)
+        return advert.temperature
+    }
+
+    @Benchmark
+    fun uuidToString(): String {
+        return UUIDHelper.uuidToString(uuid)
+    }
+
+    @Benchmark
+    fun simpler(): String {
+        return UUIDHelper.simpler(uuid)
+    }
+
+    @Benchmark
+    fun simplerLong(): String {
+        return UUIDHelper.simpler(longUuid)
+    }
+}
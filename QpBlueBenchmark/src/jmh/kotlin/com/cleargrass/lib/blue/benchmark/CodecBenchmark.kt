@@ -0,0 +1,98 @@
+package com.cleargrass.lib.blue.benchmark
+
+import com.cleargrass.lib.blue.QpUtils
+import com.cleargrass.lib.blue.data.Protocol
+import com.cleargrass.lib.blue.data.display
+import com.cleargrass.lib.blue.data.number
+import com.cleargrass.lib.blue.protocal.QpCommand
+import com.cleargrass.lib.blue.protocal.QpDecoder
+import com.cleargrass.lib.blue.protocal.QpMessage
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.nio.ByteBuffer
+
+/**
+ * 每条指令和通知都会经过的协议打包、解析和显示。
+ */
+@State(Scope.Benchmark)
+open class CodecBenchmark {
+    // 绑定指令的 token，和 DeviceActivity 中输入的格式一致
+    private val tokenHex = "0x11-22-33-44-55-66-77-88-99-AA-BB-CC-DD-EE-FF-00"
+    private lateinit var token: ByteArray
+    // 04FF010000：绑定结果
+    private val resultResponse = byteArrayOf(0x04, -1, 0x01, 0x00, 0x00)
+    // 一页 wifi 列表：长度 | 07 | 共 3 页 | 第 1 页 | 数据
+    private lateinit var pageResponse: ByteArray
+    // 拼接后的 wifi 列表：FF | 07 | 数据
+    private lateinit var wifiListResponse: ByteArray
+    private lateinit var bind: QpCommand.Bind
+    private val frameBuffer = ByteBuffer.allocate(64)
+    private val decoder = QpDecoder()
+
+    @Setup
+    fun setup() {
+        token = QpUtils.hexToBytes(tokenHex)
+        val data = "\"Qingping AP\",4,-60,".toByteArray()
+        pageResponse = byteArrayOf((data.size + 3).toByte(), 0x07, 0x03, 0x01) + data
+        wifiListResponse = byteArrayOf(-1, 0x07) + data + data + data
+        bind = QpCommand.Bind(token)
+    }
+
+    @Benchmark
+    fun hexToBytes(): ByteArray {
+        return QpUtils.hexToBytes(tokenHex)
+    }
+
+    @Benchmark
+    fun wrapProtocol(): ByteArray {
+        return QpUtils.wrapProtocol(0x01, token)
+    }
+
+    @Benchmark
+    fun encodeBind(): ByteArray {
+        return bind.encode()
+    }
+
+    @Benchmark
+    fun encodeBindToBuffer(): Int {
+        frameBuffer.clear()
+        return bind.encodeTo(frameBuffer)
+    }
+
+    @Benchmark
+    fun encodeConnectWifi(): ByteArray {
+        return QpCommand.ConnectWifi("Qingping AP", "12345678").encode()
+    }
+
+    @Benchmark
+    fun decodeResult(): Boolean {
+        return decoder.decode(resultResponse)?.isSuccess == true
+    }
+
+    @Benchmark
+    fun decodeWifiList(): QpMessage? {
+        return decoder.decode(wifiListResponse)
+    }
+
+    @Benchmark
+    fun parseResult(): Protocol? {
+        return QpUtils.parseProtocol(resultResponse)
+    }
+
+    @Benchmark
+    fun parsePage(): Protocol? {
+        return QpUtils.parseProtocol(pageResponse, true)
+    }
+
+    @Benchmark
+    fun display(): String {
+        return token.display()
+    }
+
+    @Benchmark
+    fun number(): Int {
+        return resultResponse.number(3..4)
+    }
+}
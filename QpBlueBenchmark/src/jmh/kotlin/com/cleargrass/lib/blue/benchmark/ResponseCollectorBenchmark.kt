@@ -0,0 +1,38 @@
+package com.cleargrass.lib.blue.benchmark
+
+import com.cleargrass.lib.blue.ResponseCollector
+import com.cleargrass.lib.blue.core.UUIDs
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * 收集一次多页响应（wifi 列表 0x07）：每次调用设置 responder 并送入全部分页。
+ */
+@State(Scope.Benchmark)
+open class ResponseCollectorBenchmark {
+    @Param("1", "8", "30")
+    var pages: Int = 0
+
+    private val collector = ResponseCollector()
+    private lateinit var notifications: Array<ByteArray>
+
+    @Setup
+    fun setup() {
+        notifications = Array(pages) { index ->
+            val data = "\"Qingping AP ${index + 1}\",4,-60,".toByteArray()
+            byteArrayOf((data.size + 3).toByte(), 0x07, pages.toByte(), (index + 1).toByte()) + data
+        }
+    }
+
+    @Benchmark
+    fun collect(blackhole: Blackhole) {
+        collector.setResponder(0x07, UUIDs.MY_READ) { blackhole.consume(it) }
+        for (notification in notifications) {
+            collector.collect(UUIDs.MY_READ, notification)
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 
+import com.cleargrass.lib.log.BlueLog;
 import com.telink.ota.util.Arrays;
 import com.telink.ota.util.OtaLogger;
 
@@ -86,7 +87,9 @@ public class GattConnection extends Peripheral {
     @Override
     protected void onNotify(byte[] data, UUID serviceUUID, UUID characteristicUUID, Object tag) {
         super.onNotify(data, serviceUUID, characteristicUUID, tag);
-        OtaLogger.d("onNotify: " + Arrays.bytesToHexString(data, ":"));
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            OtaLogger.d("onNotify: " + Arrays.bytesToHexString(data, ":"));
+        }
         if (mConnectionCallback != null) {
             mConnectionCallback.onNotify(data, serviceUUID, characteristicUUID, this);
         }
@@ -101,9 +104,7 @@ public class GattConnection extends Peripheral {
     }
 
     public boolean isNotificationEnable(BluetoothGattCharacteristic characteristic) {
-        String key = generateHashKey(characteristic.getService().getUuid(),
-                characteristic);
-        return mNotificationCallbacks.containsKey(key);
+        return mNotificationCallbacks.containsKey(characteristic);
     }
 
     public void enableNotification(UUID serviceUUID, UUID characteristicUUID) {
@@ -114,7 +115,7 @@ public class GattConnection extends Peripheral {
         cmd.tag = TAG_GENERAL_ENABLE_NOTIFICATION;
         sendCommand(null, cmd);
 
-        BluetoothGattService service = getService(serviceUUID);
+        BluetoothGattService service = findService(serviceUUID);
         if (service == null) return;
         BluetoothGattCharacteristic gattCharacteristic = service.getCharacteristic(characteristicUUID);
         if (gattCharacteristic.getDescriptor(UuidInfo.CFG_DESCRIPTOR_UUID) != null) {
@@ -128,19 +129,6 @@ public class GattConnection extends Peripheral {
         }
     }
 
-    private BluetoothGattService getService(UUID serviceUUID) {
-        if (mServices != null) {
-            for (BluetoothGattService service : mServices
-            ) {
-                if (service.getUuid().equals(serviceUUID)) {
-                    return service;
-                }
-            }
-        }
-        return null;
-    }
-
-
     public interface ConnectionCallback {
         void onConnectionStateChange(int state, GattConnection gattConnection, int statusCode);
 
@@ -21,9 +21,11 @@
  *******************************************************************************************************/
 package com.telink.ota.ble;
 
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattService;
 import android.os.Handler;
 
+import com.cleargrass.lib.log.BlueLog;
 import com.telink.ota.foundation.Opcode;
 import com.telink.ota.foundation.OtaProtocol;
 import com.telink.ota.foundation.OtaSetting;
@@ -79,6 +81,8 @@ public class OtaController {
     private OtaProtocol otaProtocol;
 
     private boolean otaRunning = false;
+    // OTA 期间使用 CONNECTION_PRIORITY_HIGH，结束后恢复 BALANCED
+    private boolean highPriorityRequested = false;
     private final String LOG_TAG = "GATT-OTA";
 
     public static final int OTA_STATE_SUCCESS = 1;
@@ -126,6 +130,9 @@ public class OtaController {
         }
 
         otaRunning = true;
+        highPriorityRequested = mConnection.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        // 支持 2M 的手机上每个连接间隔可以发送更多数据包，不支持时保持 1M
+        mConnection.requestLe2MPhy();
         mTimeoutHandler.postDelayed(OTA_TIMEOUT_TASK, otaSetting.timeout);
         mConnection.enableNotification(getOtaService(), getOtaCharacteristic());
         onOtaStart();
@@ -140,7 +147,9 @@ public class OtaController {
         if (notificationData.length < 2) return;
 
         int opcode = (notificationData[0] & 0xFF) | ((notificationData[1] & 0xFF) << 8);
-        OtaLogger.d(String.format("ota notify: %04X", opcode));
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            OtaLogger.d(String.format("ota notify: %04X", opcode));
+        }
         if (opcode == Opcode.CMD_OTA_FW_VERSION_RSP.value) {
             // cancel rsp timer
             if (notificationData.length < 5) {
@@ -181,15 +190,7 @@ public class OtaController {
 
     private BluetoothGattService getService(UUID serviceUUID) {
         if (mConnection == null) return null;
-        if (mConnection.getServices() != null) {
-            for (BluetoothGattService service : mConnection.getServices()
-            ) {
-                if (service.getUuid().equals(serviceUUID)) {
-                    return service;
-                }
-            }
-        }
-        return null;
+        return mConnection.findService(serviceUUID);
     }
 
     public void stopOta(boolean disconnect) {
@@ -318,6 +319,12 @@ public class OtaController {
 
     private void resetOta() {
         otaRunning = false;
+        if (highPriorityRequested) {
+            highPriorityRequested = false;
+            if (mConnection != null && mConnection.isConnected()) {
+                mConnection.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            }
+        }
         this.mTimeoutHandler.removeCallbacksAndMessages(null);
         this.mOtaParser.clear();
     }
@@ -422,7 +429,9 @@ public class OtaController {
         }
         int sectionSize = 16 * readInterval;
         int sendTotal = this.mOtaParser.getNextPacketIndex() * otaSetting.pduLength;
-        OtaLogger.i("ota onCommandSampled byte length : " + sendTotal);
+        if (BlueLog.I && OtaLogger.isLoggable(BlueLog.INFO)) {
+            OtaLogger.i("ota onCommandSampled byte length : " + sendTotal);
+        }
         if (sendTotal > 0 && sendTotal % sectionSize == 0) {
             OtaLogger.i("onCommandSampled ota read packet " + mOtaParser.getNextPacketIndex());
             Command cmd = Command.newInstance();
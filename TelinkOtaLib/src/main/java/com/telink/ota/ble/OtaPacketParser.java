@@ -1,6 +1,7 @@
 package com.telink.ota.ble;
 
 
+import com.cleargrass.lib.log.BlueLog;
 import com.telink.ota.util.Arrays;
 import com.telink.ota.util.OtaLogger;
 
@@ -97,7 +98,10 @@ public class OtaPacketParser {
         this.fillIndex(packet, index);
         int crc = this.crc16(packet);
         this.fillCrc(packet, crc);
-        OtaLogger.d(String.format(Locale.getDefault(), "ota packet ---> index : %d  total : %d crc : %04X content : %s", index, this.total, crc, Arrays.bytesToHexString(packet, "")));
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            // 每个包都会执行，关闭日志时不做格式化
+            OtaLogger.d(String.format(Locale.getDefault(), "ota packet ---> index : %d  total : %d crc : %04X content : %s", index, this.total, crc, Arrays.bytesToHexString(packet, "")));
+        }
         return packet;
     }
 
@@ -111,7 +115,9 @@ public class OtaPacketParser {
         this.fillIndex(packet, index);
         int crc = this.crc16(packet);
         this.fillCrc(packet, crc);
-        OtaLogger.d("ota check packet ---> index : " + index + " crc : " + crc + " content : " + Arrays.bytesToHexString(packet, ""));
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            OtaLogger.d("ota check packet ---> index : " + index + " crc : " + crc + " content : " + Arrays.bytesToHexString(packet, ""));
+        }
         return packet;
     }
 
@@ -151,7 +157,9 @@ public class OtaPacketParser {
 
         float a = this.getNextPacketIndex();
         float b = this.total;
-        OtaLogger.d("invalidate progress: " + a + " -- " + b);
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            OtaLogger.d("invalidate progress: " + a + " -- " + b);
+        }
         int progress = (int) Math.floor((a / b * 100));
 
         if (progress == this.progress)
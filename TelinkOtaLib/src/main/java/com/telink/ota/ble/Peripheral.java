@@ -4,6 +4,7 @@
  */
 package com.telink.ota.ble;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -15,6 +16,10 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.cleargrass.lib.ble.CharacteristicIndex;
+import com.cleargrass.lib.ble.LinkStats;
+import com.cleargrass.lib.ble.LinkStatsRecorder;
+import com.cleargrass.lib.log.BlueLog;
 import com.telink.ota.util.Arrays;
 import com.telink.ota.util.OtaLogger;
 
@@ -43,7 +48,8 @@ public class Peripheral extends BluetoothGattCallback {
 
     protected final Queue<CommandContext> mInputCommandQueue = new ConcurrentLinkedQueue<>();
     protected final Queue<CommandContext> mOutputCommandQueue = new ConcurrentLinkedQueue<>();
-    protected final Map<String, CommandContext> mNotificationCallbacks = new ConcurrentHashMap<>();
+    // key 为特征值对象本身，同一连接内不变，断开时清空
+    protected final Map<BluetoothGattCharacteristic, CommandContext> mNotificationCallbacks = new ConcurrentHashMap<>();
 
     protected final Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
     protected final Handler mRssiUpdateHandler = new Handler(Looper.getMainLooper());
@@ -66,6 +72,11 @@ public class Peripheral extends BluetoothGattCallback {
     protected byte[] macBytes;
     protected int type;
     protected List<BluetoothGattService> mServices;
+    // 服务发现后建立，refreshCache / 断开连接时失效
+    protected volatile CharacteristicIndex mCharacteristicIndex;
+    // 本次连接协商的 PHY、MTU 和吞吐量
+    private final LinkStatsRecorder mLinkStatsRecorder = new LinkStatsRecorder(DEFAULT_MTU);
+    protected final LinkStats mLinkStats = mLinkStatsRecorder.getStats();
 
     protected Boolean processing = false;
 
@@ -81,7 +92,9 @@ public class Peripheral extends BluetoothGattCallback {
 
     private boolean serviceRefreshed = false;
 
-    private int mtu = 23;
+    private static final int DEFAULT_MTU = 23;
+
+    private int mtu = DEFAULT_MTU;
 
     private static final int MTU_SIZE_MAX = 517;
 
@@ -105,6 +118,11 @@ public class Peripheral extends BluetoothGattCallback {
         return mServices;
     }
 
+    public BluetoothGattService findService(UUID serviceUUID) {
+        CharacteristicIndex index = this.characteristicIndex();
+        return index == null ? null : index.findService(serviceUUID);
+    }
+
     public byte[] getMacBytes() {
 
         if (this.macBytes == null) {
@@ -167,7 +185,10 @@ public class Peripheral extends BluetoothGattCallback {
         if (this.mConnState.get() == CONN_STATE_IDLE) {
             OtaLogger.w("connect start");
             this.mConnState.set(CONN_STATE_CONNECTING);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                // 以 1M 建立连接，需要时通过 requestLe2MPhy 切换
+                this.gatt = this.device.connectGatt(mContext, false, this, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 this.gatt = this.device.connectGatt(mContext, false, this, BluetoothDevice.TRANSPORT_LE);
             } else {
                 this.gatt = this.device.connectGatt(mContext, false, this);
@@ -227,6 +248,7 @@ public class Peripheral extends BluetoothGattCallback {
         this.mInputCommandQueue.clear();
         this.mOutputCommandQueue.clear();
         this.mNotificationCallbacks.clear();
+        this.mCharacteristicIndex = null;
         this.mDelayHandler.removeCallbacksAndMessages(null);
     }
 
@@ -260,7 +282,49 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     public final boolean requestConnectionPriority(int connectionPriority) {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && this.gatt.requestConnectionPriority(connectionPriority);
+        BluetoothGatt gatt = this.gatt;
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt != null && gatt.requestConnectionPriority(connectionPriority);
+    }
+
+    /**
+     * 请求 PHY，结果在 {@link #onPhyChanged(int, int, int)} 中返回并记录到 {@link #getLinkStats()}。
+     *
+     * @return 请求是否已提交，Android 8.0 以下或未连接时返回 false
+     */
+    public final boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        BluetoothGatt gatt = this.gatt;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || gatt == null || !isConnected()) {
+            return false;
+        }
+        gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+        return true;
+    }
+
+    /**
+     * 请求 LE 2M PHY，手机不支持时返回 false，连接保持 1M。
+     */
+    public final boolean requestLe2MPhy() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null || !adapter.isLe2MPhySupported()) {
+            return false;
+        }
+        return setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+    }
+
+    public final boolean readPhy() {
+        BluetoothGatt gatt = this.gatt;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || gatt == null || !isConnected()) {
+            return false;
+        }
+        gatt.readPhy();
+        return true;
+    }
+
+    public LinkStats getLinkStats() {
+        return mLinkStats;
     }
 
     /********************************************************************************
@@ -295,6 +359,7 @@ public class Peripheral extends BluetoothGattCallback {
         } else {
             OtaLogger.d("Device#refreshCache#prepare");
         }
+        this.mCharacteristicIndex = null;
         try {
             BluetoothGatt localBluetoothGatt = gatt;
             Method localMethod = localBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
@@ -333,6 +398,9 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
+    protected void onPhyChanged(int txPhy, int rxPhy, int status) {
+    }
+
     protected void onRssiChanged() {
     }
 
@@ -365,7 +433,9 @@ public class Peripheral extends BluetoothGattCallback {
 
     private void processCommand() {
 
-        OtaLogger.d("processing : " + this.processing);
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            OtaLogger.d("processing : " + this.processing);
+        }
 
         CommandContext commandContext;
         Command.CommandType commandType;
@@ -403,7 +473,9 @@ public class Peripheral extends BluetoothGattCallback {
         Command command = commandContext.command;
         Command.CommandType commandType = command.type;
 
-        OtaLogger.d("processCommand : " + command.toString());
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            OtaLogger.d("processCommand : " + command.toString());
+        }
 
         switch (commandType) {
             case READ:
@@ -555,12 +627,11 @@ public class Peripheral extends BluetoothGattCallback {
         boolean success = true;
         String errorMsg = "";
 
-        BluetoothGattService service = this.gatt.getService(serviceUUID);
+        BluetoothGattService service = this.findService(serviceUUID);
 
         if (service != null) {
 
-            BluetoothGattCharacteristic characteristic = service
-                    .getCharacteristic(characteristicUUID);
+            BluetoothGattCharacteristic characteristic = this.findCharacteristic(serviceUUID, characteristicUUID);
 
             if (characteristic != null) {
 
@@ -597,12 +668,11 @@ public class Peripheral extends BluetoothGattCallback {
         boolean success = true;
         String errorMsg = "";
 
-        BluetoothGattService service = this.gatt.getService(serviceUUID);
+        BluetoothGattService service = this.findService(serviceUUID);
 
         if (service != null) {
 
-            BluetoothGattCharacteristic characteristic = service
-                    .getCharacteristic(characteristicUUID);
+            BluetoothGattCharacteristic characteristic = this.findCharacteristic(serviceUUID, characteristicUUID);
 
             if (characteristic != null) {
 
@@ -633,11 +703,11 @@ public class Peripheral extends BluetoothGattCallback {
         boolean success = true;
         String errorMsg = "";
 
-        BluetoothGattService service = this.gatt.getService(serviceUUID);
+        BluetoothGattService service = this.findService(serviceUUID);
 
         if (service != null) {
             BluetoothGattCharacteristic characteristic = this
-                    .findWritableCharacteristic(service, characteristicUUID,
+                    .findWritableCharacteristic(serviceUUID, characteristicUUID,
                             writeType);
             if (characteristic != null) {
 
@@ -672,10 +742,10 @@ public class Peripheral extends BluetoothGattCallback {
         boolean success = true;
         String errorMsg = "";
 
-        BluetoothGattService service = this.gatt.getService(serviceUUID);
+        BluetoothGattService service = this.findService(serviceUUID);
 
         if (service != null) {
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
+            BluetoothGattCharacteristic characteristic = this.findCharacteristic(serviceUUID, characteristicUUID);
             if (characteristic != null) {
                 BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUUID);
                 if (descriptor != null) {
@@ -730,12 +800,12 @@ public class Peripheral extends BluetoothGattCallback {
         boolean success = true;
         String errorMsg = "";
 
-        BluetoothGattService service = this.gatt.getService(serviceUUID);
+        BluetoothGattService service = this.findService(serviceUUID);
 
         if (service != null) {
 
             BluetoothGattCharacteristic characteristic = this
-                    .findNotifyCharacteristic(service, characteristicUUID);
+                    .findNotifyCharacteristic(serviceUUID, characteristicUUID);
 
             if (characteristic != null) {
 
@@ -744,9 +814,7 @@ public class Peripheral extends BluetoothGattCallback {
                     success = false;
                     errorMsg = "enable notification error";
                 } else {
-                    String key = this.generateHashKey(serviceUUID,
-                            characteristic);
-                    this.mNotificationCallbacks.put(key, commandContext);
+                    this.mNotificationCallbacks.put(characteristic, commandContext);
                 }
 
             } else {
@@ -774,17 +842,16 @@ public class Peripheral extends BluetoothGattCallback {
         boolean success = true;
         String errorMsg = "";
 
-        BluetoothGattService service = this.gatt.getService(serviceUUID);
+        BluetoothGattService service = this.findService(serviceUUID);
 
         if (service != null) {
 
             BluetoothGattCharacteristic characteristic = this
-                    .findNotifyCharacteristic(service, characteristicUUID);
+                    .findNotifyCharacteristic(serviceUUID, characteristicUUID);
 
             if (characteristic != null) {
 
-                String key = this.generateHashKey(serviceUUID, characteristic);
-                this.mNotificationCallbacks.remove(key);
+                this.mNotificationCallbacks.remove(characteristic);
 
                 if (!this.gatt.setCharacteristicNotification(characteristic,
                         false)) {
@@ -811,70 +878,38 @@ public class Peripheral extends BluetoothGattCallback {
         this.commandCompleted();
     }
 
-    private BluetoothGattCharacteristic findWritableCharacteristic(
-            BluetoothGattService service, UUID characteristicUUID, int writeType) {
-
-        BluetoothGattCharacteristic characteristic = null;
-
-        int writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE;
-
-        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-            writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
-        }
-
-        List<BluetoothGattCharacteristic> characteristics = service
-                .getCharacteristics();
-
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & writeProperty) != 0
-                    && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
+    private CharacteristicIndex characteristicIndex() {
+        CharacteristicIndex index = this.mCharacteristicIndex;
+        BluetoothGatt gatt = this.gatt;
+        if (index == null && gatt != null) {
+            List<BluetoothGattService> services = gatt.getServices();
+            if (services != null && !services.isEmpty()) {
+                index = CharacteristicIndex.build(services);
+                this.mCharacteristicIndex = index;
             }
         }
-
-        return characteristic;
+        return index;
     }
 
-    private BluetoothGattCharacteristic findNotifyCharacteristic(
-            BluetoothGattService service, UUID characteristicUUID) {
-
-        BluetoothGattCharacteristic characteristic = null;
-
-        List<BluetoothGattCharacteristic> characteristics = service
-                .getCharacteristics();
-
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0
-                    && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
-            }
-        }
-
-        if (characteristic != null)
-            return characteristic;
-
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0
-                    && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
-            }
-        }
-
-        return characteristic;
+    private BluetoothGattCharacteristic findCharacteristic(
+            UUID serviceUUID, UUID characteristicUUID) {
+        CharacteristicIndex index = this.characteristicIndex();
+        return index == null ? null : index.find(serviceUUID, characteristicUUID,
+                CharacteristicIndex.ROLE_ANY);
     }
 
-    private String generateHashKey(BluetoothGattCharacteristic characteristic) {
-        return this.generateHashKey(characteristic.getService().getUuid(),
-                characteristic);
+    private BluetoothGattCharacteristic findWritableCharacteristic(
+            UUID serviceUUID, UUID characteristicUUID, int writeType) {
+        CharacteristicIndex index = this.characteristicIndex();
+        return index == null ? null : index.find(serviceUUID, characteristicUUID,
+                CharacteristicIndex.writeRole(writeType));
     }
 
-    protected String generateHashKey(UUID serviceUUID,
-                                     BluetoothGattCharacteristic characteristic) {
-        return String.valueOf(serviceUUID) + "|" + characteristic.getUuid()
-                + "|" + characteristic.getInstanceId();
+    private BluetoothGattCharacteristic findNotifyCharacteristic(
+            UUID serviceUUID, UUID characteristicUUID) {
+        CharacteristicIndex index = this.characteristicIndex();
+        return index == null ? null : index.find(serviceUUID, characteristicUUID,
+                CharacteristicIndex.ROLE_NOTIFY);
     }
 
     /********************************************************************************
@@ -892,6 +927,7 @@ public class Peripheral extends BluetoothGattCallback {
             synchronized (this.mStateLock) {
                 this.mConnState.set(CONN_STATE_CONNECTED);
             }
+            this.mLinkStatsRecorder.reset();
 
             if (this.gatt == null || !this.gatt.discoverServices()) {
                 OtaLogger.d("remote service discovery has been stopped status = "
@@ -922,12 +958,16 @@ public class Peripheral extends BluetoothGattCallback {
                                         BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
 
-        String key = this.generateHashKey(characteristic);
-        CommandContext commandContext = this.mNotificationCallbacks.get(key);
+        byte[] value = characteristic.getValue();
+        if (value != null) {
+            this.mLinkStatsRecorder.recordReceived(value.length);
+        }
+
+        CommandContext commandContext = this.mNotificationCallbacks.get(characteristic);
 
         if (commandContext != null) {
 
-            this.onNotify(characteristic.getValue(),
+            this.onNotify(value,
                     commandContext.command.serviceUUID,
                     commandContext.command.characteristicUUID,
                     commandContext.command.tag);
@@ -943,6 +983,9 @@ public class Peripheral extends BluetoothGattCallback {
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
             byte[] data = characteristic.getValue();
+            if (data != null) {
+                this.mLinkStatsRecorder.recordReceived(data.length);
+            }
             this.commandSuccess(data);
         } else {
             this.commandError("read characteristic failed");
@@ -959,12 +1002,18 @@ public class Peripheral extends BluetoothGattCallback {
         this.cancelCommandTimeoutTask();
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
+            byte[] data = characteristic.getValue();
+            if (data != null) {
+                this.mLinkStatsRecorder.recordSent(data.length);
+            }
             this.commandSuccess(null);
         } else {
             this.commandError("write characteristic fail");
         }
 
-        OtaLogger.d("onCharacteristicWrite newStatus : " + status);
+        if (BlueLog.D && OtaLogger.isLoggable(BlueLog.DEBUG)) {
+            OtaLogger.d("onCharacteristicWrite newStatus : " + status);
+        }
 
         this.commandCompleted();
     }
@@ -1009,6 +1058,7 @@ public class Peripheral extends BluetoothGattCallback {
         if (status == BluetoothGatt.GATT_SUCCESS) {
             List<BluetoothGattService> services = gatt.getServices();
             this.mServices = services;
+            this.mCharacteristicIndex = CharacteristicIndex.build(services);
             this.onServicesDiscoveredComplete(services);
             OtaLogger.d("Service discovery success:" + services.size());
         } else {
@@ -1041,6 +1091,7 @@ public class Peripheral extends BluetoothGattCallback {
         this.cancelCommandTimeoutTask();
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mLinkStatsRecorder.setMtu(mtu);
             this.commandSuccess(null);
         } else {
             this.commandError("request mtu callback fail");
@@ -1049,6 +1100,26 @@ public class Peripheral extends BluetoothGattCallback {
         this.commandCompleted();
     }
 
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+        this.handlePhy(txPhy, rxPhy, status);
+    }
+
+    @Override
+    public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyRead(gatt, txPhy, rxPhy, status);
+        this.handlePhy(txPhy, rxPhy, status);
+    }
+
+    private void handlePhy(int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mLinkStatsRecorder.setPhy(txPhy, rxPhy);
+        }
+        OtaLogger.d("phy tx : " + txPhy + " rx : " + rxPhy + " status : " + status);
+        this.onPhyChanged(txPhy, rxPhy, status);
+    }
+
     @Override
     public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
         super.onReliableWriteCompleted(gatt, status);
@@ -4,8 +4,11 @@
  */
 package com.telink.ota.util;
 
-import android.util.Log;
+import com.cleargrass.lib.log.BlueLog;
 
+/**
+ * 转发到 {@link BlueLog}，级别由 BlueLog 的编译期/运行期级别控制；ENABLE 用于单独关闭 OTA 日志。
+ */
 public class OtaLogger {
 
     public static String TAG = "Telink-OTA";
@@ -13,86 +16,84 @@ public class OtaLogger {
     public static boolean ENABLE = true;
 
     public static boolean isLoggable(int level) {
-        if (ENABLE)
-            return Log.isLoggable(TAG, level);
-        return false;
+        return ENABLE && BlueLog.isLoggable(level);
     }
 
     public static String getStackTraceString(Throwable th) {
         if (ENABLE)
-            return Log.getStackTraceString(th);
+            return android.util.Log.getStackTraceString(th);
         return th.getMessage();
     }
 
     public static int println(int level, String msg) {
         if (ENABLE)
-            return Log.println(level, TAG, msg);
+            BlueLog.println(level, TAG, msg, null);
         return 0;
     }
 
     public static int v(String msg) {
         if (ENABLE)
-            return Log.v(TAG, msg);
+            BlueLog.v(TAG, msg);
         return 0;
     }
 
     public static int v(String msg, Throwable th) {
         if (ENABLE)
-            return Log.v(TAG, msg, th);
+            BlueLog.println(BlueLog.VERBOSE, TAG, msg, th);
         return 0;
     }
 
     public static int d(String msg) {
         if (ENABLE)
-            return Log.d(TAG, msg);
+            BlueLog.d(TAG, msg);
         return 0;
     }
 
     public static int d(String msg, Throwable th) {
         if (ENABLE)
-            return Log.d(TAG, msg, th);
+            BlueLog.d(TAG, msg, th);
         return 0;
     }
 
     public static int i(String msg) {
         if (ENABLE)
-            return Log.i(TAG, msg);
+            BlueLog.i(TAG, msg);
         return 0;
     }
 
     public static int i(String msg, Throwable th) {
         if (ENABLE)
-            return Log.i(TAG, msg, th);
+            BlueLog.i(TAG, msg, th);
         return 0;
     }
 
     public static int w(String msg) {
         if (ENABLE)
-            return Log.w(TAG, msg);
+            BlueLog.w(TAG, msg);
         return 0;
     }
 
     public static int w(String msg, Throwable th) {
         if (ENABLE)
-            return Log.w(TAG, msg, th);
+            BlueLog.w(TAG, msg, th);
         return 0;
     }
 
     public static int w(Throwable th) {
         if (ENABLE)
-            return Log.w(TAG, th);
+            BlueLog.w(TAG, "", th);
         return 0;
     }
 
     public static int e(String msg) {
         if (ENABLE)
-            return Log.w(TAG, msg);
+            BlueLog.e(TAG, msg);
         return 0;
     }
 
     public static int e(String msg, Throwable th) {
         if (ENABLE)
-            return Log.e(TAG, msg, th);
+            BlueLog.e(TAG, msg, th);
         return 0;
     }
 }
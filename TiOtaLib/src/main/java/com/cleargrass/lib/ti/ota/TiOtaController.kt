@@ -1,5 +1,6 @@
 package com.cleargrass.lib.ti.ota
 
+import android.bluetooth.BluetoothAdapter
 import android.bluetooth.BluetoothDevice
 import android.bluetooth.BluetoothGatt
 import android.bluetooth.BluetoothGattCallback
@@ -12,7 +13,7 @@ import android.os.Build
 import android.os.Handler
 import android.os.Looper
 import android.util.Base64
-import android.util.Log
+import com.cleargrass.lib.log.BlueLog
 import java.util.UUID
 import kotlin.math.roundToInt
 
@@ -83,7 +84,7 @@ class TiOtaController(
             return
         }
 
-        Log.d(TAG, "Starting OTA process")
+        BlueLog.d(TAG, "Starting OTA process")
         isOtaRunning = true
         setProgress(0f, UpdateState.PROGRESS)
         startTimeout()
@@ -104,7 +105,7 @@ class TiOtaController(
      * 任何步骤出错都会转到 ERROR 状态
      */
     private fun changeState(newState: OtaState) {
-        Log.d(TAG, "State change: ${currentState} -> $newState")
+        BlueLog.d(TAG, "State change: ${currentState} -> $newState")
         currentState = newState
         
         when (newState) {
@@ -141,22 +142,26 @@ class TiOtaController(
             }
             
             OtaState.TRANSFERRING_BLOCKS -> {
+                // 传输镜像期间缩短连接间隔，出错时会直接断开，不需要恢复
+                requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)
+                requestLe2MPhy()
                 startImageTransfer()
             }
             
             OtaState.ENABLING_IMAGE -> {
+                requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED)
                 enableImage()
             }
             
             OtaState.COMPLETED -> {
-                Log.d(TAG, "OTA completed successfully")
+                BlueLog.d(TAG, "OTA completed successfully")
                 clearTimeout()
                 setProgress(1.0f, UpdateState.DONE)
                 isOtaRunning = false
             }
             
             OtaState.ERROR -> {
-                Log.e(TAG, "OTA failed")
+                BlueLog.e(TAG, "OTA failed")
                 clearTimeout()
                 setProgress(0f, UpdateState.ERROR)
                 isOtaRunning = false
@@ -169,10 +174,27 @@ class TiOtaController(
         }
     }
 
+    private fun requestConnectionPriority(priority: Int) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            gatt?.requestConnectionPriority(priority)
+        }
+    }
+
+    /**
+     * 支持 2M 的手机上请求 LE 2M PHY，设备不支持时保持 1M，传输不受影响
+     */
+    private fun requestLe2MPhy() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && BluetoothAdapter.getDefaultAdapter()?.isLe2MPhySupported == true) {
+            gatt?.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED)
+        }
+    }
+
     private fun startTimeout() {
         timeoutRunnable?.let { handler.removeCallbacks(it) }
         timeoutRunnable = Runnable {
-            Log.e(TAG, "OTA timeout")
+            BlueLog.e(TAG, "OTA timeout")
             setProgress(0f, UpdateState.ERROR)
             cancel()
         }
@@ -185,7 +207,7 @@ class TiOtaController(
     }
 
     fun cancel() {
-        Log.d(TAG, "Cancelling OTA")
+        BlueLog.d(TAG, "Cancelling OTA")
         
         // Send cancel command if connected
         gatt?.let { gatt ->
@@ -202,7 +224,7 @@ class TiOtaController(
     }
 
     fun stopOta() {
-        Log.d(TAG, "Stopping OTA")
+        BlueLog.d(TAG, "Stopping OTA")
         clearTimeout()
         isOtaRunning = false
         currentState = OtaState.IDLE
@@ -245,7 +267,9 @@ class TiOtaController(
 
     private fun setProgress(progress: Float, state: UpdateState = UpdateState.PROGRESS) {
         val progress: Int = (progress * 100).toInt()
-        Log.d(TAG, "progress: $progress, state: $state")
+        if (BlueLog.D && BlueLog.isLoggable(BlueLog.DEBUG)) {
+            BlueLog.d(TAG, "progress: $progress, state: $state")
+        }
         val finalProgress = if (progress >= 100) 100 else progress.coerceIn(0, 99)
         val finalState = if (finalProgress >= 100) UpdateState.DONE else state
 
@@ -264,13 +288,13 @@ class TiOtaController(
             
             when (newState) {
                 BluetoothProfile.STATE_CONNECTED -> {
-                    Log.d(TAG, "Connected to GATT server")
+                    BlueLog.d(TAG, "Connected to GATT server")
                     if (currentState == OtaState.CONNECTING) {
                         changeState(OtaState.DISCOVERING_SERVICES)
                     }
                 }
                 BluetoothProfile.STATE_DISCONNECTED -> {
-                    Log.d(TAG, "Disconnected from GATT server")
+                    BlueLog.d(TAG, "Disconnected from GATT server")
                     if (currentState == OtaState.ENABLING_IMAGE) {
                         // 这是预期的断开连接（设备重启）
                         handler.postDelayed({
@@ -288,7 +312,7 @@ class TiOtaController(
             super.onServicesDiscovered(gatt, status)
             
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "Services discovered")
+                BlueLog.d(TAG, "Services discovered")
                 
                 // Request MTU first, then continue
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -300,20 +324,25 @@ class TiOtaController(
                     }
                 }
             } else {
-                Log.e(TAG, "Service discovery failed")
+                BlueLog.e(TAG, "Service discovery failed")
                 changeState(OtaState.ERROR)
             }
         }
 
         override fun onMtuChanged(gatt: BluetoothGatt?, mtu: Int, status: Int) {
             super.onMtuChanged(gatt, mtu, status)
-            Log.d(TAG, "MTU changed to: $mtu")
+            BlueLog.d(TAG, "MTU changed to: $mtu")
             
             if (currentState == OtaState.DISCOVERING_SERVICES) {
                 changeState(OtaState.LOADING_FIRMWARE)
             }
         }
 
+        override fun onPhyUpdate(gatt: BluetoothGatt?, txPhy: Int, rxPhy: Int, status: Int) {
+            super.onPhyUpdate(gatt, txPhy, rxPhy, status)
+            BlueLog.d(TAG, "PHY updated tx: $txPhy, rx: $rxPhy, status: $status")
+        }
+
         override fun onCharacteristicChanged(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?) {
             super.onCharacteristicChanged(gatt, characteristic)
             
@@ -332,9 +361,9 @@ class TiOtaController(
             super.onCharacteristicWrite(gatt, characteristic, status)
             
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "Characteristic write successful")
+                BlueLog.d(TAG, "Characteristic write successful")
             } else {
-                Log.e(TAG, "Characteristic write failed: $status")
+                BlueLog.e(TAG, "Characteristic write failed: $status")
                 setProgress(0f, UpdateState.ERROR)
             }
         }
@@ -359,7 +388,7 @@ class TiOtaController(
             }
             
             if (firmwareBytes == null) {
-                Log.e(TAG, "Firmware bytes is null")
+                BlueLog.e(TAG, "Firmware bytes is null")
                 changeState(OtaState.ERROR)
                 return
             }
@@ -368,7 +397,7 @@ class TiOtaController(
             val imageType = getImageType(firmwareBytes)
             
             if (imageType == ImageType.UNKNOWN) {
-                Log.e(TAG, "Invalid image type")
+                BlueLog.e(TAG, "Invalid image type")
                 changeState(OtaState.ERROR)
                 return
             }
@@ -379,7 +408,7 @@ class TiOtaController(
                 imageType = imageType
             )
 
-            Log.d(TAG, "Firmware loaded: ${firmware?.version}, type: ${firmware?.imageType}")
+            BlueLog.d(TAG, "Firmware loaded: ${firmware?.version}, type: ${firmware?.imageType}")
             
             // 验证固件格式
             if (!validateFirmware(firmwareBytes)) {
@@ -391,7 +420,7 @@ class TiOtaController(
             changeState(OtaState.CHECKING_SERVICES)
             
         } catch (e: Exception) {
-            Log.e(TAG, "Error loading firmware", e)
+            BlueLog.e(TAG, "Error loading firmware", e)
             changeState(OtaState.ERROR)
         }
     }
@@ -399,12 +428,12 @@ class TiOtaController(
     private fun validateFirmware(firmwareBytes: ByteArray): Boolean {
         firmware?.let { fw ->
             if (fw.imageType != ImageType.MCUBOOT) {
-                Log.e(TAG, "Only mcuboot images are supported")
+                BlueLog.e(TAG, "Only mcuboot images are supported")
                 return false
             }
 
             if (!validateMcuBootHeader(firmwareBytes)) {
-                Log.e(TAG, "Invalid MCUBoot header")
+                BlueLog.e(TAG, "Invalid MCUBoot header")
                 return false
             }
         }
@@ -442,14 +471,14 @@ class TiOtaController(
         gatt?.let { gatt ->
             val service = gatt.getService(TiUuidInfo.OAD_SERVICE_UUID)
             if (service != null) {
-                Log.d(TAG, "OAD service found")
+                BlueLog.d(TAG, "OAD service found")
                 changeState(OtaState.ENABLING_NOTIFICATIONS)
             } else {
-                Log.e(TAG, "OAD service not found")
+                BlueLog.e(TAG, "OAD service not found")
                 changeState(OtaState.ERROR)
             }
         } ?: run {
-            Log.e(TAG, "GATT is null")
+            BlueLog.e(TAG, "GATT is null")
             changeState(OtaState.ERROR)
         }
     }
@@ -495,7 +524,7 @@ class TiOtaController(
 
 
     private fun getSoftwareVersion() {
-        Log.d(TAG, "Getting software version")
+        BlueLog.d(TAG, "Getting software version")
         gatt?.let { gatt ->
             val service = gatt.getService(TiUuidInfo.OAD_SERVICE_UUID)
             val characteristic = service?.getCharacteristic(TiUuidInfo.IMAGE_CONTROL_POINT_UUID)
@@ -519,7 +548,7 @@ class TiOtaController(
                          imageBytes[3].toInt() and 0xFF == MCUBOOT_MAGIC_4_2)
         
         if (!magicValid) {
-            Log.e(TAG, "Invalid MCUBoot magic number")
+            BlueLog.e(TAG, "Invalid MCUBoot magic number")
             return false
         }
 
@@ -529,7 +558,7 @@ class TiOtaController(
                 .joinToString("") { "%02x".format(it) }
             
             if (swapMagic != "77c295f360d2ef7f355250f2cb67980") {
-                Log.d(TAG, "Not a swap image")
+                BlueLog.d(TAG, "Not a swap image")
                 
                 // For non-swap images, validate TLV header
                 val headerLen = (imageBytes[8].toInt() and 0xFF) +
@@ -547,7 +576,7 @@ class TiOtaController(
                     val tlvMagic0 = imageBytes[imgLength + headerLen].toInt() and 0xFF
                     
                     if (tlvMagic1 != 0x69 || (tlvMagic0 != 0x07 && tlvMagic0 != 0x08)) {
-                        Log.e(TAG, "Invalid TLV header magic")
+                        BlueLog.e(TAG, "Invalid TLV header magic")
                         return false
                     }
                 }
@@ -558,7 +587,7 @@ class TiOtaController(
     }
 
     private fun getBlockSize() {
-        Log.d(TAG, "Getting block size")
+        BlueLog.d(TAG, "Getting block size")
         gatt?.let { gatt ->
             val service = gatt.getService(TiUuidInfo.OAD_SERVICE_UUID)
             val characteristic = service?.getCharacteristic(TiUuidInfo.IMAGE_CONTROL_POINT_UUID)
@@ -574,7 +603,7 @@ class TiOtaController(
     private fun sendImageIdentify() {
         if (imageIdentifySent) return
         
-        Log.d(TAG, "Sending image identify")
+        BlueLog.d(TAG, "Sending image identify")
         fwImageByteArray?.let { imageBytes ->
             gatt?.let { gatt ->
                 val service = gatt.getService(TiUuidInfo.OAD_SERVICE_UUID)
@@ -591,14 +620,14 @@ class TiOtaController(
                     gatt.writeCharacteristic(char)
                     imageIdentifySent = true
                     
-                    Log.d(TAG, "Image identify payload sent")
+                    BlueLog.d(TAG, "Image identify payload sent")
                 }
             }
         }
     }
 
     private fun handleImageIdentifyResponse(data: ByteArray) {
-        Log.d(TAG, "Image identify response received")
+        BlueLog.d(TAG, "Image identify response received")
         if (currentState == OtaState.SENDING_IMAGE_IDENTIFY) {
             changeState(OtaState.TRANSFERRING_BLOCKS)
         }
@@ -614,7 +643,7 @@ class TiOtaController(
     }
 
     private fun startImageTransfer() {
-        Log.d(TAG, "Starting image transfer")
+        BlueLog.d(TAG, "Starting image transfer")
         gatt?.let { gatt ->
             val service = gatt.getService(TiUuidInfo.OAD_SERVICE_UUID)
             val characteristic = service?.getCharacteristic(TiUuidInfo.IMAGE_CONTROL_POINT_UUID)
@@ -624,7 +653,7 @@ class TiOtaController(
                 char.value = cmd
                 gatt.writeCharacteristic(char)
                 
-                Log.d(TAG, "Start OAD command sent")
+                BlueLog.d(TAG, "Start OAD command sent")
             }
         }
     }
@@ -654,7 +683,7 @@ class TiOtaController(
     }
 
     private fun enableImage() {
-        Log.d(TAG, "Enabling image")
+        BlueLog.d(TAG, "Enabling image")
         gatt?.let { gatt ->
             val service = gatt.getService(TiUuidInfo.OAD_SERVICE_UUID)
             val characteristic = service?.getCharacteristic(TiUuidInfo.IMAGE_CONTROL_POINT_UUID)
@@ -664,7 +693,7 @@ class TiOtaController(
                 char.value = cmd
                 gatt.writeCharacteristic(char)
                 
-                Log.d(TAG, "Enable image command sent, waiting for device reset")
+                BlueLog.d(TAG, "Enable image command sent, waiting for device reset")
                 setProgress(0.98f)
             }
         }
@@ -674,7 +703,9 @@ class TiOtaController(
         if (data.isEmpty()) return
         
         val opCode = data[0].toInt() and 0xFF
-        Log.d(TAG, "Notification OpCode: 0x${opCode.toString(16)}, Current state: $currentState")
+        if (BlueLog.D && BlueLog.isLoggable(BlueLog.DEBUG)) {
+            BlueLog.d(TAG, "Notification OpCode: 0x${opCode.toString(16)}, Current state: $currentState")
+        }
         
         when (opCode) {
             OadProtocolOpCode.OAD_REQ_GET_SW_VER -> {
@@ -690,7 +721,7 @@ class TiOtaController(
             }
             
             OadEvent.OAD_EVT_ENABLE_IMG -> {
-                Log.d(TAG, "Image enabled, device will reset")
+                BlueLog.d(TAG, "Image enabled, device will reset")
                 if (currentState == OtaState.ENABLING_IMAGE) {
                     setProgress(0.98f)
                     // 设备将会断开连接并重启，在 onConnectionStateChange 中处理完成状态
@@ -711,10 +742,10 @@ class TiOtaController(
             val buildLow = if (data.size >= 7) data[6].toInt() and 0xFF else 0
             
             val swVersion = "$major.$minor.${(revisionHi + revisionLow) shl 8}.${buildHi + (buildLow shl 8)}"
-            Log.d(TAG, "Current SW Version: $swVersion")
+            BlueLog.d(TAG, "Current SW Version: $swVersion")
             
             firmware?.let { fw ->
-                Log.d(TAG, "New firmware version: ${fw.version}")
+                BlueLog.d(TAG, "New firmware version: ${fw.version}")
             }
         }
         
@@ -727,12 +758,12 @@ class TiOtaController(
         
         if (data.size >= 3) {
             blockSize = (data[1].toInt() and 0xFF) + ((data[2].toInt() and 0xFF) shl 8) - 4
-            Log.d(TAG, "Block size: $blockSize")
+            BlueLog.d(TAG, "Block size: $blockSize")
             
             fwImageByteArray?.let { imageBytes ->
                 imageLength = imageBytes.size
                 numBlocks = imageLength / blockSize
-                Log.d(TAG, "Image length: $imageLength, num blocks: $numBlocks")
+                BlueLog.d(TAG, "Image length: $imageLength, num blocks: $numBlocks")
             }
             
             // 继续发送图像识别
@@ -750,11 +781,13 @@ class TiOtaController(
                                ((data[4].toInt() and 0xFF) shl 16) +
                                ((data[5].toInt() and 0xFF) shl 24)
             
-            Log.d(TAG, "Block requested: $blockRequested/$numBlocks, status: $status")
+            if (BlueLog.D && BlueLog.isLoggable(BlueLog.DEBUG)) {
+                BlueLog.d(TAG, "Block requested: $blockRequested/$numBlocks, status: $status")
+            }
             
             when (status) {
                 OadStatus.OAD_PROFILE_DL_COMPLETE -> {
-                    Log.d(TAG, "Download complete")
+                    BlueLog.d(TAG, "Download complete")
                     changeState(OtaState.ENABLING_IMAGE)
                 }
                 
@@ -770,7 +803,7 @@ class TiOtaController(
                 }
                 
                 else -> {
-                    Log.e(TAG, "Block request failed with status: $status")
+                    BlueLog.e(TAG, "Block request failed with status: $status")
                     changeState(OtaState.ERROR)
                 }
             }
@@ -10,23 +10,126 @@ import android.bluetooth.le.ScanResult
 import android.content.Context
 import android.content.pm.PackageManager
 import android.os.Build
-import android.util.Log
+import android.os.SystemClock
 import androidx.annotation.MainThread
+import androidx.annotation.WorkerThread
 import androidx.core.app.ActivityCompat
+import com.cleargrass.lib.blue.core.AdvertRecorder
+import com.cleargrass.lib.blue.core.AdvertReplayer
+import com.cleargrass.lib.blue.core.GattDispatcher
 import com.cleargrass.lib.blue.core.Peripheral
 import com.cleargrass.lib.blue.core.Peripheral.Callback
 import com.cleargrass.lib.blue.core.Peripheral.OnConnectionStatusCallback
+import com.cleargrass.lib.blue.core.PeripheralRegistry
+import com.cleargrass.lib.blue.core.QingpingScanFilter
 import com.cleargrass.lib.blue.core.QingpingScanManager
 import com.cleargrass.lib.blue.core.ScanCallback
+import com.cleargrass.lib.blue.core.ScanMultiplexer
+import com.cleargrass.lib.blue.core.ScanScheduler
+import com.cleargrass.lib.log.BlueLog
+import java.io.InputStream
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
 
 
 @SuppressLint("MissingPermission")
 public object BlueManager {
     val LOG_TAG = "BlueManager"
-    private val peripherals: MutableMap<String, Peripheral> = mutableMapOf()
+    // 长时间扫描时按最后发现时间淘汰空闲设备，并释放它们的 GATT
+    private val peripherals = PeripheralRegistry()
     private var bluetoothManager: BluetoothManager? = null
     private var qingpingScan: QingpingScanManager? = null
+    // 所有订阅共用 qingpingScan 的一次系统扫描
+    private var scanMultiplexer: ScanMultiplexer? = null
+    // scan() 创建的订阅，下次 scan() / stopScan() 时取消
+    private var scanSubscription: ScanMultiplexer.Subscription? = null
     private val bluetoothAdapter: BluetoothAdapter? get() = bluetoothManager?.adapter
+
+    /**
+     * 连接成功后自动协商最大 MTU，WIFI 配网等长命令可以用更少的分包发送。默认关闭。
+     */
+    var requestMaxMtuOnConnect = false
+
+    /**
+     * 连接成功后请求 LE 2M PHY，不支持的手机或设备保持 1M。协商结果见 Peripheral.getLinkStats()。默认关闭。
+     */
+    var requestLe2MPhyOnConnect = false
+
+    /**
+     * 大于 0 时开启批量扫描：控制器缓存广播，每个周期回调一次 DeviceScanCallback.onDevicesInRange。
+     * 设备数量很多时可以明显减少回调和唤醒次数。默认 0，逐条回调。
+     */
+    var scanReportDelayMillis: Long = 0
+
+    /**
+     * 扫描调度。为 null 时一直低延迟扫描；长时间扫描（如网关、被动监测）可以使用 ScanScheduler.adaptive()，
+     * 新设备变少后自动切换到间歇的低功耗扫描，并遵守系统 30 秒内最多启动 5 次扫描的限制。
+     */
+    var scanScheduler: ScanScheduler? = null
+
+    // 每个订阅一个去重器：同一设备重复的广播不再创建新对象，只在内容或 RSSI 有明显变化时回调
+    private val scanDeduplicators = CopyOnWriteArrayList<ScanDeduplicator>()
+
+    init {
+        peripherals.setOnEvictListener { address, _ ->
+            scanDeduplicators.forEach { it.remove(address) }
+            // 被淘汰的设备都是空闲的，结束 dispatcherProvider 为它创建的线程；共享线程和主线程 quit 无效
+            synchronized(dispatchers) {
+                dispatchers.remove(address)
+            }?.quit()
+        }
+    }
+
+    /**
+     * 最多保留多少个设备实例，默认 256。超出后淘汰最久没有收到广播的空闲设备，已连接的设备不会被淘汰。
+     */
+    var maxPeripherals: Int
+        get() = peripherals.capacity
+        set(value) { peripherals.capacity = value }
+
+    /**
+     * 调整 RSSI 平滑参数，见 PeripheralRegistry.setRssiFilter
+     */
+    fun setRssiFilter(measurementNoise: Float, processNoise: Float, hysteresis: Float) {
+        peripherals.setRssiFilter(measurementNoise, processNoise, hysteresis)
+    }
+
+    /**
+     * 平滑 RSSI 最强的 count 个设备，从近到远排列。排名带滞后，信号接近的设备不会来回交换位置，
+     * 只维护 count 大小的堆，设备很多时也不需要全部排序。最近 10 秒没有广播的设备不参与排名。
+     */
+    fun nearestDevices(count: Int): List<QingpingDevice> {
+        return peripherals.nearest(count).map { QingpingDevice(it) }
+    }
+
+    /**
+     * 同一设备两次 onDeviceInRange 之间的最小间隔，默认 1000ms
+     */
+    var scanThrottleMillis: Long = 1000
+
+    /**
+     * 广播内容不变时，RSSI 变化达到该值才回调，默认 5 dBm
+     */
+    var scanRssiThreshold: Int = 5
+
+    /**
+     * 交给蓝牙控制器的过滤条件，所有订阅共用，在下次启动系统扫描时生效。默认只接收 fdcd 广播。
+     * 各订阅的 filter 只能在这个范围内再筛选，需要 fff9 广播时设置为 includeLegacyUuid(true) 的条件。
+     */
+    var scanHardwareFilter: QingpingScanFilter = QingpingScanFilter.defaultFilter()
+
+    /**
+     * 为每个设备选择 GATT 回调运行的线程，在第一次连接该设备时调用。
+     * 默认所有设备共用一个后台线程，最终回调切回主线程；
+     * 需要每个设备独立线程时可以设置为 { address -> GattDispatcher.newThread("qpblue-$address") }。
+     */
+    var dispatcherProvider: (String) -> GattDispatcher = { GattDispatcher.shared() }
+    private val dispatchers: MutableMap<String, GattDispatcher> = mutableMapOf()
+
+    /**
+     * 单个 GATT 操作等待回调的最长时间，超时后回调错误并继续后面的操作，不需要手动断开。
+     */
+    var operationTimeoutMillis: Long = Peripheral.DEFAULT_OPERATION_TIMEOUT
     fun initBleManager(context: Context): Boolean {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             if (ActivityCompat.checkSelfPermission(
@@ -56,47 +159,174 @@ public object BlueManager {
             bluetoothManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
         }
         if (qingpingScan == null) {
-            qingpingScan = QingpingScanManager(context)
+            QingpingScanManager(context).let {
+                qingpingScan = it
+                scanMultiplexer = ScanMultiplexer(it).apply {
+                    setAdvertObserver { scanResult ->
+                        recordAdvert(scanResult.device.address, scanResult.rssi, scanResult.scanRecord?.bytes ?: byteArrayOf(),
+                            SystemClock.elapsedRealtime()) { Peripheral(scanResult) }
+                    }
+                }
+            }
         }
         return bluetoothAdapter?.isEnabled == true
     }
+    /**
+     * 开始扫描，替换上一次 scan() 的回调；通过 subscribe 加入的其它订阅不受影响。
+     *
+     * @param filter 只回调满足条件的设备，默认只接收 fdcd 广播
+     */
     @MainThread@SuppressLint("MissingPermission")
-    fun scan(scanCallback: DeviceScanCallback): Boolean {
-        if (bluetoothAdapter?.isEnabled != true) {
+    fun scan(scanCallback: DeviceScanCallback, filter: QingpingScanFilter = QingpingScanFilter.defaultFilter()): Boolean {
+        // 先加入新的订阅再取消旧的，系统扫描不会停止后重新启动
+        val previous = scanSubscription
+        scanSubscription = subscribe(scanCallback, filter)
+        previous?.let { unsubscribe(it) }
+        return scanSubscription != null
+    }
+
+    @MainThread
+    fun stopScan() {
+        scanSubscription?.let { unsubscribe(it) }
+        scanSubscription = null
+    }
+
+    /**
+     * 加入扫描。多个订阅共用一次系统扫描，最后一个订阅取消时停止。
+     *
+     * @param filter 只回调满足条件的设备
+     * @param throttleMillis 同一设备两次 onDeviceInRange 之间的最小间隔
+     * @param executor 回调执行的线程，默认直接在扫描回调的主线程执行
+     * @return 用于 unsubscribe，蓝牙不可用时为 null
+     */
+    @MainThread
+    fun subscribe(
+        scanCallback: DeviceScanCallback,
+        filter: QingpingScanFilter = QingpingScanFilter.defaultFilter(),
+        throttleMillis: Long = scanThrottleMillis,
+        executor: Executor = GattDispatcher.DIRECT_EXECUTOR
+    ): ScanMultiplexer.Subscription? {
+        val multiplexer = scanMultiplexer
+        if (bluetoothAdapter?.isEnabled != true || multiplexer == null) {
             scanCallback.onScanFailed(-99999);
-            return false
+            return null
         }
-        stopScan();
-        qingpingScan?.scan(object :
+        // 只在系统扫描启动时生效
+        qingpingScan?.setReportDelay(scanReportDelayMillis)
+        qingpingScan?.setScheduler(scanScheduler)
+        multiplexer.setHardwareFilter(scanHardwareFilter)
+
+        val deduplicator = ScanDeduplicator(peripherals)
+        deduplicator.throttleMillis = throttleMillis
+        deduplicator.rssiThreshold = scanRssiThreshold
+        scanDeduplicators.add(deduplicator)
+        return multiplexer.subscribe(object :
             ScanCallback {
             override fun onScanStart() {
                 scanCallback.onScanStart()
             }
 
             override fun onScanStop() {
+                scanDeduplicators.remove(deduplicator)
                 scanCallback.onScanStop()
             }
 
             override fun onAcceptDevice(scanResult: ScanResult?) {
-                val peripheral = Peripheral(scanResult)
-                synchronized(peripherals) {
-                    peripherals[peripheral.device.address]= peripheral
+                scanResult ?: return
+                deduplicator.offer(scanResult)?.let { scanCallback.onDeviceInRange(it) }
+            }
+
+            override fun onAcceptDevices(scanResults: List<ScanResult>) {
+                val devices = ArrayList<QingpingDevice>(scanResults.size)
+                scanResults.forEach { scanResult ->
+                    deduplicator.offer(scanResult)?.let { devices.add(it) }
+                }
+                if (devices.isNotEmpty()) {
+                    scanCallback.onDevicesInRange(devices)
                 }
-                scanCallback.onDeviceInRange(QingpingDevice(peripheral))
             }
 
             override fun onScanFailed(errorCode: Int) {
                 // 处理扫描失败
+                scanDeduplicators.remove(deduplicator)
                 scanCallback.onScanFailed(errorCode)
             }
 
-        })
-        return true
+        }, { filter.matches(it) }, 0, executor)
+    }
+
+    /**
+     * 每条广播只调用一次（在分发给各订阅之前）：加入注册表，更新 RSSI 平滑、广播数据和最后发现时间。
+     * 订阅数量不影响平滑结果和 nearestDevices 排名。
+     */
+    private fun recordAdvert(address: String, rssi: Int, bytes: ByteArray, now: Long, create: () -> Peripheral): Peripheral {
+        val peripheral = peripherals.getOrCreate(address) { create() }
+        peripherals.recordRssi(peripheral, rssi, now)
+        peripheral.updateData(bytes)
+        peripheral.updateLastSeen(now)
+        return peripheral
     }
+
     @MainThread
-    fun stopScan() {
-        qingpingScan?.stopScan()
+    fun unsubscribe(subscription: ScanMultiplexer.Subscription) {
+        scanMultiplexer?.unsubscribe(subscription)
     }
+
+    /**
+     * 录制通过过滤的广播，为 null 时停止。文件格式见 AdvertRecord，recorder 由调用者关闭。
+     */
+    fun setAdvertRecorder(recorder: AdvertRecorder?) {
+        qingpingScan?.setRecorder(recorder)
+    }
+
+    /**
+     * 回放录制的广播，与真实扫描走同样的去重、RSSI 平滑和设备注册表，不需要打开扫描。
+     * 在调用线程阻塞执行并回调 onDeviceInRange，不回调 onScanStart / onScanStop。
+     *
+     * 去重节流和 RSSI 平滑使用录制的时间戳（平移到 [clock] 当前时间之后），结果与回放速度无关。
+     * 这里仍然需要 Android 运行时（BlueManager、Peripheral）；只解析录制文件时可以在普通 JVM 中直接使用 AdvertReplayer。
+     *
+     * @param speed 1 为原速，N 为 N 倍速，小于等于 0 时不等待
+     * @param clock 回放的起始时间，默认 SystemClock.elapsedRealtime
+     * @param peripheralFactory 注册表中还没有该设备时创建 Peripheral，为 null 时通过 BluetoothAdapter 创建（需要先 initBleManager）
+     * @return 回放的广播数
+     */
+    @WorkerThread
+    fun replayAdverts(
+        input: InputStream,
+        speed: Float,
+        scanCallback: DeviceScanCallback,
+        clock: () -> Long = { SystemClock.elapsedRealtime() },
+        peripheralFactory: ((address: String, rssi: Int, scanRecord: ByteArray) -> Peripheral)? = null
+    ): Int {
+        val create = peripheralFactory ?: bluetoothAdapter?.let { adapter ->
+            { address: String, rssi: Int, scanRecord: ByteArray -> Peripheral(adapter.getRemoteDevice(address), rssi, scanRecord) }
+        } ?: throw IllegalStateException("BlueManager not initialized")
+        val deduplicator = ScanDeduplicator(peripherals, clock)
+        deduplicator.throttleMillis = scanThrottleMillis
+        deduplicator.rssiThreshold = scanRssiThreshold
+        scanDeduplicators.add(deduplicator)
+        try {
+            AdvertReplayer(input).use { replayer ->
+                val startMillis = clock()
+                var firstNanos = -1L
+                return replayer.replay({ record ->
+                    if (firstNanos < 0) {
+                        firstNanos = record.timestampNanos
+                    }
+                    val now = startMillis + (record.timestampNanos - firstNanos) / 1_000_000
+                    val address = record.address
+                    val rssi = record.rssi
+                    val bytes = record.copyScanRecord()
+                    recordAdvert(address, rssi, bytes, now) { create(address, rssi, bytes) }
+                    deduplicator.offer(address, rssi, bytes, now)?.let { scanCallback.onDeviceInRange(it) }
+                }, speed)
+            }
+        } finally {
+            scanDeduplicators.remove(deduplicator)
+        }
+    }
+
     @MainThread
     fun connect(context: Context, address: String, onConnectStatusCallback: OnConnectionStatusCallback): Peripheral? {
         if (bluetoothAdapter?.isEnabled != true) {
@@ -106,12 +336,18 @@ public object BlueManager {
         val peripheral = retrieveOrCreatePeripheral(address);
         // 检查设备是否已连接
         if (peripheral?.isConnected == true) {
-            Log.d(LOG_TAG, "Peripheral (${address}) was connected. callback!")
+            BlueLog.d(LOG_TAG, "Peripheral (${address}) was connected. callback!")
             peripheral.setOnConnectStatusChange(onConnectStatusCallback)
             onConnectStatusCallback.onPeripheralConnected(peripheral)
             return peripheral
         }
-        Log.d(LOG_TAG, "Peripheral (${address}) connecting... ")
+        BlueLog.d(LOG_TAG, "Peripheral (${address}) connecting... ")
+        peripheral?.setRequestMaxMtuOnConnect(requestMaxMtuOnConnect)
+        peripheral?.setRequestLe2MPhyOnConnect(requestLe2MPhyOnConnect)
+        peripheral?.setOperationTimeout(operationTimeoutMillis)
+        peripheral?.dispatcher = synchronized(dispatchers) {
+            dispatchers.getOrPut(address) { dispatcherProvider(address) }
+        }
         peripheral?.connect(context, object: Callback() {
             override fun invoke(error: String?, value: Boolean?) {
                 if (value == true) {
@@ -124,28 +360,22 @@ public object BlueManager {
 
     public fun retrieveOrCreatePeripheral(address: String): Peripheral? {
         // peripherals 保存了本次app启动扫描到过的广播实例
-        var peripheral: Peripheral? = peripherals[address]
-        if (peripheral == null) {
-            synchronized(peripherals) {
-                var peripheralUUID = address!!.uppercase()
-                if (BluetoothAdapter.checkBluetoothAddress(peripheralUUID)) {
-                    // 如果没有在缓存过的设备中找到，则通过getRemoteDevice接口构造一个，并添加到peripherals中
-                    bluetoothAdapter?.getRemoteDevice(peripheralUUID)?.let { device: BluetoothDevice ->
-                        peripheral = Peripheral(device);
-                        peripherals.put(address, peripheral!!)
-                    }
-                }
-            }
+        peripherals.get(address)?.let { return it }
+        val peripheralUUID = address.uppercase()
+        if (!BluetoothAdapter.checkBluetoothAddress(peripheralUUID)) {
+            return null
         }
-        return peripheral
+        // 如果没有在缓存过的设备中找到，则通过getRemoteDevice接口构造一个，并添加到peripherals中
+        val device: BluetoothDevice = bluetoothAdapter?.getRemoteDevice(peripheralUUID) ?: return null
+        return peripherals.getOrCreate(address) { Peripheral(device) }
     }
 
 
     private fun internalRefreshDeviceCache(gatt: BluetoothGatt?): Boolean {
         if (gatt == null) // no need to be connected
             return false
-        Log.d(LOG_TAG, "Refreshing device cache...")
-        Log.d(LOG_TAG, "gatt.refresh() (hidden)")
+        BlueLog.d(LOG_TAG, "Refreshing device cache...")
+        BlueLog.d(LOG_TAG, "gatt.refresh() (hidden)")
         /*
          * There is a refresh() method in BluetoothGatt class but for now it's hidden.
          * We will call it using reflections.
@@ -153,8 +383,8 @@ public object BlueManager {
             val refresh = gatt.javaClass.getMethod("refresh")
             return refresh.invoke(gatt) as Boolean
         } catch (e: Exception) {
-            Log.w(LOG_TAG, "An exception occurred while refreshing device", e)
-            Log.d(LOG_TAG, "gatt.refresh() method not found")
+            BlueLog.w(LOG_TAG, "An exception occurred while refreshing device", e)
+            BlueLog.d(LOG_TAG, "gatt.refresh() method not found")
         }
         return false
     }
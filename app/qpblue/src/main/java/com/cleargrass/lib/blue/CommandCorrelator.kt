@@ -0,0 +1,168 @@
+package com.cleargrass.lib.blue
+
+import com.cleargrass.lib.blue.data.isFF
+import java.util.ArrayDeque
+import java.util.UUID
+
+/**
+ * 按 特征值 + 协议类型 关联指令和响应。
+ *
+ * COMMON_READ 和 MY_READ 上可以同时有多个不同类型的指令等待响应，通知按特征值和类型字节交给对应的等待者，
+ * 例如读取设备信息、取 clientid (0x1E) 和获取 wifi 列表 (0x07) 可以同时进行。
+ * 同一特征值上相同类型的指令按发送顺序排队，响应依次交给它们。每个类型各自用一个 ResponseCollector 拼接分页。
+ * 响应类型与指令类型不同时用 [alias] 登记；没有对应类型在等待的通知（如 0016 上主动上报的数据）直接丢弃，
+ * 不会交给其它类型的等待者。
+ *
+ * 通知在 dispatcher 线程到达，指令可能在其它线程发送，状态都在锁内修改；
+ * 响应和 onCancel 回调在释放锁之后执行，可以在回调中发送下一条指令。onCollectingChanged 在锁内执行，不能回调本类。
+ */
+internal class CommandCorrelator(private val onCollectingChanged: ((Boolean) -> Unit)? = null) {
+
+    private class Waiter(val responder: CommandResponder, val onCancel: (() -> Unit)?)
+
+    private inner class Slot(val characteristic: UUID, val type: Byte) {
+        val waiters = ArrayDeque<Waiter>()
+        val collector = ResponseCollector { collecting -> onSlotCollectingChanged(collecting) }
+
+        /**
+         * 让队首的等待者开始接收响应
+         */
+        fun arm() {
+            val waiter = waiters.peekFirst() ?: return
+            collector.setResponder(type, characteristic) { response ->
+                // collector 回调前已经 off，这里可以直接交给下一个等待者；responder 在 collect 释放锁后调用
+                waiters.pollFirst()
+                arm()
+                completedResponder = waiter.responder
+                completedResponse = response
+            }
+        }
+    }
+
+    // 特征值 -> 按响应类型字节索引的等待槽，收到通知时不需要创建对象
+    private val channels = HashMap<UUID, Array<Slot?>>()
+    // 指令类型 -> 响应类型，默认相同
+    private val responseTypes = ByteArray(256) { it.toByte() }
+    private var collectingSlots = 0
+    // 一个通知最多完成一个等待者，collect 在锁内记录，释放锁后回调
+    private var completedResponder: CommandResponder? = null
+    private var completedResponse: ByteArray? = null
+
+    /**
+     * 登记响应类型与指令类型不同的指令，之后 requestType 的指令等待 responseType 的响应
+     */
+    @Synchronized
+    fun alias(requestType: Byte, responseType: Byte) {
+        responseTypes[requestType.toInt() and 0xFF] = responseType
+    }
+
+    /**
+     * 发送指令前调用
+     *
+     * @param onCancel cancelAll 丢弃该指令时调用，cancel 不会调用
+     */
+    @Synchronized
+    fun expect(characteristic: UUID, type: Byte, responder: CommandResponder, onCancel: (() -> Unit)? = null) {
+        val slot = slot(characteristic, responseType(type))
+        slot.waiters.addLast(Waiter(responder, onCancel))
+        if (slot.waiters.size == 1) {
+            slot.arm()
+        }
+    }
+
+    /**
+     * 指令发送失败时调用，不再等待它的响应
+     */
+    @Synchronized
+    fun cancel(characteristic: UUID, type: Byte, responder: CommandResponder) {
+        val slot = channels[characteristic]?.get(responseType(type).toInt() and 0xFF) ?: return
+        if (slot.waiters.peekFirst()?.responder === responder) {
+            slot.waiters.pollFirst()
+            slot.collector.off()
+            slot.arm()
+        } else {
+            slot.waiters.removeAll { it.responder === responder }
+        }
+    }
+
+    /**
+     * 断开连接时调用，丢弃所有等待中的指令
+     */
+    fun cancelAll() {
+        val cancelled = ArrayList<() -> Unit>()
+        synchronized(this) {
+            channels.values.forEach { slots ->
+                slots.forEach { slot ->
+                    if (slot != null) {
+                        slot.collector.off()
+                        while (!slot.waiters.isEmpty()) {
+                            slot.waiters.pollFirst()?.onCancel?.let { cancelled.add(it) }
+                        }
+                    }
+                }
+            }
+        }
+        cancelled.forEach { it.invoke() }
+    }
+
+    /**
+     * @return 该特征值上正在拼接的 type 响应还缺哪些页（从 1 开始），没有在拼接时为空
+     */
+    @Synchronized
+    fun missingPages(characteristic: UUID, type: Byte): IntArray {
+        val slot = channels[characteristic]?.get(responseType(type).toInt() and 0xFF) ?: return IntArray(0)
+        return slot.collector.missingPages()
+    }
+
+    /**
+     * 收到通知时调用。0xFF 结果包（如 04FF010000）按第三个字节的类型匹配，其它按第二个字节。
+     * 没有等待者的通知被丢弃。
+     */
+    fun collect(characteristic: UUID, bytes: ByteArray) {
+        if (bytes.size < 2) {
+            return
+        }
+        val type = if (bytes[1].isFF()) {
+            if (bytes.size < 3) return
+            bytes[2]
+        } else {
+            bytes[1]
+        }
+        var responder: CommandResponder? = null
+        var response: ByteArray? = null
+        synchronized(this) {
+            val slot = channels[characteristic]?.get(type.toInt() and 0xFF)
+            if (slot == null || slot.waiters.isEmpty()) {
+                // QingpingDevice 收到通知时已经打印过日志
+                return
+            }
+            slot.collector.collect(characteristic, bytes)
+            responder = completedResponder
+            response = completedResponse
+            completedResponder = null
+            completedResponse = null
+        }
+        responder?.invoke(response!!)
+    }
+
+    private fun responseType(type: Byte): Byte = responseTypes[type.toInt() and 0xFF]
+
+    private fun slot(characteristic: UUID, type: Byte): Slot {
+        val slots = channels.getOrPut(characteristic) { arrayOfNulls(256) }
+        val index = type.toInt() and 0xFF
+        return slots[index] ?: Slot(characteristic, type).also { slots[index] = it }
+    }
+
+    // 任意一个类型在拼接分页时保持高速连接参数，全部结束后恢复
+    private fun onSlotCollectingChanged(collecting: Boolean) {
+        if (collecting) {
+            if (collectingSlots++ == 0) {
+                onCollectingChanged?.invoke(true)
+            }
+        } else if (collectingSlots > 0) {
+            if (--collectingSlots == 0) {
+                onCollectingChanged?.invoke(false)
+            }
+        }
+    }
+}
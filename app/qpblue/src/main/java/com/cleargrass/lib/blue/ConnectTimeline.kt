@@ -0,0 +1,92 @@
+package com.cleargrass.lib.blue
+
+import android.os.SystemClock
+
+/**
+ * connectBind / connectVerify 依次经过的步骤
+ */
+enum class ConnectStep {
+    /** 建立 GATT 连接 */
+    CONNECT,
+    /** 发现服务 */
+    DISCOVER_SERVICES,
+    /** 打开 0002 通知 */
+    ENABLE_NOTIFY,
+    /** 0x01 绑定，只有 connectBind 有这一步 */
+    BIND,
+    /** 0x02 验证，成功后即可发送指令 */
+    VERIFY,
+    /** 0x0D 打开 0015/0016 通道 */
+    ENABLE_DATA_CHANNEL,
+    /** 打开 0016 通知 */
+    ENABLE_DATA_NOTIFY,
+}
+
+/**
+ * 一次 connectBind / connectVerify 各步骤的耗时，时间取自 SystemClock.elapsedRealtime。
+ * 每一步都在上一步的 GATT 或协议回调中立即开始，步骤之间没有固定等待。
+ */
+class ConnectTimeline internal constructor() {
+
+    class Step internal constructor(val step: ConnectStep, val startMillis: Long) {
+        var endMillis = -1L
+            internal set
+        /** 失败或超时的原因，成功时为 null */
+        var error: String? = null
+            internal set
+
+        /** 该步骤耗时，还没结束时为 -1 */
+        val millis: Long
+            get() = if (endMillis < 0) -1 else endMillis - startMillis
+        val succ: Boolean
+            get() = endMillis >= 0 && error == null
+
+        override fun toString(): String {
+            return "$step ${millis}ms" + (error?.let { " ($it)" } ?: "")
+        }
+    }
+
+    private val _steps = ArrayList<Step>(ConnectStep.values().size)
+    val steps: List<Step>
+        get() = _steps
+
+    val startMillis = SystemClock.elapsedRealtime()
+
+    /** 从开始连接到 verify 成功的耗时，没有成功时为 -1 */
+    var readyMillis = -1L
+        internal set
+
+    /** 从开始连接到最后一步结束的耗时 */
+    val totalMillis: Long
+        get() = (_steps.lastOrNull()?.endMillis?.takeIf { it >= 0 } ?: SystemClock.elapsedRealtime()) - startMillis
+
+    /** 失败的步骤，全部成功时为 null */
+    val failedStep: Step?
+        get() = _steps.firstOrNull { it.error != null }
+
+    /**
+     * @return 某一步的耗时，没有经过该步骤时为 -1
+     */
+    fun millisOf(step: ConnectStep): Long {
+        return _steps.firstOrNull { it.step == step }?.millis ?: -1
+    }
+
+    internal fun begin(step: ConnectStep): Step {
+        return Step(step, SystemClock.elapsedRealtime()).also { _steps.add(it) }
+    }
+
+    internal fun end(step: Step, error: String? = null) {
+        if (step.endMillis < 0) {
+            step.endMillis = SystemClock.elapsedRealtime()
+            step.error = error
+        }
+    }
+
+    internal fun markReady() {
+        readyMillis = SystemClock.elapsedRealtime() - startMillis
+    }
+
+    override fun toString(): String {
+        return "ConnectTimeline(ready=${readyMillis}ms, total=${totalMillis}ms, ${_steps.joinToString()})"
+    }
+}
@@ -6,4 +6,11 @@ import com.cleargrass.lib.blue.core.ScanCallback
 abstract class DeviceScanCallback : ScanCallback {
     override fun onAcceptDevice(scanResult: ScanResult) {}
     abstract fun onDeviceInRange(qingpingDevice: QingpingDevice)
-}
\ No newline at end of file
+
+    /**
+     * 批量模式（BlueManager.scanReportDelayMillis > 0）下每个周期回调一次，默认逐个交给 onDeviceInRange。
+     */
+    open fun onDevicesInRange(qingpingDevices: List<QingpingDevice>) {
+        qingpingDevices.forEach { onDeviceInRange(it) }
+    }
+}
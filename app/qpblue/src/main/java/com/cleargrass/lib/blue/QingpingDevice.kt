@@ -2,9 +2,7 @@ package com.cleargrass.lib.blue
 
 import android.annotation.SuppressLint
 import android.content.Context
-import android.os.Handler
-import android.os.Looper
-import android.util.Log
+import com.cleargrass.lib.blue.core.GattDispatcher
 import com.cleargrass.lib.blue.core.Peripheral
 import com.cleargrass.lib.blue.core.Peripheral.Callback
 import com.cleargrass.lib.blue.core.Peripheral.OnConnectionStatusCallback
@@ -14,12 +12,15 @@ import com.cleargrass.lib.blue.core.UUIDHelper
 import com.cleargrass.lib.blue.core.UUIDs
 import com.cleargrass.lib.blue.data.Protocol
 import com.cleargrass.lib.blue.data.*
+import com.cleargrass.lib.blue.protocal.QpCommand
+import com.cleargrass.lib.blue.protocal.QpDecoder
+import com.cleargrass.lib.log.BlueLog
 import java.lang.IllegalStateException
 import java.util.UUID
+import java.util.concurrent.CopyOnWriteArrayList
 
 data class DebugCommand(val action: String, val uuid: String, val bytes: ByteArray, val succ: Boolean? = null)
 typealias DebugCommandListener = (DebugCommand) -> Unit
-typealias CommandResponder = (ByteArray) -> Unit
 typealias ActionResult = (Boolean) -> Unit
 @SuppressLint("MissingPermission")
 class QingpingDevice constructor(var peripheral: Peripheral) {
@@ -32,300 +33,469 @@ class QingpingDevice constructor(var peripheral: Peripheral) {
         get() = peripheral.advertisingBytes ?: byteArrayOf()
     val rssi: Int
         get() = peripheral.advertisingRSSI
+    /** 滤波后的 RSSI，比 rssi 稳定，适合排序和判断远近 */
+    val smoothedRssi: Int
+        get() = peripheral.smoothedRssi
+    /** 上一次 BlueManager.nearestDevices 中的名次，0 最近，不在其中时为 -1 */
+    val proximityRank: Int
+        get() = peripheral.proximityRank
     val productType: Byte
         get() = scanData[8]
 
+    /**
+     * 把当前广播解析到 advert 中（包括温湿度等读数），advert 可以在多个设备间复用。
+     * @return 广播中是否有 fdcd service data
+     */
+    fun decodeAdvert(advert: QingpingAdvert): Boolean {
+        return advert.decode(scanData)
+    }
+
     private val notifyCallback: ValueCallback<UuidAndBytes>
-    private val reponseCollector = ResponseCollector();
+    // 按特征值和协议类型关联指令与响应，分页响应收集期间保持高速连接参数
+    private val commands = CommandCorrelator { collecting ->
+        if (collecting) peripheral.beginBulkTransfer() else peripheral.endBulkTransfer()
+    }
     public var debugCommandListener: DebugCommandListener?= null
-    private val hander: Handler
+
+    /** 建立 GATT 连接的期限 */
+    var connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT
+    /** 连接之后每一步（发现服务、打开通知、绑定、验证等）的期限，小于等于 0 表示不限 */
+    var connectStepTimeoutMillis = DEFAULT_CONNECT_STEP_TIMEOUT
+    /** 最近一次 connectBind / connectVerify 的步骤耗时，进行中时也可以读取（在 dispatcher 线程更新） */
+    var lastConnectTimeline: ConnectTimeline? = null
+        private set
+    /** connectBind / connectVerify 的所有步骤结束（成功、失败或断开）后在 callbackExecutor 上回调 */
+    var connectTimelineListener: ((ConnectTimeline) -> Unit)? = null
+    private var connectSession: ConnectSession? = null
+
+    /**
+     * 协程 API 使用的通知和断开监听，在 dispatcher 线程回调
+     */
+    internal interface EventListener {
+        fun onNotify(characteristic: UUID, bytes: ByteArray)
+        fun onDisconnected(error: Exception?)
+    }
+    internal val eventListeners = CopyOnWriteArrayList<EventListener>()
+
+    /**
+     * 通知解析、响应收集和延时都在 peripheral 的 dispatcher 线程执行，
+     * 交给使用者的回调通过 deliver 切换到 dispatcher 的 callbackExecutor（默认主线程）。
+     */
+    private val dispatcher: GattDispatcher
+        get() = peripheral.dispatcher
 
     init {
         val bytes = peripheral.advertisingBytes;
         if (bytes != null && bytes.size >= 13) {
             deviceId = peripheral.device.address.replace(":", "")
         }
-        hander = Handler(Looper.getMainLooper())
         notifyCallback = object: ValueCallback<UuidAndBytes>() {
             override fun invoke(error: String?, uuidBytes: UuidAndBytes?) {
                 uuidBytes?.let {uuidBytes ->
-                    Log.d("blue", "Response: ${QpUtils.parseProtocol(uuidBytes.bytes)} Uuid: ${uuidBytes.uuid}")
-                    debugCommandListener?.invoke(DebugCommand("notify", UUIDHelper.simpler(uuidBytes.uuid), uuidBytes.bytes, null))
-                    reponseCollector.collect(uuidBytes)
+                    if (BlueLog.D && BlueLog.isLoggable(BlueLog.DEBUG)) {
+                        // 每个通知都会执行，关闭日志时不解析协议
+                        BlueLog.d("blue", "Response: ${QpUtils.parseProtocol(uuidBytes.bytes)} Uuid: ${uuidBytes.uuid}")
+                    }
+                    notifyDebug(DebugCommand("notify", UUIDHelper.simpler(uuidBytes.uuid), uuidBytes.bytes, null))
+                    commands.collect(uuidBytes.uuid, uuidBytes.bytes)
+                    for (listener in eventListeners) {
+                        listener.onNotify(uuidBytes.uuid, uuidBytes.bytes)
+                    }
                 }
             }
         }
     }
 
-    private fun connect(context: Context, statusChange: OnConnectionStatusCallback) {
-        BlueManager.connect(context, address, object:
-            OnConnectionStatusCallback {
+    private fun deliver(block: () -> Unit) {
+        dispatcher.deliver(Runnable { block() })
+    }
+
+    private fun notifyDebug(command: DebugCommand) {
+        val listener = debugCommandListener ?: return
+        deliver { listener.invoke(command) }
+    }
+
+    /**
+     * 把使用者传入的连接状态回调包装成在 callbackExecutor 上执行的回调。
+     */
+    private fun OnConnectionStatusCallback.delivered(): OnConnectionStatusCallback {
+        val target = this
+        return object : OnConnectionStatusCallback {
             override fun onPeripheralConnected(peripheral: Peripheral?) {
-                peripheral?.retrieveServices(object: Callback() {
+                deliver { target.onPeripheralConnected(peripheral) }
+            }
+            override fun onPeripheralDisconnected(peripheral: Peripheral?, error: Exception?) {
+                deliver { target.onPeripheralDisconnected(peripheral, error) }
+            }
+        }
+    }
+
+    private fun ActionResult.delivered(): ActionResult {
+        val target = this
+        return { value -> deliver { target.invoke(value) } }
+    }
+
+    /**
+     * 一次 connectBind / connectVerify 的状态机。
+     *
+     * 每一步在上一步的 GATT 回调或协议响应中立即开始：GATT 操作本来就在 peripheral 的队列中串行执行，不需要固定等待。
+     * 每一步有各自的期限，连接、发现服务、打开通知、绑定和验证超时视为失败并断开连接；
+     * verify 成功后的 0x0D 和 0016 通知超时只记录，不影响已经返回的结果。
+     * 状态只在 dispatcher 线程修改。
+     */
+    private inner class ConnectSession(
+        val context: Context,
+        val token: ByteArray,
+        val bindFirst: Boolean,
+        val statusChange: OnConnectionStatusCallback,
+        val responder: ActionResult
+    ) : OnConnectionStatusCallback {
+        val timeline = ConnectTimeline()
+        private var current: ConnectTimeline.Step? = null
+        // responder 已回调
+        private var answered = false
+        // 所有步骤已结束，之后只转发断开连接
+        private var closed = false
+        private val deadline = Runnable { onDeadline() }
+        // 响应都在 dispatcher 线程解析
+        private val decoder = QpDecoder()
+
+        fun start() {
+            current = timeline.begin(ConnectStep.CONNECT)
+            try {
+                BlueManager.connect(context, address, this)
+            } catch (e: RuntimeException) {
+                close(e.message ?: e.toString())
+                throw e
+            }
+            // BlueManager.connect 中才确定 peripheral 的 dispatcher，之后再开始计时
+            onDispatcher {
+                if (isAt(ConnectStep.CONNECT)) {
+                    dispatcher.postDelayed(deadline, connectTimeoutMillis)
+                }
+            }
+        }
+
+        fun cancel() {
+            onDispatcher { close("cancelled") }
+        }
+
+        override fun onPeripheralConnected(peripheral: Peripheral?) {
+            onDispatcher {
+                if (!isAt(ConnectStep.CONNECT) || peripheral == null) {
+                    return@onDispatcher
+                }
+                next(ConnectStep.DISCOVER_SERVICES, connectStepTimeoutMillis)
+                peripheral.retrieveServices(object : Callback() {
                     override fun invoke(error: String?, value: Boolean?) {
-                        if (value == true) {
-                            peripheral.registerNotify(UUIDs.SERVICE, UUIDs.COMMON_READ, object: Callback() {
-                                override fun invoke(error: String?, value: Boolean?) {
-                                    if (value == true) {
-                                        hander.postDelayed({
-                                            statusChange.onPeripheralConnected(peripheral)
-                                        }, 500)
-                                    } else {
-                                        peripheral.disconnect()
-                                    }
-                                }
-                            }, this@QingpingDevice.notifyCallback);
-                        } else {
-                            peripheral.disconnect()
-                        }
+                        onDispatcher { onServicesDiscovered(peripheral, error, value == true) }
                     }
                 })
             }
-            override fun onPeripheralDisconnected(peripheral: Peripheral?, error: Exception?) {
+        }
+
+        override fun onPeripheralDisconnected(peripheral: Peripheral?, error: Exception?) {
+            onDispatcher {
+                commands.cancelAll()
+                close("disconnected" + (error?.let { ": ${it.message}" } ?: ""))
+                for (listener in eventListeners) {
+                    listener.onDisconnected(error)
+                }
                 statusChange.onPeripheralDisconnected(peripheral, error)
             }
-        })
-    }
-    private fun bind(context: Context, randomBytes: ByteArray, responder: ActionResult) {
-        var callOnce = false
-        writeInternalCommand(QpUtils.wrapProtocol(0x01, randomBytes)) { bindResponse ->
-            if (QpUtils.parseProtocol(bindResponse)?.resultSuccess != true) {
-                if (!callOnce) {
-                    responder.invoke(false)
-                    callOnce = true;
-                }
-            } else {
-                hander.postDelayed({
-                    verify(context, randomBytes, responder)
-                }, 500)
+        }
+
+        private fun onServicesDiscovered(peripheral: Peripheral, error: String?, succ: Boolean) {
+            if (!isAt(ConnectStep.DISCOVER_SERVICES)) {
+                return
+            }
+            if (!succ) {
+                fail(error ?: "retrieveServices failed", disconnect = true)
+                return
             }
+            next(ConnectStep.ENABLE_NOTIFY, connectStepTimeoutMillis)
+            peripheral.registerNotify(UUIDs.SERVICE, UUIDs.COMMON_READ, object : Callback() {
+                override fun invoke(error: String?, value: Boolean?) {
+                    onDispatcher { onNotifyEnabled(peripheral, error, value == true) }
+                }
+            }, notifyCallback)
         }
-    }
-    private fun verify(context: Context, randomBytes: ByteArray, responder: ActionResult) {
-        var callOnce = false
-        writeInternalCommand(QpUtils.wrapProtocol(0x02, randomBytes)) { verifyResponse ->
-            if (QpUtils.parseProtocol(verifyResponse)?.resultSuccess != true) {
-                if (!callOnce) {
-                    responder.invoke(false)
-                    callOnce = true;
+
+        private fun onNotifyEnabled(peripheral: Peripheral, error: String?, succ: Boolean) {
+            if (!isAt(ConnectStep.ENABLE_NOTIFY)) {
+                return
+            }
+            if (!succ) {
+                fail(error ?: "registerNotify(0002) failed", disconnect = true)
+                return
+            }
+            statusChange.onPeripheralConnected(peripheral)
+            if (bindFirst) {
+                next(ConnectStep.BIND, connectStepTimeoutMillis)
+                writeSessionCommand(QpCommand.Bind(token).encode()) { response ->
+                    onDispatcher { onBindResponse(response) }
                 }
             } else {
-                if (!callOnce) {
-                    responder.invoke(true)
-                    callOnce = true;
-                }
-                hander.postDelayed({
-                    writeInternalCommand(QpUtils.wrapProtocol(0x0D)) {
-                        peripheral.registerNotify(
-                            UUIDs.SERVICE,
-                            UUIDs.MY_READ,
-                            object : Callback() {
-                                override fun invoke(error: String?, value: Boolean?) {
-                                    Log.e(
-                                        "blue",
-                                        "registerNotify(0016):" + (error ?: "") + "result: $value"
-                                    )
-                                }
-                            },
-                            this@QingpingDevice.notifyCallback
-                        );
-                    }
-                }, 500)
+                verify()
             }
         }
-    }
 
-    fun connectBind(context: Context, tokenString: String, statusChange: OnConnectionStatusCallback, responder: ActionResult) {
-        if (!tokenString.isGoodToken()) {
-            throw IllegalArgumentException("Invalid token: $tokenString")
+        private fun onBindResponse(response: ByteArray) {
+            if (!isAt(ConnectStep.BIND)) {
+                return
+            }
+            if (decoder.decode(response)?.isSuccess != true) {
+                fail("bind rejected")
+                return
+            }
+            verify()
         }
-        connect(context, object :
-            OnConnectionStatusCallback {
-            override fun onPeripheralConnected(peripheral: Peripheral?) {
-                statusChange.onPeripheralConnected(peripheral)
-                bind(context, QpUtils.stringToBytes(tokenString), object: ActionResult{
-                    override fun invoke(value: Boolean) {
-                        responder.invoke(value)
-                        peripheral?.setOnConnectStatusChange(statusChange)
+
+        private fun verify() {
+            next(ConnectStep.VERIFY, connectStepTimeoutMillis)
+            writeSessionCommand(QpCommand.Verify(token).encode()) { response ->
+                onDispatcher { onVerifyResponse(response) }
+            }
+        }
+
+        private fun onVerifyResponse(response: ByteArray) {
+            if (!isAt(ConnectStep.VERIFY)) {
+                return
+            }
+            if (decoder.decode(response)?.isSuccess != true) {
+                fail("verify rejected")
+                return
+            }
+            next(ConnectStep.ENABLE_DATA_CHANNEL, connectStepTimeoutMillis)
+            timeline.markReady()
+            answer(true)
+            writeSessionCommand(QpCommand.EnableDataChannel.encode()) {
+                onDispatcher { onDataChannelEnabled() }
+            }
+        }
+
+        private fun onDataChannelEnabled() {
+            if (!isAt(ConnectStep.ENABLE_DATA_CHANNEL)) {
+                return
+            }
+            next(ConnectStep.ENABLE_DATA_NOTIFY, connectStepTimeoutMillis)
+            peripheral.registerNotify(UUIDs.SERVICE, UUIDs.MY_READ, object : Callback() {
+                override fun invoke(error: String?, value: Boolean?) {
+                    BlueLog.e("blue", "registerNotify(0016):" + (error ?: "") + "result: $value")
+                    onDispatcher {
+                        if (!isAt(ConnectStep.ENABLE_DATA_NOTIFY)) {
+                            return@onDispatcher
+                        }
+                        if (value == true) {
+                            close(null)
+                        } else {
+                            close(error ?: "registerNotify(0016) failed")
+                        }
                     }
-                })
+                }
+            }, notifyCallback)
+        }
+
+        private fun onDeadline() {
+            val step = current ?: return
+            BlueLog.e("blue", "connect step ${step.step} timeout")
+            // verify 成功之后的步骤超时不断开
+            fail("timeout", disconnect = !answered)
+        }
+
+        private fun isAt(step: ConnectStep): Boolean {
+            return !closed && current?.step == step
+        }
+
+        /**
+         * 结束当前步骤并开始下一步
+         */
+        private fun next(step: ConnectStep, timeoutMillis: Long) {
+            dispatcher.removeCallbacks(deadline)
+            current?.let { timeline.end(it) }
+            current = timeline.begin(step)
+            if (timeoutMillis > 0) {
+                dispatcher.postDelayed(deadline, timeoutMillis)
             }
-            override fun onPeripheralDisconnected(peripheral: Peripheral?, error: Exception?) {
-                statusChange.onPeripheralDisconnected(peripheral, error)
-                responder.invoke(false)
-                peripheral?.setOnConnectStatusChange(statusChange)
+        }
+
+        private fun fail(error: String, disconnect: Boolean = false) {
+            close(error)
+            if (disconnect) {
+                peripheral.disconnect(true)
             }
-        })
+        }
+
+        /**
+         * 结束状态机，error 为 null 表示全部步骤成功
+         */
+        private fun close(error: String?) {
+            if (closed) {
+                return
+            }
+            closed = true
+            dispatcher.removeCallbacks(deadline)
+            current?.let { timeline.end(it, error) }
+            current = null
+            answer(false)
+            BlueLog.d("blue", "$address $timeline")
+            val listener = connectTimelineListener
+            if (listener != null) {
+                deliver { listener.invoke(timeline) }
+            }
+        }
+
+        private fun answer(value: Boolean) {
+            if (!answered) {
+                answered = true
+                responder.invoke(value)
+            }
+        }
     }
-    fun connectVerify(context: Context, tokenString: String, statusChange: OnConnectionStatusCallback, responder: ActionResult) {
+
+    private fun onDispatcher(block: () -> Unit) {
+        if (dispatcher.isDispatchThread) {
+            block()
+        } else {
+            dispatcher.post(Runnable { block() })
+        }
+    }
+
+    private fun startSession(context: Context, tokenString: String, bindFirst: Boolean, userStatusChange: OnConnectionStatusCallback, userResponder: ActionResult) {
         if (!tokenString.isGoodToken()) {
             throw IllegalArgumentException("Invalid token: $tokenString")
         }
-        connect(context, object :
-            OnConnectionStatusCallback {
-            override fun onPeripheralConnected(peripheral: Peripheral?) {
-                statusChange.onPeripheralConnected(peripheral)
-                verify(context, QpUtils.stringToBytes(tokenString), object: ActionResult{
-                    override fun invoke(value: Boolean) {
-                        responder.invoke(value)
-                        peripheral?.setOnConnectStatusChange(statusChange)
-                    }
-                })
-            }
-            override fun onPeripheralDisconnected(peripheral: Peripheral?, error: Exception?) {
-                statusChange.onPeripheralDisconnected(peripheral, error)
-                responder.invoke(false)
-                peripheral?.setOnConnectStatusChange(statusChange)
-            }
-        })
+        connectSession?.cancel()
+        val session = ConnectSession(context, QpUtils.stringToBytes(tokenString), bindFirst,
+            userStatusChange.delivered(), userResponder.delivered())
+        connectSession = session
+        lastConnectTimeline = session.timeline
+        session.start()
+    }
+
+    /**
+     * 连接、绑定并验证，验证成功后 responder 返回 true。
+     * 各步骤耗时见 lastConnectTimeline / connectTimelineListener。
+     */
+    fun connectBind(context: Context, tokenString: String, statusChange: OnConnectionStatusCallback, responder: ActionResult) {
+        startSession(context, tokenString, true, statusChange, responder)
     }
+
+    /**
+     * 连接并验证，验证成功后 responder 返回 true。
+     */
+    fun connectVerify(context: Context, tokenString: String, statusChange: OnConnectionStatusCallback, responder: ActionResult) {
+        startSession(context, tokenString, false, statusChange, responder)
+    }
+
+    /**
+     * 在 0001 上发送指令，响应从 0002 按协议类型匹配，在 callbackExecutor 上回调。
+     * 不同类型的指令可以同时等待响应，相同类型的按顺序排队。
+     */
     fun writeInternalCommand(command: ByteArray, responder: CommandResponder) {
         if (command == null || command.size < 2) {
             return;
         }
-        reponseCollector.off()
-        reponseCollector.setResponder(command[1], UUIDs.COMMON_READ, responder)
-        peripheral.write(UUIDs.SERVICE, UUIDs.COMMON_WRITE, command, if (debugCommandListener != null ) object : Callback() {
-            override fun invoke(error: String?, value: Boolean?) {
-                if (value == false) {
-                    reponseCollector.off()
-                    debugCommandListener?.invoke(DebugCommand("write Error", "0001", command, false))
-                }
-            }
-        } else null)
-        debugCommandListener?.invoke(DebugCommand("write", "0001", command))
+        writeCorrelated(UUIDs.COMMON_WRITE, UUIDs.COMMON_READ, "0001", command) { response -> deliver { responder(response) } }
+    }
+
+    /**
+     * ConnectSession 使用，响应在 dispatcher 线程回调，不经过 callbackExecutor
+     */
+    private fun writeSessionCommand(command: ByteArray, responder: CommandResponder) {
+        writeCorrelated(UUIDs.COMMON_WRITE, UUIDs.COMMON_READ, "0001", command, responder)
     }
+
+    /**
+     * 在 0015 上发送指令，响应从 0016 按协议类型匹配，在 callbackExecutor 上回调。
+     */
     fun writeCommand(command: ByteArray, responder: CommandResponder) {
         if (command == null || command.size < 2) {
             return;
         }
-        reponseCollector.off()
-        reponseCollector.setResponder(command[1], UUIDs.MY_READ, responder)
-        peripheral.write(UUIDs.SERVICE, UUIDs.MY_WRITE, command, if (debugCommandListener != null ) object : Callback() {
+        writeCorrelated(UUIDs.MY_WRITE, UUIDs.MY_READ, "0015", command) { response -> deliver { responder(response) } }
+    }
+
+    /**
+     * 发送指令，供协程 API 使用。responder / onError 在 dispatcher 线程回调，不经过 callbackExecutor。
+     *
+     * @param common true 时在 0001 上发送，否则在 0015 上发送
+     * @param onError 写入失败或断开连接时回调，之后不会再有响应
+     * @return 调用后不再等待响应
+     */
+    internal fun writeCancellable(common: Boolean, command: ByteArray, responder: CommandResponder, onError: (String) -> Unit): Runnable {
+        val readCharacteristic = if (common) UUIDs.COMMON_READ else UUIDs.MY_READ
+        if (common) {
+            writeCorrelated(UUIDs.COMMON_WRITE, readCharacteristic, "0001", command, responder, onError)
+        } else {
+            writeCorrelated(UUIDs.MY_WRITE, readCharacteristic, "0015", command, responder, onError)
+        }
+        return Runnable {
+            commands.cancel(readCharacteristic, command[1], responder)
+            // 还在队列中的写入不再发送；已经发出的无法撤回，响应到达时没有等待者，会被丢弃
+            peripheral.cancelQueuedWrite(if (common) UUIDs.COMMON_WRITE else UUIDs.MY_WRITE, command)
+        }
+    }
+
+    private fun writeCorrelated(writeCharacteristic: UUID, readCharacteristic: UUID, name: String, command: ByteArray, responder: CommandResponder,
+                                onError: ((String) -> Unit)? = null) {
+        val type = command[1]
+        commands.expect(readCharacteristic, type, responder, onError?.let { { it.invoke("Device disconnected") } })
+        peripheral.write(UUIDs.SERVICE, writeCharacteristic, command, object : Callback() {
             override fun invoke(error: String?, value: Boolean?) {
                 if (value == false) {
-                    reponseCollector.off()
-                    debugCommandListener?.invoke(DebugCommand("write Error", "0015", command, false))
+                    // 写入失败不会有响应，不再等待，后面相同类型的指令继续
+                    commands.cancel(readCharacteristic, type, responder)
+                    notifyDebug(DebugCommand("write Error", name, command, false))
+                    onError?.invoke(error ?: "write failed")
                 }
             }
-        } else null)
-        debugCommandListener?.invoke(DebugCommand("write", "0015", command))
+        })
+        notifyDebug(DebugCommand("write", name, command))
+    }
+
+    /**
+     * 查询正在接收的分页响应（如 wifi 列表 0x07、clientid 0x1E）还缺哪些页，可用于判断是否卡在丢失的分页上。
+     *
+     * @param characteristic UUIDs.MY_READ 或 UUIDs.COMMON_READ
+     * @return 缺少的页码（从 1 开始），没有在接收分页时为空
+     */
+    fun missingResponsePages(characteristic: UUID, type: Byte): IntArray {
+        return commands.missingPages(characteristic, type)
     }
 
-    fun readDeviceInfoValue(characteristic: UUID, responder: CommandResponder) {
-        return readValue(UUIDs.SERVICE, characteristic, responder)
+    fun readDeviceInfoValue(characteristic: UUID, responder: CommandResponder, onError: ((String) -> Unit)? = null) {
+        return readValue(UUIDs.SERVICE, characteristic, responder, onError)
     }
-    fun readValue(service: UUID, characteristic: UUID, responder: CommandResponder) {
+
+    /**
+     * 读取特征值。responder / onError 在 callbackExecutor 上回调。
+     *
+     * @param onError 读取失败、超时或断开连接时回调，为 null 时只记录日志
+     */
+    fun readValue(service: UUID, characteristic: UUID, responder: CommandResponder, onError: ((String) -> Unit)? = null) {
         peripheral.read(service, characteristic, object: ValueCallback<UuidAndBytes>() {
             override fun invoke(error: String?, value: UuidAndBytes?) {
+                // 在 dispatcher 线程执行，这里抛出异常会让进程崩溃，也会打断 failAllOperations 中剩余操作的回调
                 value?.let {
-                    debugCommandListener?.invoke(DebugCommand("read", UUIDHelper.simpler(value.uuid), it.bytes))
-                    responder(it.bytes)
+                    notifyDebug(DebugCommand("read", UUIDHelper.simpler(value.uuid), it.bytes))
+                    deliver { responder(it.bytes) }
                 }
                 if (error != null) {
-                    throw Exception(error)
+                    BlueLog.e("blue", "read ${UUIDHelper.simpler(characteristic)} failed: $error")
+                    onError?.let { deliver { it.invoke(error) } }
                 }
             }
         })
     }
 
     fun disconnect(focus: Boolean = false) {
+        commands.cancelAll()
         peripheral.disconnect(focus)
     }
 
-}
-
-/**
- * 用于接收蓝牙指令，
- * 并调用相应的回调函数
- * 这里的作用是收集“长”命令（wifi列表），收到所有数据后，再回调。
- */
-internal class ResponseCollector() {
-    var waitingType: Byte = 0
-    var waitingCharacteristic: UUID? = null
-    var isCollecting = false
-    private var nextResponder: CommandResponder?= null
-    private var respMap = mutableMapOf<Int, ByteArray>()
-    public fun setResponder(type: Byte, fromCharacteristic: UUID, responder: CommandResponder) {
-        if (isCollecting) {
-            throw IllegalStateException("ResponseCollector is collecting")
-        }
-        if (waitingType > 0) {
-            throw IllegalStateException("ResponseCollector is waiting for 0x${waitingType.toString(16)}, not 0x${type.toString(16)}")
-        }
-        waitingCharacteristic = fromCharacteristic
-        nextResponder = responder
-        waitingType = type
-        respMap.clear()
-    }
-    public fun collect(uuidAndBytes: UuidAndBytes) {
-        return collect(uuidAndBytes.uuid, uuidAndBytes.bytes)
+    companion object {
+        const val DEFAULT_CONNECT_TIMEOUT = 15_000L
+        const val DEFAULT_CONNECT_STEP_TIMEOUT = 5_000L
     }
-    public fun collect(fromUUID: UUID, bytes: ByteArray) {
-        if (waitingCharacteristic != fromUUID) {
-            // 如果不是目标特征的响应 则忽略
-            return
-        }
-        if (waitingType == 0.toByte() || nextResponder == null) {
-            // 不是一马事儿，忽略
-            return
-        }
-        /**
-         *
-         * 目前 0x1E 命令 是多页的。是取clientid的
-         * 目前 0x07 和 0x04 命令 是多页的。都是获取wifi列表命令，0x04已废弃。
-         */
-        val reponseHasMultiPage =
-                (waitingCharacteristic == UUIDs.MY_READ
-                        && (waitingType == 0x7.toByte() || waitingType == 0x4.toByte()))
-                || (waitingCharacteristic == UUIDs.COMMON_READ && waitingType == 0x1e.toByte())
-        if (bytes[1].isFF() || !reponseHasMultiPage) {
-            // 是 04FF010000 格式数据，或 非分页，直接回调
-            nextResponder?.let { responder ->
-                /**
-                 * 先设置reponder为空，再回调。
-                 * 防止在回调中再次调用
-                 * 防止invoke里的responder无法被设置
-                 */
-                off();
-                responder.invoke(bytes)
-            }
-            return
-        }
-
-        isCollecting = true;
-        Protocol.from(bytes, reponseHasMultiPage)?.let { protocol ->
-            if (protocol.type == waitingType) {
-                respMap[protocol.page] = protocol.data!!
-            }
-            if (respMap.count() == protocol.count) {
-                // 已收集到所有
-                // 组合成一个符合协议格式的数据,不写长度，因为可能长度已经超出byte了。
-                var data = byteArrayOf(-1, waitingType)
-                for (i in 1..protocol.count) {
-                    data += respMap[i]!!
-                }
-                if (!reponseHasMultiPage) {
-                    data[0] = (data.size - 1).toByte()
-                }
-                nextResponder?.let { responder ->
-                    /**
-                     * 先设置reponder为空，再回调。
-                     * 防止在回调中再次调用
-                     * 防止invoke里的responder无法被设置
-                     */
-                    off();
-                    responder.invoke(data)
-                }
-            }
-        }
-    }
-
-    fun off() {
-        nextResponder = null
-        waitingType = 0
-        waitingCharacteristic = null
-        isCollecting = false
-        respMap.clear()
-    }
-}
\ No newline at end of file
+}
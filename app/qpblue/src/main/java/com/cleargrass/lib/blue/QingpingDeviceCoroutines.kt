@@ -0,0 +1,162 @@
+package com.cleargrass.lib.blue
+
+import android.content.Context
+import com.cleargrass.lib.blue.core.Peripheral
+import com.cleargrass.lib.blue.core.Peripheral.OnConnectionStatusCallback
+import com.cleargrass.lib.blue.data.display
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.IOException
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/*
+ * QingpingDevice 的协程 API。
+ *
+ * 挂起函数不阻塞线程，可以在同一个 scope 中同时操作多个设备。协程取消时：
+ *  - connectAndVerify / awaitDisconnect 断开连接，peripheral 队列中的 GATT 操作直接失败；
+ *  - sendCommand 不再等待响应，指令还在 GATT 队列中时一并移除，后面相同类型的指令继续；
+ *  - notifications 移除监听。
+ */
+
+/**
+ * 连接、验证或指令失败
+ *
+ * @param timeline 连接失败时为这次连接的步骤耗时
+ */
+class QingpingException(message: String, val timeline: ConnectTimeline? = null, cause: Throwable? = null) : IOException(message, cause)
+
+/**
+ * 只执行第一次恢复。GATT 回调在 dispatcher 线程，状态检查在调用者线程，
+ * 两边可能同时通过 isActive 检查，第二次 resume 会抛出 IllegalStateException。
+ */
+private class ResumeOnce<T>(private val cont: CancellableContinuation<T>) {
+    private val resumed = AtomicBoolean()
+
+    fun resume(value: T) {
+        if (resumed.compareAndSet(false, true)) {
+            cont.resume(value)
+        }
+    }
+
+    fun resumeWithException(exception: Throwable) {
+        if (resumed.compareAndSet(false, true)) {
+            cont.resumeWithException(exception)
+        }
+    }
+}
+
+/**
+ * 连接并验证（bind 为 true 时先绑定），验证成功后返回，之后可以发送指令。
+ * 失败时断开连接并抛出 QingpingException。
+ */
+suspend fun QingpingDevice.connectAndVerify(context: Context, token: String, bind: Boolean = false) {
+    suspendCancellableCoroutine<Unit> { cont ->
+        val once = ResumeOnce(cont)
+        cont.invokeOnCancellation { disconnect(true) }
+        val statusChange = object : OnConnectionStatusCallback {
+            override fun onPeripheralConnected(peripheral: Peripheral?) {
+            }
+            override fun onPeripheralDisconnected(peripheral: Peripheral?, error: Exception?) {
+                // 验证之前断开时 responder 返回 false
+            }
+        }
+        val responder: ActionResult = { succ ->
+            if (!cont.isActive) {
+                // 已经取消
+            } else if (succ) {
+                once.resume(Unit)
+            } else {
+                val timeline = lastConnectTimeline
+                if (peripheral.isConnected) {
+                    disconnect()
+                }
+                val step = timeline?.failedStep
+                once.resumeWithException(QingpingException("connect $address failed" + (step?.let { ": $it" } ?: ""), timeline))
+            }
+        }
+        if (bind) {
+            connectBind(context, token, statusChange, responder)
+        } else {
+            connectVerify(context, token, statusChange, responder)
+        }
+    }
+}
+
+/**
+ * 发送指令并等待响应
+ *
+ * @param common true 时在 0001 上发送、从 0002 接收，否则使用 0015 / 0016
+ * @return 完整的响应，分页响应已经拼接好
+ * @throws QingpingException 写入失败或等待时断开连接
+ */
+suspend fun QingpingDevice.sendCommand(command: ByteArray, common: Boolean = false): ByteArray {
+    require(command.size >= 2) { "Invalid command: ${command.display()}" }
+    return suspendCancellableCoroutine { cont ->
+        val once = ResumeOnce(cont)
+        val cancel = writeCancellable(common, command, { response ->
+            once.resume(response)
+        }, { error ->
+            once.resumeWithException(QingpingException("${command.display()}: $error"))
+        })
+        cont.invokeOnCancellation { cancel.run() }
+    }
+}
+
+/**
+ * 某个特征值的通知（如 UUIDs.COMMON_READ / UUIDs.MY_READ）。
+ * 断开连接时结束，有异常时以 QingpingException 结束。通知不会丢弃，收集慢时在内存中排队。
+ */
+fun QingpingDevice.notifications(characteristic: UUID): Flow<ByteArray> = callbackFlow {
+    val target = characteristic
+    val listener = object : QingpingDevice.EventListener {
+        override fun onNotify(characteristic: UUID, bytes: ByteArray) {
+            if (characteristic == target) {
+                trySend(bytes)
+            }
+        }
+        override fun onDisconnected(error: Exception?) {
+            close(error?.let { QingpingException("$address disconnected", cause = it) })
+        }
+    }
+    eventListeners.add(listener)
+    if (!peripheral.isConnected) {
+        close()
+    }
+    awaitClose { eventListeners.remove(listener) }
+}.buffer(Channel.UNLIMITED)
+
+/**
+ * 挂起直到连接断开，返回断开的原因。取消时主动断开连接，
+ * 可以用所在协程的生命周期管理连接。
+ */
+suspend fun QingpingDevice.awaitDisconnect(): Exception? {
+    return suspendCancellableCoroutine { cont ->
+        val once = ResumeOnce(cont)
+        val listener = object : QingpingDevice.EventListener {
+            override fun onNotify(characteristic: UUID, bytes: ByteArray) {
+            }
+            override fun onDisconnected(error: Exception?) {
+                eventListeners.remove(this)
+                once.resume(error)
+            }
+        }
+        eventListeners.add(listener)
+        cont.invokeOnCancellation {
+            eventListeners.remove(listener)
+            disconnect(true)
+        }
+        if (!peripheral.isConnected) {
+            eventListeners.remove(listener)
+            // onDisconnected 可能已经或正在恢复，只有先到的一方生效
+            once.resume(null)
+        }
+    }
+}
@@ -32,15 +32,19 @@ object QpUtils {
      *           长度  验证  数据
      *       对于 0x01 07
      *           长度  取wifi列表
+     * 常用指令可以用 protocal.QpCommand 构建。
      * @param protocol 协议类型
      * @param bytes 数据
      */
     fun wrapProtocol(protocol: Byte, bytes: ByteArray? = null): ByteArray {
-        return if (bytes != null) {
-            byteArrayOf((bytes.size + 1).toByte(), protocol) + bytes
-        } else {
-            byteArrayOf(1, protocol)
+        val size = bytes?.size ?: 0
+        val frame = ByteArray(size + 2)
+        frame[0] = (size + 1).toByte()
+        frame[1] = protocol
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, frame, 2, size)
         }
+        return frame
     }
     fun parseProtocol(bytes: ByteArray, withPage:Boolean = false): Protocol? {
         if (bytes.size < 2) {
@@ -52,7 +56,7 @@ object QpUtils {
             // 第三个字节是0x01，表示协议类型是 01 （绑定）
             // 第四五个字节是0x00 00，表示成功，在解析时：如果是 0x01 00 ，从后向前取每一个字节成为： 00 01，则==1
 
-            val data = bytes.sliceArray(3 until bytes.size)
+            val data = bytes.copyOfRange(minOf(3, bytes.size), bytes.size)
             val succ = data.number() == 0
 
             return Protocol(bytes[2], succ, data)
@@ -61,17 +65,16 @@ object QpUtils {
             // 其它如：0x06081122334466
             val type = bytes[1]
             // 从第三位开始，都是数据
-            val data = bytes.sliceArray(2 until bytes.size )
             val succ = true
-            return if (!withPage || bytes.size < 3) {
-                Protocol(type, succ, data)
+            return if (!withPage || bytes.size < 4) {
+                Protocol(type, succ, bytes.copyOfRange(2, bytes.size))
             } else {
                 // 对于长数据。如  0x13-07-1e-01-22-51-69-6e-67-70-69-6e-67-20-41-50-22-2c-34-2c
                 // 第三位1e表示共几条，每四位的01表示这是第几条。计数从1开始。
-                // 第五位22开始，都是数据
+                // 第五位22开始，都是数据，只复制一次
                 val count = bytes[2].toUByte().toInt()
                 val page = bytes[3].toUByte().toInt()
-                Protocol(type, succ, data.sliceArray(2 until data.size), count, page)
+                Protocol(type, succ, bytes.copyOfRange(4, bytes.size), count, page)
             }
         }
     }
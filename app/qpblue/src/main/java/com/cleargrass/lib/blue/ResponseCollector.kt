@@ -0,0 +1,210 @@
+package com.cleargrass.lib.blue
+
+import com.cleargrass.lib.blue.core.UUIDs
+import com.cleargrass.lib.blue.data.isFF
+import java.lang.IllegalStateException
+import java.util.UUID
+
+typealias CommandResponder = (ByteArray) -> Unit
+
+/**
+ * 用于接收蓝牙指令，
+ * 并调用相应的回调函数
+ * 这里的作用是收集“长”命令（wifi列表），收到所有数据后，再回调。
+ *
+ * 分页帧格式：长度 | 类型 | 总页数 | 页码(从 1 开始) | 数据。
+ * 收到第一帧时按总页数分配缓冲区，每页按固定间隔放到自己的位置（只复制一次），
+ * 收齐后一次拼接成结果，重复的页忽略，[missingPages] 可以查询还缺哪些页。
+ */
+internal class ResponseCollector(private val onCollectingChanged: ((Boolean) -> Unit)? = null) {
+    var waitingType: Byte = 0
+    var waitingCharacteristic: UUID? = null
+    var isCollecting = false
+    private var nextResponder: CommandResponder?= null
+
+    // 分页重组的状态，缓冲区在多次响应之间复用
+    private var pageCount = 0
+    private var receivedPages = 0
+    private var pageStride = 0
+    private var pageBuffer = ByteArray(0)
+    // 每页数据的长度，-1 表示还没收到
+    private var pageLengths = IntArray(0)
+
+    /** 本次响应中收到的重复页数 */
+    var duplicatePages = 0
+        private set
+    public fun setResponder(type: Byte, fromCharacteristic: UUID, responder: CommandResponder) {
+        if (isCollecting) {
+            throw IllegalStateException("ResponseCollector is collecting")
+        }
+        if (waitingType > 0) {
+            throw IllegalStateException("ResponseCollector is waiting for 0x${waitingType.toString(16)}, not 0x${type.toString(16)}")
+        }
+        waitingCharacteristic = fromCharacteristic
+        nextResponder = responder
+        waitingType = type
+        resetPages()
+    }
+    public fun collect(fromUUID: UUID, bytes: ByteArray) {
+        if (waitingCharacteristic != fromUUID) {
+            // 如果不是目标特征的响应 则忽略
+            return
+        }
+        if (waitingType == 0.toByte() || nextResponder == null) {
+            // 不是一马事儿，忽略
+            return
+        }
+        /**
+         *
+         * 目前 0x1E 命令 是多页的。是取clientid的
+         * 目前 0x07 和 0x04 命令 是多页的。都是获取wifi列表命令，0x04已废弃。
+         */
+        val reponseHasMultiPage =
+                (waitingCharacteristic == UUIDs.MY_READ
+                        && (waitingType == 0x7.toByte() || waitingType == 0x4.toByte()))
+                || (waitingCharacteristic == UUIDs.COMMON_READ && waitingType == 0x1e.toByte())
+        if (bytes[1].isFF() || !reponseHasMultiPage) {
+            // 是 04FF010000 格式数据，或 非分页，直接回调
+            nextResponder?.let { responder ->
+                /**
+                 * 先设置reponder为空，再回调。
+                 * 防止在回调中再次调用
+                 * 防止invoke里的responder无法被设置
+                 */
+                off();
+                responder.invoke(bytes)
+            }
+            return
+        }
+
+        if (bytes.size < 4 || bytes[1] != waitingType) {
+            return
+        }
+        val count = bytes[2].toInt() and 0xFF
+        val page = bytes[3].toInt() and 0xFF
+        if (count == 0) {
+            return
+        }
+        if (!isCollecting) {
+            isCollecting = true
+            onCollectingChanged?.invoke(true)
+        }
+        if (count != pageCount) {
+            // 第一帧，或设备重新开始发送
+            beginPages(count, bytes.size - 4)
+        }
+        storePage(page, bytes, 4, bytes.size - 4)
+        if (receivedPages == pageCount) {
+            // 已收集到所有
+            // 组合成一个符合协议格式的数据,不写长度，因为可能长度已经超出byte了。
+            val data = assemblePages()
+            nextResponder?.let { responder ->
+                /**
+                 * 先设置reponder为空，再回调。
+                 * 防止在回调中再次调用
+                 * 防止invoke里的responder无法被设置
+                 */
+                off();
+                responder.invoke(data)
+            }
+        }
+    }
+
+    /**
+     * @return 还没收到的页码（从 1 开始）；没有在收集分页时为空
+     */
+    fun missingPages(): IntArray {
+        if (pageCount == 0) {
+            return IntArray(0)
+        }
+        val missing = IntArray(pageCount - receivedPages)
+        var n = 0
+        for (i in 0 until pageCount) {
+            if (pageLengths[i] < 0) {
+                missing[n++] = i + 1
+            }
+        }
+        return missing
+    }
+
+    private fun beginPages(count: Int, firstLength: Int) {
+        pageCount = count
+        receivedPages = 0
+        duplicatePages = 0
+        pageStride = maxOf(firstLength, MIN_PAGE_STRIDE)
+        if (pageBuffer.size < count * pageStride) {
+            pageBuffer = ByteArray(count * pageStride)
+        }
+        if (pageLengths.size < count) {
+            pageLengths = IntArray(count)
+        }
+        pageLengths.fill(-1, 0, count)
+    }
+
+    private fun storePage(page: Int, bytes: ByteArray, offset: Int, length: Int) {
+        if (page < 1 || page > pageCount) {
+            return
+        }
+        val index = page - 1
+        if (pageLengths[index] >= 0) {
+            duplicatePages++
+            return
+        }
+        if (length > pageStride) {
+            restride(length)
+        }
+        System.arraycopy(bytes, offset, pageBuffer, index * pageStride, length)
+        pageLengths[index] = length
+        receivedPages++
+    }
+
+    // 某一页比第一页长（很少见），按新的间隔重新排列已收到的页
+    private fun restride(stride: Int) {
+        val buffer = ByteArray(pageCount * stride)
+        for (i in 0 until pageCount) {
+            if (pageLengths[i] > 0) {
+                System.arraycopy(pageBuffer, i * pageStride, buffer, i * stride, pageLengths[i])
+            }
+        }
+        pageBuffer = buffer
+        pageStride = stride
+    }
+
+    private fun assemblePages(): ByteArray {
+        var total = 0
+        for (i in 0 until pageCount) {
+            total += pageLengths[i]
+        }
+        val data = ByteArray(2 + total)
+        data[0] = -1
+        data[1] = waitingType
+        var position = 2
+        for (i in 0 until pageCount) {
+            System.arraycopy(pageBuffer, i * pageStride, data, position, pageLengths[i])
+            position += pageLengths[i]
+        }
+        return data
+    }
+
+    private fun resetPages() {
+        pageCount = 0
+        receivedPages = 0
+        duplicatePages = 0
+    }
+
+    fun off() {
+        if (isCollecting) {
+            onCollectingChanged?.invoke(false)
+        }
+        nextResponder = null
+        waitingType = 0
+        waitingCharacteristic = null
+        isCollecting = false
+        resetPages()
+    }
+
+    companion object {
+        // 默认 MTU 下每页最多 20 字节
+        private const val MIN_PAGE_STRIDE = 20
+    }
+}
@@ -0,0 +1,88 @@
+package com.cleargrass.lib.blue
+
+import android.bluetooth.le.ScanResult
+import android.os.SystemClock
+import com.cleargrass.lib.blue.core.PeripheralRegistry
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.abs
+
+/**
+ * 扫描结果去重。
+ *
+ * 设备注册表、RSSI 平滑和最后发现时间由 BlueManager 在分发给订阅之前对每条广播更新一次，这里只负责去重和节流：
+ * 只有首次发现、广播内容变化（比较哈希）或 RSSI 变化超过阈值时才需要回调，
+ * 并且同一设备两次回调之间至少间隔 throttleMillis。被节流的变化会在下一次广播时补发。
+ *
+ * 时间由调用者传入：真实扫描使用 [clock]，回放使用录制的时间戳，因此回放时的节流与现场一致，与回放速度无关。
+ *
+ * 每个扫描订阅一个实例，可能在订阅指定的线程调用。remove 在淘汰设备的线程（任意 getOrCreate 的调用者）调用，
+ * 因此 entries 不加全局锁，只在单个 Entry 上同步，持锁期间不调用注册表，避免多个去重器之间互相等待。
+ */
+internal class ScanDeduplicator(
+    private val registry: PeripheralRegistry,
+    private val clock: () -> Long = { SystemClock.elapsedRealtime() }
+) {
+
+    var throttleMillis: Long = 1000
+    var rssiThreshold: Int = 5
+
+    private class Entry(val device: QingpingDevice) {
+        var emitted = false
+        var emittedHash = 0
+        var emittedRssi = 0
+        var emittedAt = 0L
+    }
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+
+    /**
+     * @return 需要回调的设备，广播没有明显变化或被节流时返回 null
+     */
+    fun offer(scanResult: ScanResult): QingpingDevice? {
+        return offer(scanResult.device.address, scanResult.rssi, scanResult.scanRecord?.bytes ?: byteArrayOf(), clock())
+    }
+
+    /**
+     * 需要先通过 BlueManager 把广播记录到注册表
+     *
+     * @param now 收到广播的时间，毫秒，与 throttleMillis 比较
+     */
+    fun offer(address: String, rssi: Int, bytes: ByteArray, now: Long): QingpingDevice? {
+        // BlueManager 中的实例可能已被替换（例如先通过 MAC 连接过），以它为准；期间被淘汰时不回调
+        val current = registry.get(address) ?: return null
+        val existing = entries[address]
+        val entry = if (existing != null && existing.device.peripheral === current) {
+            existing
+        } else {
+            val created = Entry(QingpingDevice(current))
+            if (existing == null) {
+                entries.putIfAbsent(address, created) ?: created
+            } else if (entries.replace(address, existing, created)) {
+                created
+            } else {
+                // 同时被其它线程替换或移除，以 map 中的为准
+                entries[address] ?: return null
+            }
+        }
+        val hash = bytes.contentHashCode()
+
+        synchronized(entry) {
+            val changed = !entry.emitted || hash != entry.emittedHash || abs(rssi - entry.emittedRssi) >= rssiThreshold
+            if (!changed || (entry.emitted && now - entry.emittedAt < throttleMillis)) {
+                return null
+            }
+            entry.emitted = true
+            entry.emittedHash = hash
+            entry.emittedRssi = rssi
+            entry.emittedAt = now
+        }
+        return entry.device
+    }
+
+    /**
+     * 设备被 BlueManager 淘汰时调用
+     */
+    fun remove(address: String) {
+        entries.remove(address)
+    }
+}
@@ -0,0 +1,104 @@
+package com.cleargrass.lib.blue.core;
+
+/**
+ * 录制文件中的一条广播：时间戳、MAC、RSSI 和原始 scan record。
+ *
+ * 回放时同一个实例被反复填充，只在 {@link AdvertReplayer.Listener#onAdvert(AdvertRecord)} 回调期间有效，
+ * 需要保存时调用 {@link #copyScanRecord()}。不依赖 Android，可以在普通 JVM 中使用。
+ *
+ * 文件格式（大端）：
+ * <pre>
+ * header: magic "QPAD" (4) | version (1)
+ * record: 时间差 varint (μs，与上一条相比，第一条为绝对值) | MAC (6，显示顺序) | RSSI (1，有符号)
+ *         | 长度 varint | scan record
+ * </pre>
+ */
+public final class AdvertRecord {
+    static final int MAGIC = 0x51504144; // "QPAD"
+    static final int VERSION = 1;
+    // 扩展广播的 scan record 最长 1650 字节，超出的视为文件损坏
+    static final int MAX_RECORD_LENGTH = 1650;
+
+    long timestampNanos;
+    final byte[] mac = new byte[6];
+    int rssi;
+    byte[] scanRecord = new byte[62];
+    int length;
+
+    /**
+     * @return 录制时的 ScanResult.getTimestampNanos()，精度为微秒
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return MAC，按显示顺序。数组会被下一条记录复用。
+     */
+    public byte[] getMacBytes() {
+        return mac;
+    }
+
+    /**
+     * @return 形如 AA:BB:CC:DD:EE:FF 的 MAC，每次调用都会创建新的字符串
+     */
+    public String getAddress() {
+        return formatMac(mac);
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @return 原始 scan record，有效长度为 {@link #getLength()}，数组会被下一条记录复用
+     */
+    public byte[] getScanRecord() {
+        return scanRecord;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] copyScanRecord() {
+        byte[] copy = new byte[length];
+        System.arraycopy(scanRecord, 0, copy, 0, length);
+        return copy;
+    }
+
+    static String formatMac(byte[] mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = mac[i] & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(b >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(b & 0x0F, 16));
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param address 形如 AA:BB:CC:DD:EE:FF
+     */
+    static void parseMac(String address, byte[] out) {
+        if (address == null || address.length() != 17) {
+            throw new IllegalArgumentException("invalid mac address: " + address);
+        }
+        for (int i = 0; i < 6; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("invalid mac address: " + address);
+            }
+            out[i] = (byte) ((high << 4) | low);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AdvertRecord{" + getAddress() + ", rssi=" + rssi + ", length=" + length + ", t=" + timestampNanos + "}";
+    }
+}
@@ -0,0 +1,70 @@
+package com.cleargrass.lib.blue.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 把扫描到的广播按 {@link AdvertRecord} 的格式写入输出流，供 {@link AdvertReplayer} 回放。
+ *
+ * 每条记录通常只比 scan record 多 9~12 字节。可以在多个线程调用 record，写入按调用顺序串行。
+ * 通过 QingpingScanManager.setRecorder 录制通过过滤的广播。
+ */
+public final class AdvertRecorder implements Closeable {
+
+    private final DataOutputStream out;
+    private final byte[] mac = new byte[6];
+    private long lastMicros;
+    private int count;
+
+    public AdvertRecorder(OutputStream output) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(AdvertRecord.MAGIC);
+        out.writeByte(AdvertRecord.VERSION);
+    }
+
+    /**
+     * @param timestampNanos ScanResult.getTimestampNanos()
+     * @param address        形如 AA:BB:CC:DD:EE:FF
+     */
+    public synchronized void record(long timestampNanos, String address, int rssi, byte[] scanRecord) throws IOException {
+        AdvertRecord.parseMac(address, mac);
+        byte[] data = scanRecord != null ? scanRecord : new byte[0];
+        if (data.length > AdvertRecord.MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("scan record too long: " + data.length);
+        }
+        long micros = timestampNanos / 1000;
+        // 不同线程交付的批次可能乱序，时间差不能为负
+        long delta = Math.max(0, micros - lastMicros);
+        lastMicros = Math.max(lastMicros, micros);
+        writeVarint(delta);
+        out.write(mac);
+        out.writeByte(rssi);
+        writeVarint(data.length);
+        out.write(data);
+        count++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
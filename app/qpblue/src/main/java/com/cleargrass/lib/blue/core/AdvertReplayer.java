@@ -0,0 +1,112 @@
+package com.cleargrass.lib.blue.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 回放 {@link AdvertRecorder} 录制的广播。
+ *
+ * 按录制时的间隔在调用线程依次回调，speed 为 1 时与现场一致，为 N 时快 N 倍，
+ * 小于等于 0 时不等待，尽快回调（用于压测解析、去重等处理的吞吐量）。
+ * 只依赖 java.io，可以在普通 JVM 中回放现场录下的文件。
+ */
+public final class AdvertReplayer implements Closeable {
+
+    public interface Listener {
+        /**
+         * @param record 只在回调期间有效，下一条记录会复用同一个实例
+         */
+        void onAdvert(AdvertRecord record);
+    }
+
+    private final DataInputStream in;
+    private final AdvertRecord record = new AdvertRecord();
+    private long lastMicros;
+
+    public AdvertReplayer(InputStream input) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(input));
+        int magic = in.readInt();
+        if (magic != AdvertRecord.MAGIC) {
+            throw new IOException("not an advert capture: 0x" + Integer.toHexString(magic));
+        }
+        int version = in.readUnsignedByte();
+        if (version != AdvertRecord.VERSION) {
+            throw new IOException("unsupported capture version: " + version);
+        }
+    }
+
+    /**
+     * 读取下一条记录
+     *
+     * @return 没有更多记录时为 null
+     */
+    public AdvertRecord next() throws IOException {
+        long delta;
+        try {
+            delta = readVarint();
+        } catch (EOFException e) {
+            return null;
+        }
+        lastMicros += delta;
+        record.timestampNanos = lastMicros * 1000;
+        in.readFully(record.mac);
+        record.rssi = in.readByte();
+        int length = (int) readVarint();
+        if (length < 0 || length > AdvertRecord.MAX_RECORD_LENGTH) {
+            throw new IOException("corrupted capture, record length " + length);
+        }
+        if (record.scanRecord.length < length) {
+            record.scanRecord = new byte[length];
+        }
+        in.readFully(record.scanRecord, 0, length);
+        record.length = length;
+        return record;
+    }
+
+    /**
+     * 回放全部记录，阻塞到结束
+     *
+     * @return 回放的记录数
+     */
+    public int replay(Listener listener, float speed) throws IOException, InterruptedException {
+        int count = 0;
+        long firstNanos = 0;
+        long startedAt = System.nanoTime();
+        AdvertRecord record;
+        while ((record = next()) != null) {
+            if (count == 0) {
+                firstNanos = record.timestampNanos;
+            } else if (speed > 0) {
+                long due = startedAt + (long) ((record.timestampNanos - firstNanos) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            listener.onAdvert(record);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("corrupted capture, varint too long");
+    }
+}
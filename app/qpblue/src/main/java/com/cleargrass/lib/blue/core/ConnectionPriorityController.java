@@ -0,0 +1,216 @@
+package com.cleargrass.lib.blue.core;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+
+import com.cleargrass.lib.log.BlueLog;
+
+/**
+ * 根据操作队列的情况自动切换连接参数。
+ *
+ * <ul>
+ *     <li>有批量传输（多包写入、分页读取、OTA）或队列积压、操作延迟偏高时切换到 HIGH</li>
+ *     <li>空闲 {@link #IDLE_TO_BALANCED_MILLIS} 后回到 BALANCED</li>
+ *     <li>继续空闲 {@link #IDLE_TO_LOW_POWER_MILLIS} 后切换到 LOW_POWER，减少设备耗电</li>
+ * </ul>
+ * 记录每种模式的累计时间，可以通过 {@link #getTimeInPriority(int)} 查看。
+ *
+ * 除统计查询外，所有方法都在 Peripheral 的 dispatcher 线程调用。
+ */
+public final class ConnectionPriorityController extends TimingWheel.Task {
+
+    private static final String LOG_TAG = "ConnPriority";
+
+    public static final long IDLE_TO_BALANCED_MILLIS = 1000;
+    public static final long IDLE_TO_LOW_POWER_MILLIS = 30000;
+    // 队列中（包括正在执行的）操作数达到该值时视为积压
+    private static final int BUSY_QUEUE_DEPTH = 3;
+    // 平均操作延迟超过该值且队列中还有后续操作时提前切到 HIGH
+    private static final long SLOW_OPERATION_NANOS = 60 * 1000000L;
+    // 切到 HIGH 后至少保持的时间，避免频繁切换
+    private static final long MIN_HIGH_MILLIS = 500;
+
+    private static final int UNKNOWN = -1;
+
+    private final Peripheral peripheral;
+    private final TimingWheel timer = TimingWheel.shared();
+
+    private boolean enabled = true;
+    private boolean lowPowerWhenIdle = true;
+
+    private int priority = UNKNOWN;
+    private long priorityStartTime;
+    private final long[] timeInPriority = new long[3];
+
+    private int queueDepth;
+    private int bulkTransfers;
+    private long averageLatencyNanos;
+    private long idleSince;
+
+    ConnectionPriorityController(Peripheral peripheral) {
+        this.peripheral = peripheral;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 空闲较长时间后是否切换到 LOW_POWER，默认开启。关闭时空闲状态保持 BALANCED。
+     */
+    public void setLowPowerWhenIdle(boolean lowPowerWhenIdle) {
+        this.lowPowerWhenIdle = lowPowerWhenIdle;
+    }
+
+    /**
+     * @return 当前连接参数，未连接时为 -1
+     */
+    public synchronized int getCurrentPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_BALANCED / HIGH / LOW_POWER
+     * @return 本次连接以来处于该模式的累计时间（毫秒）
+     */
+    public synchronized long getTimeInPriority(int priority) {
+        long time = timeInPriority[priority];
+        if (this.priority == priority) {
+            time += SystemClock.elapsedRealtime() - priorityStartTime;
+        }
+        return time;
+    }
+
+    /**
+     * @return 最近操作的平均延迟（毫秒）
+     */
+    public long getAverageLatencyMillis() {
+        return averageLatencyNanos / 1000000L;
+    }
+
+    void onConnected() {
+        synchronized (this) {
+            for (int i = 0; i < timeInPriority.length; i++) {
+                timeInPriority[i] = 0;
+            }
+            // 系统建立连接时使用 BALANCED
+            priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            priorityStartTime = SystemClock.elapsedRealtime();
+        }
+        queueDepth = 0;
+        bulkTransfers = 0;
+        averageLatencyNanos = 0;
+        idleSince = SystemClock.elapsedRealtime();
+        evaluate();
+    }
+
+    void onDisconnected() {
+        timer.cancel(this);
+        synchronized (this) {
+            if (priority != UNKNOWN) {
+                timeInPriority[priority] += SystemClock.elapsedRealtime() - priorityStartTime;
+            }
+            priority = UNKNOWN;
+        }
+        queueDepth = 0;
+        bulkTransfers = 0;
+    }
+
+    void onQueueChanged(int depth) {
+        if (queueDepth > 0 && depth == 0) {
+            idleSince = SystemClock.elapsedRealtime();
+        }
+        queueDepth = depth;
+        evaluate();
+    }
+
+    void onRequestCompleted(long latencyNanos) {
+        // EWMA, alpha = 1/4
+        averageLatencyNanos = averageLatencyNanos == 0 ? latencyNanos : averageLatencyNanos + (latencyNanos - averageLatencyNanos) / 4;
+    }
+
+    void beginBulkTransfer() {
+        bulkTransfers++;
+        evaluate();
+    }
+
+    void endBulkTransfer() {
+        if (bulkTransfers > 0) {
+            bulkTransfers--;
+            if (bulkTransfers == 0 && queueDepth == 0) {
+                idleSince = SystemClock.elapsedRealtime();
+            }
+        }
+        evaluate();
+    }
+
+    @Override
+    protected void onExpired() {
+        peripheral.getDispatcher().post(new Runnable() {
+            @Override
+            public void run() {
+                evaluate();
+            }
+        });
+    }
+
+    private void evaluate() {
+        if (!enabled || priority == UNKNOWN) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        boolean busy = bulkTransfers > 0
+                || queueDepth >= BUSY_QUEUE_DEPTH
+                || (queueDepth > 1 && averageLatencyNanos > SLOW_OPERATION_NANOS);
+        if (busy) {
+            timer.cancel(this);
+            apply(BluetoothGatt.CONNECTION_PRIORITY_HIGH, now);
+            return;
+        }
+        if (queueDepth > 0) {
+            // 少量操作保持当前模式，LOW_POWER 下延迟太高，先回到 BALANCED
+            if (priority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+                timer.cancel(this);
+                apply(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, now);
+            }
+            return;
+        }
+        long idle = now - idleSince;
+        if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            long wait = Math.max(IDLE_TO_BALANCED_MILLIS - idle, MIN_HIGH_MILLIS - (now - priorityStartTime));
+            if (wait > 0) {
+                timer.schedule(this, wait);
+                return;
+            }
+            apply(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, now);
+        }
+        if (priority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED && lowPowerWhenIdle) {
+            long wait = IDLE_TO_LOW_POWER_MILLIS - idle;
+            if (wait > 0) {
+                timer.schedule(this, wait);
+                return;
+            }
+            apply(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, now);
+        }
+    }
+
+    private void apply(int newPriority, long now) {
+        if (priority == newPriority) {
+            return;
+        }
+        if (!peripheral.applyConnectionPriority(newPriority)) {
+            BlueLog.w(LOG_TAG, "requestConnectionPriority(" + newPriority + ") failed");
+            return;
+        }
+        synchronized (this) {
+            timeInPriority[priority] += now - priorityStartTime;
+            priority = newPriority;
+            priorityStartTime = now;
+        }
+        BlueLog.d(LOG_TAG, "connection priority -> " + newPriority);
+    }
+}
@@ -0,0 +1,104 @@
+package com.cleargrass.lib.blue.core;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * Android 8.0 以下 connectGatt 不能指定 Handler，回调在 binder 线程执行。
+ * 这里把回调转发到 {@link GattDispatcher} 的线程。
+ * 特征值的数据在 binder 线程立即取出，避免转发过程中被下一次通知覆盖。
+ */
+final class DispatchingGattCallback extends BluetoothGattCallback {
+
+    private final Peripheral peripheral;
+    private final GattDispatcher dispatcher;
+
+    DispatchingGattCallback(Peripheral peripheral, GattDispatcher dispatcher) {
+        this.peripheral = peripheral;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onConnectionStateChange(gatt, status, newState);
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onServicesDiscovered(gatt, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        final byte[] value = characteristic.getValue();
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.handleCharacteristicRead(characteristic, value, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onCharacteristicWrite(gatt, characteristic, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.handleCharacteristicChanged(characteristic, value);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onDescriptorWrite(gatt, descriptor, status);
+            }
+        });
+    }
+
+    @Override
+    public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onReadRemoteRssi(gatt, rssi, status);
+            }
+        });
+    }
+
+    @Override
+    public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onMtuChanged(gatt, mtu, status);
+            }
+        });
+    }
+}
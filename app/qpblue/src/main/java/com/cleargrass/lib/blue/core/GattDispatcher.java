@@ -0,0 +1,158 @@
+package com.cleargrass.lib.blue.core;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 决定 GATT 回调在哪个线程执行。
+ *
+ * GATT 回调、操作队列、响应收集和超时都运行在 dispatcher 的线程上；
+ * 只有交给使用者的最终回调通过 {@link #deliver(Runnable)} 切换到 callbackExecutor（默认主线程）。
+ *
+ * <ul>
+ *     <li>{@link #shared()}: 所有设备共用一个后台线程（默认）</li>
+ *     <li>{@link #newThread(String)}: 每个设备一个后台线程，不再使用时调用 {@link #quit()}</li>
+ *     <li>{@link #mainThread()}: 全部在主线程执行，与旧版本行为一致</li>
+ * </ul>
+ */
+public final class GattDispatcher {
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * 把任务 post 到主线程执行。
+     */
+    public static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            MAIN_HANDLER.post(command);
+        }
+    };
+
+    /**
+     * 在调用线程直接执行。
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static volatile GattDispatcher shared;
+    private static volatile GattDispatcher main;
+
+    private final Handler handler;
+    private final HandlerThread thread;
+    private final Executor callbackExecutor;
+
+    public GattDispatcher(Looper looper, Executor callbackExecutor) {
+        this(new Handler(looper), null, callbackExecutor);
+    }
+
+    private GattDispatcher(Handler handler, HandlerThread thread, Executor callbackExecutor) {
+        this.handler = handler;
+        this.thread = thread;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @return 所有设备共用的后台线程，最终回调在主线程执行
+     */
+    public static GattDispatcher shared() {
+        if (shared == null) {
+            synchronized (GattDispatcher.class) {
+                if (shared == null) {
+                    HandlerThread thread = startThread("qpblue-gatt");
+                    // 共享线程不属于任何设备，不允许 quit
+                    shared = new GattDispatcher(new Handler(thread.getLooper()), null, MAIN_THREAD_EXECUTOR);
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return 所有操作都在主线程执行
+     */
+    public static GattDispatcher mainThread() {
+        if (main == null) {
+            synchronized (GattDispatcher.class) {
+                if (main == null) {
+                    // 已经在主线程上，最终回调不需要再 post 一次
+                    main = new GattDispatcher(MAIN_HANDLER, null, DIRECT_EXECUTOR);
+                }
+            }
+        }
+        return main;
+    }
+
+    /**
+     * 创建独立的后台线程，最终回调在主线程执行。不再使用时需要调用 {@link #quit()}。
+     */
+    public static GattDispatcher newThread(String name) {
+        HandlerThread thread = startThread(name);
+        return new GattDispatcher(new Handler(thread.getLooper()), thread, MAIN_THREAD_EXECUTOR);
+    }
+
+    private static HandlerThread startThread(String name) {
+        HandlerThread thread = new HandlerThread(name, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return 使用同一个线程，但最终回调交给 executor 执行的 dispatcher
+     */
+    public GattDispatcher withCallbackExecutor(Executor executor) {
+        return new GattDispatcher(handler, thread, executor);
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    public Looper getLooper() {
+        return handler.getLooper();
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    public boolean isDispatchThread() {
+        return Looper.myLooper() == handler.getLooper();
+    }
+
+    public void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        handler.postDelayed(runnable, delayMillis);
+    }
+
+    public void removeCallbacks(Runnable runnable) {
+        handler.removeCallbacks(runnable);
+    }
+
+    /**
+     * 把交给使用者的最终回调切换到 callbackExecutor。
+     */
+    public void deliver(Runnable runnable) {
+        callbackExecutor.execute(runnable);
+    }
+
+    /**
+     * 结束 {@link #newThread(String)} 创建的线程，共享线程和主线程不受影响。
+     */
+    public void quit() {
+        if (thread != null) {
+            thread.quitSafely();
+        }
+    }
+}
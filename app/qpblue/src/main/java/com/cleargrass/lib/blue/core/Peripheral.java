@@ -1,6 +1,7 @@
 package com.cleargrass.lib.blue.core;
 
 import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -8,20 +9,28 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
-import android.util.Log;
+import android.os.SystemClock;
 import android.util.Pair;
 
 import androidx.annotation.MainThread;
 
+import com.cleargrass.lib.ble.CharacteristicIndex;
+import com.cleargrass.lib.ble.LinkStats;
+import com.cleargrass.lib.ble.LinkStatsRecorder;
+import com.cleargrass.lib.log.BlueLog;
+
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 
 
@@ -35,25 +44,83 @@ public class Peripheral extends BluetoothGattCallback {
     private static final String CHARACTERISTIC_NOTIFICATION_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
     private static final String LOG_TAG = "QingpingPeripheral";
 
+    static final int DEFAULT_MTU = 23;
+    private static final int MTU_SIZE_MAX = 517;
+    // ATT Write Request / Write Command header: 1 byte opcode + 2 bytes handle
+    private static final int ATT_WRITE_HEADER_SIZE = 3;
+    /**
+     * 传给 write 的 maxByteSize 为此值时，按当前协商的 MTU 切割数据（mtu - 3）
+     */
+    public static final int MAX_BYTE_SIZE_MTU = 0;
+
+    /**
+     * 默认的操作超时时间，见 {@link #setOperationTimeout(long)}
+     */
+    public static final long DEFAULT_OPERATION_TIMEOUT = 10000;
+
+    // 系统 GATT 写队列满 (ERROR_GATT_WRITE_REQUEST_BUSY) 时的重试间隔和次数
+    private static final int WRITE_BUSY_RETRY_DELAY = 5;
+    private static final int WRITE_BUSY_RETRY_MAX = 200;
+
+    private static final int SUBMIT_SUCCESS = 0;
+    private static final int SUBMIT_BUSY = 1;
+    private static final int SUBMIT_FAILED = 2;
+
     private final BluetoothDevice device;
     protected byte[] advertisingDataBytes = new byte[0];
     protected int advertisingRSSI;
+    // 最后一次收到广播的时间 (SystemClock.elapsedRealtime)
+    protected long lastSeenTime = SystemClock.elapsedRealtime();
+    // 平滑后的 RSSI 保存在 PeripheralRegistry 的 RssiTable 中
+    RssiTable<Peripheral> rssiTable;
+    int rssiSlot = -1;
     private boolean connected = false;
+    private int mtu = DEFAULT_MTU;
+    private boolean requestMaxMtuOnConnect = false;
+    private boolean maxMtuRequested = false;
+    private boolean requestLe2MPhyOnConnect = false;
+    private boolean le2MPhyRequested = false;
+    private long operationTimeout = DEFAULT_OPERATION_TIMEOUT;
 
     private BluetoothGatt gatt;
 
     private Callback connectCallback;
     private OnConnectionStatusCallback connectStatusCallback;
     private Callback retrieveServicesCallback;
-    private ValueCallback<UuidAndBytes> readCallback;
     private ValueCallback<UuidAndBytes> notifyCallback;
-    private ValueCallback<Integer> readRSSICallback;
-    private Callback writeCallback;
-    private Callback registerNotifyCallback;
-    private ValueCallback<Integer> requestMTUCallback;
 
-    //当需要写入很长数据时，按20字节切割 分批发送。
-    private List<byte[]> writeQueue = new ArrayList<>();
+    // read / write / notify / rssi / mtu 都进入同一个队列，收到上一个操作的 GATT 回调后立即执行下一个。
+    private final Object operationLock = new Object();
+    private final Queue<GattOperation> operationQueue = new ArrayDeque<>();
+    private GattOperation currentOperation;
+    private final Runnable nextOperationTask = new Runnable() {
+        @Override
+        public void run() {
+            nextOperation();
+        }
+    };
+
+    // 服务发现后建立，refreshCache / 断开连接时失效
+    private volatile CharacteristicIndex characteristicIndex;
+
+    // 操作超时由所有设备共用的时间轮检查
+    private final TimingWheel timer = TimingWheel.shared();
+
+    // GATT 回调、操作队列和写入重试都运行在 dispatcher 的线程上
+    private GattDispatcher dispatcher = GattDispatcher.shared();
+
+    // 根据队列深度、操作延迟和批量传输切换 connection priority
+    private final ConnectionPriorityController priorityController = new ConnectionPriorityController(this);
+
+    // 本次连接协商的 PHY、MTU 和吞吐量
+    private final LinkStatsRecorder linkStatsRecorder = new LinkStatsRecorder(DEFAULT_MTU);
+    private final LinkStats linkStats = linkStatsRecorder.getStats();
+
+    //当需要写入很长数据时，按 MTU - 3 字节切割 分批发送。每个特征值一个游标，分包缓冲区在多次写入之间复用。
+    private final Map<BluetoothGattCharacteristic, WriteCursor> writeCursors = new HashMap<>();
+    // 已经结束（超时等）的写入还欠的 onCharacteristicWrite 次数。系统按提交顺序回调，这些迟到的回调要丢弃，
+    // 不能算到同一特征值的下一个写入上。只在 dispatcher 线程访问。
+    private final Map<BluetoothGattCharacteristic, Integer> staleWriteCallbacks = new HashMap<>();
 
     public Peripheral(BluetoothDevice device, int advertisingRSSI, byte[] scanRecord) {
         this.device = device;
@@ -75,31 +142,100 @@ public class Peripheral extends BluetoothGattCallback {
         return advertisingRSSI;
     }
 
+    /**
+     * @return 滤波后的 RSSI，不在 PeripheralRegistry 中时返回最新的原始值
+     */
+    public int getSmoothedRssi() {
+        RssiTable<Peripheral> table = rssiTable;
+        float value = table != null ? table.get(rssiSlot) : Float.NaN;
+        return Float.isNaN(value) ? advertisingRSSI : Math.round(value);
+    }
+
+    /**
+     * @return 上一次 PeripheralRegistry.nearest 中的名次（0 最近），不在其中时为 -1
+     */
+    public int getProximityRank() {
+        RssiTable<Peripheral> table = rssiTable;
+        return table != null ? table.rankOf(rssiSlot) : -1;
+    }
+
     public void setOnConnectStatusChange(OnConnectionStatusCallback onConnectStatusChange) {
         connectStatusCallback = onConnectStatusChange;
     }
+
+    /**
+     * 设置 GATT 回调运行的线程，需要在 connect 之前调用。
+     * 本类的所有回调（包括 OnConnectionStatusCallback）都在 dispatcher 的线程执行，
+     * 需要切换线程的最终回调使用 {@link GattDispatcher#deliver(Runnable)}。
+     */
+    public void setDispatcher(GattDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public GattDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public ConnectionPriorityController getConnectionPriorityController() {
+        return priorityController;
+    }
+
+    /**
+     * 开始批量传输（分页读取、OTA 等），在对应的 {@link #endBulkTransfer()} 之前保持 CONNECTION_PRIORITY_HIGH。
+     * 可以嵌套调用，需要成对使用。
+     */
+    public void beginBulkTransfer() {
+        runOnDispatcher(new Runnable() {
+            @Override
+            public void run() {
+                priorityController.beginBulkTransfer();
+            }
+        });
+    }
+
+    public void endBulkTransfer() {
+        runOnDispatcher(new Runnable() {
+            @Override
+            public void run() {
+                priorityController.endBulkTransfer();
+            }
+        });
+    }
+
+    private void runOnDispatcher(Runnable runnable) {
+        if (dispatcher.isDispatchThread()) {
+            runnable.run();
+        } else {
+            dispatcher.post(runnable);
+        }
+    }
     @MainThread
     public void connect(Context context, Callback callback, OnConnectionStatusCallback onConnectStatusChange) {
         connectStatusCallback = onConnectStatusChange;
         if (!connected) {
             BluetoothDevice device = getDevice();
             this.connectCallback = callback;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                Log.d(Peripheral.LOG_TAG, " Is Or Greater than M $mBluetoothDevice");
-                gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                // 系统直接在 dispatcher 的线程回调
+                int phyMask = requestLe2MPhyOnConnect ? BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+                gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE,
+                        phyMask, dispatcher.getHandler());
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                BlueLog.d(Peripheral.LOG_TAG, " Is Or Greater than M $mBluetoothDevice");
+                gatt = device.connectGatt(context, false, new DispatchingGattCallback(this, dispatcher), BluetoothDevice.TRANSPORT_LE);
             } else {
-                Log.d(Peripheral.LOG_TAG, " Less than M");
+                BlueLog.d(Peripheral.LOG_TAG, " Less than M");
                 try {
-                    Log.d(Peripheral.LOG_TAG, " Trying TRANPORT LE with reflection");
+                    BlueLog.d(Peripheral.LOG_TAG, " Trying TRANPORT LE with reflection");
                     Method m = device.getClass().getDeclaredMethod("connectGatt", Context.class, Boolean.class, BluetoothGattCallback.class, Integer.class);
                     m.setAccessible(true);
                     Integer transport = device.getClass().getDeclaredField("TRANSPORT_LE").getInt(null);
-                    gatt = (BluetoothGatt) m.invoke(device, context, false, this, transport);
+                    gatt = (BluetoothGatt) m.invoke(device, context, false, new DispatchingGattCallback(this, dispatcher), transport);
                 } catch (Exception e) {
                     e.printStackTrace();
-                    Log.d(Peripheral.LOG_TAG, " Catch to call normal connection");
+                    BlueLog.d(Peripheral.LOG_TAG, " Catch to call normal connection");
                     gatt = device.connectGatt(context, false,
-                            this);
+                            new DispatchingGattCallback(this, dispatcher));
                 }
             }
         } else {
@@ -110,11 +246,15 @@ public class Peripheral extends BluetoothGattCallback {
             }
         }
     }
-    @MainThread
     public void disconnect() {
         disconnect(false);
     }
-    @MainThread
+
+    /**
+     * 可以在任意线程调用（如协程取消时），onPeripheralDisconnected 在 dispatcher 线程回调，与 GATT 断开回调一致。
+     *
+     * @param force 立即关闭 gatt，不等待系统的断开回调
+     */
     public void disconnect(boolean force) {
         connectCallback = null;
         connected = false;
@@ -124,44 +264,162 @@ public class Peripheral extends BluetoothGattCallback {
                 if (force) {
                     gatt.close();
                     gatt = null;
-                    Log.d(Peripheral.LOG_TAG, "disconnect:");
-                    if (connectStatusCallback != null) {
-                        connectStatusCallback.onPeripheralDisconnected(this, null);
-                    }
+                    runOnDispatcher(new Runnable() {
+                        @Override
+                        public void run() {
+                            priorityController.onDisconnected();
+                            // gatt 已经关闭，不会再有回调，排队中的操作直接失败
+                            failAllOperations("Device disconnected");
+                        }
+                    });
+                    BlueLog.d(Peripheral.LOG_TAG, "disconnect:");
+                    notifyDisconnected(null);
                 }
-                Log.d(Peripheral.LOG_TAG, "Disconnect");
+                BlueLog.d(Peripheral.LOG_TAG, "Disconnect");
             } catch (Exception e) {
-                if (connectStatusCallback != null) {
-                    connectStatusCallback.onPeripheralDisconnected(this, e);
-                }
-                Log.d(Peripheral.LOG_TAG, "Error on disconnect", e);
+                notifyDisconnected(e);
+                BlueLog.d(Peripheral.LOG_TAG, "Error on disconnect", e);
             }
         } else {
-            Log.d(Peripheral.LOG_TAG, "GATT is null");
-            if (connectStatusCallback != null) {
-                connectStatusCallback.onPeripheralDisconnected(this, new NullPointerException("GATT is null"));
-            }
+            BlueLog.d(Peripheral.LOG_TAG, "GATT is null");
+            notifyDisconnected(new NullPointerException("GATT is null"));
         }
     }
 
+    private void notifyDisconnected(final Exception error) {
+        runOnDispatcher(new Runnable() {
+            @Override
+            public void run() {
+                if (connectStatusCallback != null) {
+                    connectStatusCallback.onPeripheralDisconnected(Peripheral.this, error);
+                }
+            }
+        });
+    }
+
     public boolean isConnected() {
         return connected;
     }
 
+    /**
+     * @return 没有连接，也没有正在进行的连接
+     */
+    boolean isIdle() {
+        return !connected && connectCallback == null;
+    }
+
+    /**
+     * 从 PeripheralRegistry 淘汰时调用，释放残留的 GATT 客户端
+     */
+    void close() {
+        connectStatusCallback = null;
+        BluetoothGatt gatt = this.gatt;
+        this.gatt = null;
+        if (gatt != null) {
+            gatt.close();
+        }
+        characteristicIndex = null;
+        runOnDispatcher(new Runnable() {
+            @Override
+            public void run() {
+                failAllOperations("Device closed");
+            }
+        });
+    }
+
     public BluetoothDevice getDevice() {
         return device;
     }
 
+    /**
+     * @return 当前连接协商后的 MTU，未协商时为 23
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return 单次写入最多可以携带的数据长度 (mtu - 3)
+     */
+    public int getMaxWriteLength() {
+        return mtu - ATT_WRITE_HEADER_SIZE;
+    }
+
+    /**
+     * 连接并发现服务后，自动请求最大 MTU (517)。默认关闭。
+     * 请求在服务发现后第一个进入操作队列，之后的写入都会按协商后的 MTU 切割。
+     */
+    public void setRequestMaxMtuOnConnect(boolean requestMaxMtuOnConnect) {
+        this.requestMaxMtuOnConnect = requestMaxMtuOnConnect;
+    }
+
+    /**
+     * 连接并发现服务后，自动请求 LE 2M PHY，手机或设备不支持时保持 1M。默认关闭。
+     * 需要在 connect 之前调用。
+     */
+    public void setRequestLe2MPhyOnConnect(boolean requestLe2MPhyOnConnect) {
+        this.requestLe2MPhyOnConnect = requestLe2MPhyOnConnect;
+    }
+
+    public LinkStats getLinkStats() {
+        return linkStats;
+    }
+
+    /**
+     * 每个操作提交后等待 GATT 回调的最长时间，超时后通过操作的回调返回错误并继续执行下一个操作。
+     * 分包写入时每写完一包重新计时。小于等于 0 表示不超时。默认 10 秒。
+     */
+    public void setOperationTimeout(long timeoutMillis) {
+        this.operationTimeout = timeoutMillis;
+    }
+
     public Boolean hasService(UUID uuid) {
         if (gatt == null) {
             return null;
         }
-        return gatt.getService(uuid) != null;
+        CharacteristicIndex index = characteristicIndex();
+        return index != null && index.findService(uuid) != null;
+    }
+
+    /**
+     * @return 当前连接的特征值索引，服务尚未发现时为 null
+     */
+    private CharacteristicIndex characteristicIndex() {
+        CharacteristicIndex index = characteristicIndex;
+        BluetoothGatt gatt = this.gatt;
+        if (index == null && gatt != null) {
+            // 服务可能在设置本类为回调之前就已发现
+            List<BluetoothGattService> services = gatt.getServices();
+            if (services != null && !services.isEmpty()) {
+                index = CharacteristicIndex.build(services);
+                characteristicIndex = index;
+            }
+        }
+        return index;
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
         super.onServicesDiscovered(gatt, status);
+        characteristicIndex = status == BluetoothGatt.GATT_SUCCESS ? CharacteristicIndex.build(gatt.getServices()) : null;
+        if (requestMaxMtuOnConnect && !maxMtuRequested && status == BluetoothGatt.GATT_SUCCESS) {
+            maxMtuRequested = true;
+            enqueueOperation(new MtuOperation(MTU_SIZE_MAX, new ValueCallback<Integer>() {
+                @Override
+                public void invoke(String error, Integer value) {
+                    BlueLog.d(Peripheral.LOG_TAG, "requestMaxMtuOnConnect: " + (error != null ? error : value));
+                }
+            }));
+        }
+        if (requestLe2MPhyOnConnect && !le2MPhyRequested && status == BluetoothGatt.GATT_SUCCESS) {
+            le2MPhyRequested = true;
+            requestLe2MPhy(new ValueCallback<LinkStats>() {
+                @Override
+                public void invoke(String error, LinkStats value) {
+                    BlueLog.d(Peripheral.LOG_TAG, "requestLe2MPhyOnConnect: " + value);
+                }
+            });
+        }
         if (retrieveServicesCallback != null) {
             retrieveServicesCallback.invoke(null, true);
             retrieveServicesCallback = null;
@@ -171,21 +429,23 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onConnectionStateChange(BluetoothGatt gatta, int status, int newState) {
 
-        Log.d(Peripheral.LOG_TAG, "onConnectionStateChange to " + newState + " on peripheral: " + device.getAddress() + " from status " + status);
+        BlueLog.d(Peripheral.LOG_TAG, "onConnectionStateChange to " + newState + " on peripheral: " + device.getAddress() + " from status " + status);
 
         this.gatt = gatta;
 
         if (newState == BluetoothProfile.STATE_CONNECTED) {
 
             connected = true;
+            linkStatsRecorder.reset();
+            priorityController.onConnected();
 
-            new Handler(Looper.getMainLooper()).post(new Runnable() {
+            dispatcher.post(new Runnable() {
                 @Override
                 public void run() {
                     try {
                         gatt.discoverServices();
                     } catch (NullPointerException e) {
-                        Log.d(Peripheral.LOG_TAG, "onConnectionStateChange connected but gatt of Run method was null");
+                        BlueLog.d(Peripheral.LOG_TAG, "onConnectionStateChange connected but gatt of Run method was null");
                     }
                 }
             });
@@ -194,7 +454,7 @@ public class Peripheral extends BluetoothGattCallback {
             }
 
             if (connectCallback != null) {
-                Log.d(Peripheral.LOG_TAG, "Connected to: " + device.getAddress());
+                BlueLog.d(Peripheral.LOG_TAG, "Connected to: " + device.getAddress());
                 connectCallback.invoke(null, true);
                 connectCallback = null;
             }
@@ -204,33 +464,30 @@ public class Peripheral extends BluetoothGattCallback {
             if (connected) {
                 connected = false;
             }
+            mtu = DEFAULT_MTU;
+            maxMtuRequested = false;
+            le2MPhyRequested = false;
+            characteristicIndex = null;
+            priorityController.onDisconnected();
             if (gatt != null) gatt.disconnect();
             if (status == 133) internalRefreshDeviceCache(gatt);
             if (gatt != null) gatt.close();
             this.gatt = null;
 
-            Log.e(Peripheral.LOG_TAG, "onConnectionStateChange: " + newState + " with state " + status);
+            BlueLog.e(Peripheral.LOG_TAG, "onConnectionStateChange: " + newState + " with state " + status);
 
             if (connectStatusCallback != null) {
                 connectStatusCallback.onPeripheralDisconnected(this, null);
             }
-            List<ValueCallback> callbacks = Arrays.asList(writeCallback, retrieveServicesCallback, readRSSICallback, readCallback, registerNotifyCallback, requestMTUCallback);
-            for (ValueCallback currentCallback : callbacks) {
-                if (currentCallback != null) {
-                    currentCallback.invoke("Device disconnected");
-                }
+            if (retrieveServicesCallback != null) {
+                retrieveServicesCallback.invoke("Device disconnected");
+                retrieveServicesCallback = null;
             }
+            failAllOperations("Device disconnected");
             if (connectCallback != null) {
                 connectCallback.invoke("Connection error", false);
                 connectCallback = null;
             }
-            writeCallback = null;
-            writeQueue.clear();
-            readCallback = null;
-            retrieveServicesCallback = null;
-            readRSSICallback = null;
-            registerNotifyCallback = null;
-            requestMTUCallback = null;
         }
 
     }
@@ -243,38 +500,69 @@ public class Peripheral extends BluetoothGattCallback {
         advertisingDataBytes = data;
     }
 
+    public void updateLastSeen(long elapsedRealtime) {
+        lastSeenTime = elapsedRealtime;
+    }
+
+    public long getLastSeenTime() {
+        return lastSeenTime;
+    }
+
     public int unsignedToBytes(byte b) {
         return b & 0xFF;
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        super.onCharacteristicChanged(gatt, characteristic);
+        handleCharacteristicChanged(characteristic, characteristic.getValue());
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        // Android 13 起数据直接随回调传入，不会被后续通知覆盖
+        handleCharacteristicChanged(characteristic, value);
+    }
 
-        byte[] dataValue = characteristic.getValue();
-        Log.d(Peripheral.LOG_TAG, "Notify: " + bytesToHex(dataValue) + " from peripheral: " + device.getAddress());
+    void handleCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] dataValue) {
+        if (dataValue != null) {
+            linkStatsRecorder.recordReceived(dataValue.length);
+        }
+        if (BlueLog.D && BlueLog.isLoggable(BlueLog.DEBUG)) {
+            BlueLog.d(Peripheral.LOG_TAG, "Notify: " + bytesToHex(dataValue) + " from peripheral: " + device.getAddress());
+        }
         if (notifyCallback != null) {
             notifyCallback.invoke(null, new UuidAndBytes(characteristic.getUuid(), dataValue));
         } else {
-            Log.d(Peripheral.LOG_TAG, "onCharacteristicChanged notifyCallback is null");
+            BlueLog.d(Peripheral.LOG_TAG, "onCharacteristicChanged notifyCallback is null");
         }
     }
 
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        super.onCharacteristicRead(gatt, characteristic, status);
-        String string = readCallback == null ? "readCallback is  null" : "readCallback is not null";
-        byte[] dataValue = characteristic.getValue();
-        Log.d(Peripheral.LOG_TAG, "Read: " + bytesToHex(dataValue) + " from peripheral: " + device.getAddress());
-        Log.d(Peripheral.LOG_TAG, "onCharacteristicRead " + string+ ", " + BluetoothGatt.GATT_SUCCESS);
-        if (readCallback != null) {
-            ValueCallback<UuidAndBytes> callback = readCallback;
-            readCallback = null;
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                callback.invoke(null, new UuidAndBytes(characteristic.getUuid(), dataValue));
-            } else {
-                callback.invoke("Error reading " + characteristic.getUuid() + " status=" + status);
+        handleCharacteristicRead(characteristic, characteristic.getValue(), status);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+        handleCharacteristicRead(characteristic, value, status);
+    }
+
+    void handleCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] dataValue, int status) {
+        if (BlueLog.D && BlueLog.isLoggable(BlueLog.DEBUG)) {
+            BlueLog.d(Peripheral.LOG_TAG, "Read: " + bytesToHex(dataValue) + " from peripheral: " + device.getAddress());
+        }
+        ReadOperation operation = finishOperation(ReadOperation.class);
+        if (operation == null) {
+            BlueLog.d(Peripheral.LOG_TAG, "onCharacteristicRead with no pending read");
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            if (dataValue != null) {
+                linkStatsRecorder.recordReceived(dataValue.length);
             }
+            operation.callback.invoke(null, new UuidAndBytes(characteristic.getUuid(), dataValue));
+        } else {
+            operation.callback.invoke("Error reading " + characteristic.getUuid() + " status=" + status);
         }
     }
 
@@ -282,59 +570,59 @@ public class Peripheral extends BluetoothGattCallback {
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
 
-        if (writeCallback != null) {
-
-            if (writeQueue.size() > 0) {
-                Log.e(LOG_TAG, "onCharacteristicWrite: writeCallback:writeQueue.size:" + writeQueue.size());
-                byte[] data = writeQueue.get(0);
-                writeQueue.remove(0);
-                doWrite(characteristic, data);
+        Integer stale = staleWriteCallbacks.get(characteristic);
+        if (stale != null) {
+            if (stale > 1) {
+                staleWriteCallbacks.put(characteristic, stale - 1);
             } else {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.e(LOG_TAG, "onCharacteristicWrite: writeCallback.invoke()");
-                    writeCallback.invoke(null, true);
-                } else {
-                    Log.e(Peripheral.LOG_TAG, "Error onCharacteristicWrite:" + status);
-                    writeCallback.invoke("Error writing status: " + status, false);
-                }
-                Log.e(LOG_TAG, "onCharacteristicWrite: writeCallback null release");
-                writeCallback = null;
+                staleWriteCallbacks.remove(characteristic);
             }
-        } else {
-            Log.e(Peripheral.LOG_TAG, "No callback on write");
+            BlueLog.w(Peripheral.LOG_TAG, "Ignore late onCharacteristicWrite of a finished write");
+            return;
+        }
+        WriteOperation operation = peekOperation(WriteOperation.class);
+        if (operation == null || operation.characteristic != characteristic || operation.awaitingCallbacks == 0) {
+            BlueLog.e(Peripheral.LOG_TAG, "No callback on write");
+            return;
+        }
+        operation.awaitingCallbacks--;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            BlueLog.e(Peripheral.LOG_TAG, "Error onCharacteristicWrite:" + status);
+            operation.finish("Error writing status: " + status);
+            return;
         }
+        // 对于 WRITE_TYPE_NO_RESPONSE，这个回调表示系统已接收上一包，可以继续发送下一包
+        operation.onChunkWritten();
     }
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorWrite(gatt, descriptor, status);
-        if (registerNotifyCallback != null) {
+        NotifyOperation operation = finishOperation(NotifyOperation.class);
+        if (operation != null) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                registerNotifyCallback.invoke();
-                Log.d(Peripheral.LOG_TAG, "onDescriptorWrite success");
+                BlueLog.d(Peripheral.LOG_TAG, "onDescriptorWrite success");
+                operation.callback.invoke();
             } else {
-                registerNotifyCallback.invoke("Error writing descriptor stats=" + status);
-                Log.e(Peripheral.LOG_TAG, "Error writing descriptor stats=" + status);
+                BlueLog.e(Peripheral.LOG_TAG, "Error writing descriptor stats=" + status);
+                operation.callback.invoke("Error writing descriptor stats=" + status);
             }
-
-            registerNotifyCallback = null;
         } else {
-            Log.e(Peripheral.LOG_TAG, "onDescriptorWrite with no callback");
+            BlueLog.e(Peripheral.LOG_TAG, "onDescriptorWrite with no callback");
         }
     }
 
     @Override
     public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
         super.onReadRemoteRssi(gatt, rssi, status);
-        if (readRSSICallback != null) {
+        RssiOperation operation = finishOperation(RssiOperation.class);
+        if (operation != null) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 updateRssi(rssi);
-                readRSSICallback.invoke(rssi);
+                operation.callback.invoke(rssi);
             } else {
-                readRSSICallback.invoke("Error reading RSSI status=" + status);
+                operation.callback.invoke("Error reading RSSI status=" + status);
             }
-
-            readRSSICallback = null;
         }
     }
 
@@ -343,63 +631,18 @@ public class Peripheral extends BluetoothGattCallback {
             callback.invoke("Device is not connected (setNotify)");
             return;
         }
-        Log.d(Peripheral.LOG_TAG, "setNotify");
+        BlueLog.d(Peripheral.LOG_TAG, "setNotify");
 
         if (gatt == null) {
             callback.invoke("BluetoothGatt is null");
             return;
         }
-
-        BluetoothGattService service = gatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(service, characteristicUUID);
-
-        if (characteristic != null) {
-            if (gatt.setCharacteristicNotification(characteristic, notify)) {
-
-                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUIDHelper.uuidFromString(CHARACTERISTIC_NOTIFICATION_CONFIG));
-                if (descriptor != null) {
-
-                    // Prefer notify over indicate
-                    if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-                        Log.d(Peripheral.LOG_TAG, "Characteristic " + characteristicUUID + " set NOTIFY");
-                        descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                    } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
-                        Log.d(Peripheral.LOG_TAG, "Characteristic " + characteristicUUID + " set INDICATE");
-                        descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                    } else {
-                        Log.d(Peripheral.LOG_TAG, "Characteristic " + characteristicUUID + " does not have NOTIFY or INDICATE property set");
-                    }
-
-                    try {
-                        registerNotifyCallback = callback;
-                        if (gatt.writeDescriptor(descriptor)) {
-                            Log.d(Peripheral.LOG_TAG, "setNotify complete");
-                        } else {
-                            registerNotifyCallback = null;
-                            callback.invoke("Failed to set client characteristic notification for " + characteristicUUID);
-                        }
-                    } catch (Exception e) {
-                        Log.d(Peripheral.LOG_TAG, "Error on setNotify", e);
-                        callback.invoke("Failed to set client characteristic notification for " + characteristicUUID + ", error: " + e.getMessage());
-                    }
-
-                } else {
-                    callback.invoke("Set notification failed for " + characteristicUUID);
-                }
-
-            } else {
-                callback.invoke("Failed to register notification for " + characteristicUUID);
-            }
-
-        } else {
-            callback.invoke("Characteristic " + characteristicUUID + " not found");
-        }
-
+        enqueueOperation(new NotifyOperation(serviceUUID, characteristicUUID, notify, callback));
     }
     @MainThread
     public void registerNotify(UUID serviceUUID, UUID characteristicUUID, Callback callback, ValueCallback<UuidAndBytes> notifyCallback) {
         Peripheral.this.notifyCallback = notifyCallback;
-        Log.d(Peripheral.LOG_TAG, "registerNotify");
+        BlueLog.d(Peripheral.LOG_TAG, "registerNotify");
         this.setNotify(serviceUUID, characteristicUUID, true, new Callback() {
             @Override
             public void invoke(String error, Boolean value) {
@@ -409,7 +652,7 @@ public class Peripheral extends BluetoothGattCallback {
     }
     @MainThread
     public void removeNotify(UUID serviceUUID, UUID characteristicUUID, Callback callback) {
-        Log.d(Peripheral.LOG_TAG, "removeNotify");
+        BlueLog.d(Peripheral.LOG_TAG, "removeNotify");
         this.setNotify(serviceUUID, characteristicUUID, false, new Callback() {
             @Override
             public void invoke(String error, Boolean value) {
@@ -422,32 +665,11 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     // Some devices reuse UUIDs across characteristics, so we can't use service.getCharacteristic(characteristicUUID)
-    // instead check the UUID and properties for each characteristic in the service until we find the best match
+    // instead the index keeps the best match for each property
     // This function prefers Notify over Indicate
-    private BluetoothGattCharacteristic findNotifyCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
-
-        try {
-            // Check for Notify first
-            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-            for (BluetoothGattCharacteristic characteristic : characteristics) {
-                if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-                    return characteristic;
-                }
-            }
-
-            // If there wasn't Notify Characteristic, check for Indicate
-            for (BluetoothGattCharacteristic characteristic : characteristics) {
-                if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-                    return characteristic;
-                }
-            }
-
-            // As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-            return service.getCharacteristic(characteristicUUID);
-        } catch (Exception e) {
-            Log.e(Peripheral.LOG_TAG, "Error retriving characteristic " + characteristicUUID, e);
-            return null;
-        }
+    private BluetoothGattCharacteristic findNotifyCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        CharacteristicIndex index = characteristicIndex();
+        return index == null ? null : index.findOrAny(serviceUUID, characteristicUUID, CharacteristicIndex.ROLE_NOTIFY);
     }
 
     public void read(UUID serviceUUID, UUID characteristicUUID, ValueCallback<UuidAndBytes> callback) {
@@ -461,18 +683,7 @@ public class Peripheral extends BluetoothGattCallback {
             return;
         }
 
-        BluetoothGattService service = gatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = findReadableCharacteristic(service, characteristicUUID);
-
-        if (characteristic == null) {
-            callback.invoke("Characteristic " + characteristicUUID + " not found.", null);
-        } else {
-            readCallback = callback;
-            if (!gatt.readCharacteristic(characteristic)) {
-                readCallback = null;
-                callback.invoke("Read failed", null);
-            }
-        }
+        enqueueOperation(new ReadOperation(serviceUUID, characteristicUUID, callback));
     }
 
     public void readRSSI(ValueCallback<Integer> callback) {
@@ -485,14 +696,11 @@ public class Peripheral extends BluetoothGattCallback {
             return;
         }
 
-        readRSSICallback = callback;
-        if (!gatt.readRemoteRssi()) {
-            readCallback = null;
-            callback.invoke("Read RSSI failed", null);
-        }
+        enqueueOperation(new RssiOperation(callback));
     }
 
     public void refreshCache(Callback callback) {
+        characteristicIndex = null;
         try {
             Method localMethod = gatt.getClass().getMethod("refresh", new Class[0]);
             if (localMethod != null) {
@@ -502,7 +710,7 @@ public class Peripheral extends BluetoothGattCallback {
                 callback.invoke("Could not refresh cache for device.");
             }
         } catch (Exception localException) {
-            Log.e(LOG_TAG, "An exception occured while refreshing device");
+            BlueLog.e(LOG_TAG, "An exception occured while refreshing device");
             callback.invoke(localException.getMessage());
         }
     }
@@ -523,40 +731,35 @@ public class Peripheral extends BluetoothGattCallback {
 
     // Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
     // and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
-    private BluetoothGattCharacteristic findReadableCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
-
-        if (service != null) {
-            int read = BluetoothGattCharacteristic.PROPERTY_READ;
-
-            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-            for (BluetoothGattCharacteristic characteristic : characteristics) {
-                if ((characteristic.getProperties() & read) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-                    return characteristic;
-                }
-            }
-
-            // As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-            return service.getCharacteristic(characteristicUUID);
-        }
-
-        return null;
+    private BluetoothGattCharacteristic findReadableCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        CharacteristicIndex index = characteristicIndex();
+        return index == null ? null : index.findOrAny(serviceUUID, characteristicUUID, CharacteristicIndex.ROLE_READ);
     }
 
     public boolean doWrite(BluetoothGattCharacteristic characteristic, byte[] data) {
         characteristic.setValue(data);
         if (!gatt.writeCharacteristic(characteristic)) {
-            Log.d(Peripheral.LOG_TAG, "Error on doWrite");
+            BlueLog.d(Peripheral.LOG_TAG, "Error on doWrite");
             return false;
         }
         return true;
     }
     public void writeWithoutResponse(UUID serviceUUID, UUID characteristicUUID, byte[] data) {
-        write(serviceUUID, characteristicUUID, data, 20, 0, new Callback() {
+        writeWithoutResponse(serviceUUID, characteristicUUID, data, new ValueCallback<WriteResult>() {
             @Override
-            public void invoke(String error, Boolean value) {
+            public void invoke(String error, WriteResult value) {
 
             }
-        }, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        });
+    }
+
+    /**
+     * 以 WRITE_TYPE_NO_RESPONSE 发送数据，按 MTU 切割。
+     * 每一包在系统回调 onCharacteristicWrite（流控信用）之后才发送下一包，不会阻塞调用线程。
+     * 全部发送完成后回调 {@link WriteResult}，其中包含耗时和吞吐量。
+     */
+    public void writeWithoutResponse(UUID serviceUUID, UUID characteristicUUID, byte[] data, ValueCallback<WriteResult> callback) {
+        write(serviceUUID, characteristicUUID, data, MAX_BYTE_SIZE_MTU, callback, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
     }
     @MainThread
     public void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, Callback writeCallback) {
@@ -568,112 +771,77 @@ public class Peripheral extends BluetoothGattCallback {
                 }
             };
         }
-        write(serviceUUID, characteristicUUID, data, 20, 0, writeCallback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        write(serviceUUID, characteristicUUID, data, MAX_BYTE_SIZE_MTU, 0, writeCallback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
     }
+
+    /**
+     * @param queueSleepTime 已不再使用。WRITE_TYPE_NO_RESPONSE 的分包按系统的流控回调发送，不再固定休眠。
+     */
     @MainThread
-    public void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, int maxByteSize, int queueSleepTime, Callback callback, int writeType) {
+    public void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, int maxByteSize, int queueSleepTime, final Callback callback, int writeType) {
+        write(serviceUUID, characteristicUUID, data, maxByteSize, new ValueCallback<WriteResult>() {
+            @Override
+            public void invoke(String error, WriteResult value) {
+                if (error != null) {
+                    callback.invoke(error, false);
+                } else {
+                    callback.invoke(null, true);
+                }
+            }
+        }, writeType);
+    }
+
+    public void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, int maxByteSize, ValueCallback<WriteResult> callback, int writeType) {
         if (!isConnected()) {
-            callback.invoke("Device is not connected (write)");
+            callback.invoke("Device is not connected (write)", null);
             return;
         }
         if (gatt == null) {
-            callback.invoke("BluetoothGatt is null");
-        } else {
-            BluetoothGattService service = gatt.getService(serviceUUID);
-            BluetoothGattCharacteristic characteristic = findWritableCharacteristic(service, characteristicUUID, writeType);
-
-            if (characteristic == null) {
-                callback.invoke("Characteristic " + characteristicUUID + " not found.");
-            } else {
-                characteristic.setWriteType(writeType);
+            callback.invoke("BluetoothGatt is null", null);
+            return;
+        }
+        BluetoothGattCharacteristic characteristic = findWritableCharacteristic(serviceUUID, characteristicUUID, writeType);
 
-                if (writeQueue.size() > 0) {
-                    callback.invoke("You have already an queued message");
-                    return;
-                } 
+        if (characteristic == null) {
+            callback.invoke("Characteristic " + characteristicUUID + " not found.", null);
+            return;
+        }
+        if (BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE == writeType) {
+            BlueLog.d(LOG_TAG, "write data:: writeType=WRITE_TYPE_NO_RESPONSE without response");
+        } else {
+            BlueLog.d(LOG_TAG, "write data:: writeType=WRITE_TYPE_DEFAULT with response");
+        }
+        enqueueOperation(new WriteOperation(characteristic, data, maxByteSize, writeType, callback));
+    }
 
-                // if (writeCallback != null) {
-                //     Log.e(LOG_TAG, "write--writeCallback-You're already writing");
-                //     callback.invoke("You're already writing");
-                // }
+    /**
+     * 提交一包数据。API 33 以上使用返回状态码的 writeCharacteristic，可以区分系统写队列已满（稍后重试）和真正的失败。
+     */
+    @SuppressWarnings("deprecation")
+    private int submitChunk(BluetoothGattCharacteristic characteristic, byte[] data, int writeType) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            int status = gatt.writeCharacteristic(characteristic, data, writeType);
+            if (status == BluetoothStatusCodes.SUCCESS) {
+                return SUBMIT_SUCCESS;
+            }
+            BlueLog.d(Peripheral.LOG_TAG, "writeCharacteristic status: " + status);
+            return status == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY ? SUBMIT_BUSY : SUBMIT_FAILED;
+        }
+        characteristic.setWriteType(writeType);
+        return doWrite(characteristic, data) ? SUBMIT_SUCCESS : SUBMIT_FAILED;
+    }
 
-                if (writeQueue.size() == 0 && writeCallback == null) {
-                    if (BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE == writeType) {
-                        Log.d(LOG_TAG, "write data:: writeType=WRITE_TYPE_NO_RESPONSE without response");
-                    }
-                    if (BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT == writeType) {
-                        Log.d(LOG_TAG, "write data:: writeType=WRITE_TYPE_DEFAULT with response");
-                        writeCallback = callback;
-                    }
-                    Log.i(LOG_TAG, "write data:: :" + bytesToHex(data) );
-                    Log.i(LOG_TAG, "write data:: data.length:" + data.length + ", maxByteSize:" + maxByteSize);
-
-                    if (data.length > maxByteSize) {
-                        int dataLength = data.length;
-                        int count = 0;
-                        byte[] firstMessage = null;
-                        List<byte[]> splittedMessage = new ArrayList<>();
-
-                        while (count < dataLength && (dataLength - count > maxByteSize)) {
-                            if (count == 0) {
-                                firstMessage = Arrays.copyOfRange(data, count, count + maxByteSize);
-                            } else {
-                                byte[] splitMessage = Arrays.copyOfRange(data, count, count + maxByteSize);
-                                splittedMessage.add(splitMessage);
-                            }
-                            count += maxByteSize;
-                        }
-                        if (count < dataLength) {
-                            // Other bytes in queue
-                            byte[] splitMessage = Arrays.copyOfRange(data, count, data.length);
-                            splittedMessage.add(splitMessage);
-                        }
+    private int resolveChunkSize(int maxByteSize) {
+        return maxByteSize > 0 ? maxByteSize : getMaxWriteLength();
+    }
 
-                        if (BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT == writeType) {
-                            writeQueue.addAll(splittedMessage);
-                            if (!doWrite(characteristic, firstMessage)) {
-                                writeQueue.clear();
-                                writeCallback = null;
-                                callback.invoke("Write failed");
-                            }
-                        } else {
-                            try {
-                                boolean writeError = false;
-                                if (!doWrite(characteristic, firstMessage)) {
-                                    writeError = true;
-                                    callback.invoke("Write failed");
-                                }
-                                if (!writeError) {
-                                    Thread.sleep(queueSleepTime);
-                                    for (byte[] message : splittedMessage) {
-                                        if (!doWrite(characteristic, message)) {
-                                            writeError = true;
-                                            callback.invoke("Write failed");
-                                            break;
-                                        }
-                                        Thread.sleep(queueSleepTime);
-                                    }
-                                    if (!writeError) {
-                                        callback.invoke();
-                                    }
-                                }
-                            } catch (InterruptedException e) {
-                                callback.invoke("Error during writing");
-                            }
-                        }
-                    } else if (doWrite(characteristic, data)) {
-                        Log.d(Peripheral.LOG_TAG, "Write completed");
-                        if (BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE == writeType) {
-                            Log.e(Peripheral.LOG_TAG, "write: writeCallback.invoke()");
-                            callback.invoke();
-                        }
-                    } else {
-                        callback.invoke("Write failed");
-                        writeCallback = null;
-                    }
-                }
-            }
+    private WriteCursor writeCursorFor(BluetoothGattCharacteristic characteristic) {
+        WriteCursor cursor = writeCursors.get(characteristic);
+        if (cursor == null) {
+            cursor = new WriteCursor();
+            writeCursors.put(characteristic, cursor);
         }
+        return cursor;
     }
 
     public void requestConnectionPriority(int connectionPriority, Callback callback) {
@@ -685,6 +853,14 @@ public class Peripheral extends BluetoothGattCallback {
         callback.invoke(null, status);
     }
 
+    /**
+     * 由 ConnectionPriorityController 在 dispatcher 线程调用
+     */
+    boolean applyConnectionPriority(int connectionPriority) {
+        BluetoothGatt gatt = this.gatt;
+        return gatt != null && gatt.requestConnectionPriority(connectionPriority);
+    }
+
     public void requestMTU(int mtu, ValueCallback<Integer> callback) {
         if (!isConnected()) {
             callback.invoke("Device is not connected (requestMTU)");
@@ -695,63 +871,134 @@ public class Peripheral extends BluetoothGattCallback {
             callback.invoke("BluetoothGatt is null");
             return;
         }
-        requestMTUCallback = callback;
-        gatt.requestMtu(mtu);
+        enqueueOperation(new MtuOperation(mtu, callback));
     }
 
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
         super.onMtuChanged(gatt, mtu, status);
-        if (requestMTUCallback != null) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            BlueLog.d(Peripheral.LOG_TAG, "mtu changed : " + mtu);
+            this.mtu = mtu;
+            linkStatsRecorder.setMtu(mtu);
+        }
+        MtuOperation operation = finishOperation(MtuOperation.class);
+        if (operation != null) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                requestMTUCallback.invoke(mtu);
+                operation.callback.invoke(mtu);
             } else {
-                requestMTUCallback.invoke("Error requesting MTU status = " + status);
+                operation.callback.invoke("Error requesting MTU status = " + status);
             }
-
-            requestMTUCallback = null;
         }
     }
 
-    // Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
-    // and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
-    private BluetoothGattCharacteristic findWritableCharacteristic(BluetoothGattService service, UUID characteristicUUID, int writeType) {
-        try {
-            // get write property
-            int writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE;
-            if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-                writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
-            }
+    /**
+     * 请求 PHY，Android 8.0 起支持。
+     * @param txPhy BluetoothDevice.PHY_LE_1M_MASK / PHY_LE_2M_MASK / PHY_LE_CODED_MASK 的组合
+     * @param phyOptions BluetoothDevice.PHY_OPTION_*，只对 Coded PHY 有效
+     * @param callback 返回协商后的 LinkStats；设备可能选择与请求不同的 PHY
+     */
+    public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions, ValueCallback<LinkStats> callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            callback.invoke("setPreferredPhy requires Android 8.0", null);
+            return;
+        }
+        if (!isConnected()) {
+            callback.invoke("Device is not connected (setPreferredPhy)", null);
+            return;
+        }
+        if (gatt == null) {
+            callback.invoke("BluetoothGatt is null", null);
+            return;
+        }
+        enqueueOperation(new PhyOperation(false, txPhy, rxPhy, phyOptions, callback));
+    }
 
-            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-            for (BluetoothGattCharacteristic characteristic : characteristics) {
-                if ((characteristic.getProperties() & writeProperty) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-                    return characteristic;
+    /**
+     * 请求 LE 2M PHY。手机不支持 2M、请求失败或设备拒绝时保持 1M，不回调错误，结果以 LinkStats 中的 PHY 为准。
+     */
+    public void requestLe2MPhy(final ValueCallback<LinkStats> callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || !isLe2MPhySupported()) {
+            callback.invoke(null, linkStats);
+            return;
+        }
+        setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED, new ValueCallback<LinkStats>() {
+            @Override
+            public void invoke(String error, LinkStats value) {
+                if (error != null) {
+                    BlueLog.w(Peripheral.LOG_TAG, "LE 2M PHY not applied, fallback to 1M: " + error);
                 }
+                callback.invoke(null, linkStats);
             }
+        });
+    }
 
-            // As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-            return service.getCharacteristic(characteristicUUID);
-        } catch (Exception e) {
-            Log.e(Peripheral.LOG_TAG, "Error on findWritableCharacteristic", e);
-            return null;
+    public void readPhy(ValueCallback<LinkStats> callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            callback.invoke(null, linkStats);
+            return;
+        }
+        if (!isConnected()) {
+            callback.invoke("Device is not connected (readPhy)", null);
+            return;
         }
+        if (gatt == null) {
+            callback.invoke("BluetoothGatt is null", null);
+            return;
+        }
+        enqueueOperation(new PhyOperation(true, 0, 0, 0, callback));
     }
 
-    private String generateHashKey(BluetoothGattCharacteristic characteristic) {
-        return generateHashKey(characteristic.getService().getUuid(), characteristic);
+    @SuppressLint("NewApi")
+    private static boolean isLe2MPhySupported() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return adapter != null && adapter.isLe2MPhySupported();
     }
 
-    private String generateHashKey(UUID serviceUUID, BluetoothGattCharacteristic characteristic) {
-        return String.valueOf(serviceUUID) + "|" + characteristic.getUuid() + "|" + characteristic.getInstanceId();
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+        // 设备也可以主动发起 PHY 更新，这时没有等待中的操作
+        handlePhy(false, txPhy, rxPhy, status);
+    }
+
+    @Override
+    public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyRead(gatt, txPhy, rxPhy, status);
+        handlePhy(true, txPhy, rxPhy, status);
+    }
+
+    private void handlePhy(boolean read, int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            BlueLog.d(Peripheral.LOG_TAG, "phy tx: " + txPhy + ", rx: " + rxPhy + " on peripheral: " + device.getAddress());
+            linkStatsRecorder.setPhy(txPhy, rxPhy);
+        }
+        PhyOperation operation = peekOperation(PhyOperation.class);
+        if (operation == null || operation.read != read) {
+            return;
+        }
+        finishOperation(PhyOperation.class);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            operation.callback.invoke(null, linkStats);
+        } else {
+            operation.callback.invoke((read ? "Error reading PHY status = " : "Error updating PHY status = ") + status, null);
+        }
+    }
+
+    // Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
+    // and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
+    private BluetoothGattCharacteristic findWritableCharacteristic(UUID serviceUUID, UUID characteristicUUID, int writeType) {
+        CharacteristicIndex index = characteristicIndex();
+        return index == null ? null : index.findOrAny(serviceUUID, characteristicUUID, CharacteristicIndex.writeRole(writeType));
     }
 
     private boolean internalRefreshDeviceCache(BluetoothGatt gatt) {
         if (gatt == null) // no need to be connected
             return false;
+        characteristicIndex = null;
 
-        Log.d(Peripheral.LOG_TAG, "Refreshing device cache...");
-        Log.d(Peripheral.LOG_TAG,  "gatt.refresh() (hidden)");
+        BlueLog.d(Peripheral.LOG_TAG, "Refreshing device cache...");
+        BlueLog.d(Peripheral.LOG_TAG,  "gatt.refresh() (hidden)");
         /*
          * There is a refresh() method in BluetoothGatt class but for now it's hidden.
          * We will call it using reflections.
@@ -761,12 +1008,468 @@ public class Peripheral extends BluetoothGattCallback {
             //noinspection ConstantConditions
             return (Boolean) refresh.invoke(gatt);
         } catch (final Exception e) {
-            Log.w(Peripheral.LOG_TAG, "An exception occurred while refreshing device", e);
-            Log.d(Peripheral.LOG_TAG,   "gatt.refresh() method not found");
+            BlueLog.w(Peripheral.LOG_TAG, "An exception occurred while refreshing device", e);
+            BlueLog.d(Peripheral.LOG_TAG,   "gatt.refresh() method not found");
+        }
+        return false;
+    }
+
+    /********************************************************************************
+     * Operation queue
+     *******************************************************************************/
+
+    private void enqueueOperation(GattOperation operation) {
+        synchronized (operationLock) {
+            operationQueue.add(operation);
+        }
+        if (dispatcher.isDispatchThread()) {
+            nextOperation();
+        } else {
+            dispatcher.post(nextOperationTask);
+        }
+    }
+
+    /**
+     * 如果当前没有正在执行的操作，则依次执行队列中的下一个。
+     * 提交失败的操作会立即回调错误，并继续执行后面的操作。
+     */
+    private void nextOperation() {
+        // 包括正在执行的操作
+        int depth;
+        while (true) {
+            GattOperation operation;
+            synchronized (operationLock) {
+                depth = operationQueue.size() + (currentOperation != null ? 1 : 0);
+                if (currentOperation != null) {
+                    break;
+                }
+                operation = operationQueue.poll();
+                if (operation == null) {
+                    break;
+                }
+                currentOperation = operation;
+            }
+            String error = gatt == null ? "BluetoothGatt is null" : operation.execute();
+            if (error == null) {
+                armTimeout(operation);
+                break;
+            }
+            synchronized (operationLock) {
+                if (currentOperation == operation) {
+                    currentOperation = null;
+                }
+            }
+            operation.fail(error);
+        }
+        priorityController.onQueueChanged(depth);
+    }
+
+    /**
+     * 从队列中移除还没有开始执行的写入，不回调它的结果。已经开始执行的写入无法撤回，返回 false。
+     *
+     * @param data 传给 write 的数组，按引用匹配
+     * @return 是否移除
+     */
+    public boolean cancelQueuedWrite(UUID characteristicUUID, byte[] data) {
+        // 队列深度在下一次 nextOperation 时更新给 priorityController
+        synchronized (operationLock) {
+            for (Iterator<GattOperation> it = operationQueue.iterator(); it.hasNext(); ) {
+                GattOperation operation = it.next();
+                if (operation instanceof WriteOperation
+                        && ((WriteOperation) operation).data == data
+                        && ((WriteOperation) operation).characteristic.getUuid().equals(characteristicUUID)) {
+                    it.remove();
+                    return true;
+                }
+            }
         }
         return false;
     }
 
+    private <T extends GattOperation> T peekOperation(Class<T> type) {
+        synchronized (operationLock) {
+            return type.isInstance(currentOperation) ? type.cast(currentOperation) : null;
+        }
+    }
+
+    /**
+     * 结束当前操作并开始执行下一个，返回被结束的操作；当前操作不是 type 类型时返回 null。
+     * 调用方应在此之后再回调操作结果，这样回调中新加入的操作会排在已有操作之后。
+     */
+    private <T extends GattOperation> T finishOperation(Class<T> type) {
+        T operation;
+        synchronized (operationLock) {
+            if (!type.isInstance(currentOperation)) {
+                return null;
+            }
+            operation = type.cast(currentOperation);
+            currentOperation = null;
+        }
+        timer.cancel(operation);
+        priorityController.onRequestCompleted(SystemClock.elapsedRealtimeNanos() - operation.submitTime);
+        nextOperation();
+        return operation;
+    }
+
+    /**
+     * 每次向 BluetoothGatt 提交请求后调用，同时记录提交时间用于统计延迟。
+     */
+    private void armTimeout(GattOperation operation) {
+        operation.submitTime = SystemClock.elapsedRealtimeNanos();
+        if (operationTimeout > 0) {
+            timer.schedule(operation, operationTimeout);
+        }
+    }
+
+    /**
+     * 在 dispatcher 线程执行。操作仍未完成时放弃它，回调超时错误，继续执行后面的操作。
+     */
+    private void timeoutOperation(GattOperation operation) {
+        synchronized (operationLock) {
+            if (currentOperation != operation) {
+                return;
+            }
+            currentOperation = null;
+        }
+        BlueLog.w(LOG_TAG, "Operation timeout on peripheral: " + device.getAddress());
+        nextOperation();
+        operation.fail("Timeout: no response in " + operationTimeout + "ms");
+    }
+
+    private void failAllOperations(String error) {
+        List<GattOperation> operations;
+        synchronized (operationLock) {
+            operations = new ArrayList<>(operationQueue.size() + 1);
+            if (currentOperation != null) {
+                timer.cancel(currentOperation);
+                operations.add(currentOperation);
+                currentOperation = null;
+            }
+            operations.addAll(operationQueue);
+            operationQueue.clear();
+        }
+        // 断开后特征值对象失效，缓冲区一并释放
+        writeCursors.clear();
+        for (GattOperation operation : operations) {
+            operation.fail(error);
+        }
+        // 断开后不会再有写入回调
+        staleWriteCallbacks.clear();
+    }
+
+    private abstract class GattOperation extends TimingWheel.Task {
+        // 最近一次提交请求的时间
+        long submitTime;
+
+        /**
+         * Submit the operation to the BluetoothGatt.
+         * @return null if submitted, otherwise the error message
+         */
+        abstract String execute();
+
+        abstract void fail(String error);
+
+        @Override
+        protected void onExpired() {
+            dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    timeoutOperation(GattOperation.this);
+                }
+            });
+        }
+    }
+
+    private final class ReadOperation extends GattOperation {
+        final UUID serviceUUID;
+        final UUID characteristicUUID;
+        final ValueCallback<UuidAndBytes> callback;
+
+        ReadOperation(UUID serviceUUID, UUID characteristicUUID, ValueCallback<UuidAndBytes> callback) {
+            this.serviceUUID = serviceUUID;
+            this.characteristicUUID = characteristicUUID;
+            this.callback = callback;
+        }
+
+        @Override
+        String execute() {
+            BluetoothGattCharacteristic characteristic = findReadableCharacteristic(serviceUUID, characteristicUUID);
+            if (characteristic == null) {
+                return "Characteristic " + characteristicUUID + " not found.";
+            }
+            return gatt.readCharacteristic(characteristic) ? null : "Read failed";
+        }
+
+        @Override
+        void fail(String error) {
+            callback.invoke(error, null);
+        }
+    }
+
+    private final class WriteOperation extends GattOperation implements Runnable {
+        final BluetoothGattCharacteristic characteristic;
+        final byte[] data;
+        final int maxByteSize;
+        final int writeType;
+        final ValueCallback<WriteResult> callback;
+        WriteCursor cursor;
+        long startTime;
+        int chunkCount;
+        int busyRetries;
+        boolean bulk;
+        // 已提交、还没收到 onCharacteristicWrite 的包数
+        int awaitingCallbacks;
+
+        WriteOperation(BluetoothGattCharacteristic characteristic, byte[] data, int maxByteSize, int writeType, ValueCallback<WriteResult> callback) {
+            this.characteristic = characteristic;
+            this.data = data;
+            this.maxByteSize = maxByteSize;
+            this.writeType = writeType;
+            this.callback = callback;
+        }
+
+        @Override
+        String execute() {
+            // 在真正执行时才确定切割长度，排在 MTU 请求之后的写入可以使用新的 MTU
+            int chunkSize = resolveChunkSize(maxByteSize);
+            if (BlueLog.D && BlueLog.isLoggable(BlueLog.DEBUG)) {
+                BlueLog.d(LOG_TAG, "write data:: :" + bytesToHex(data));
+                BlueLog.d(LOG_TAG, "write data:: data.length:" + data.length + ", maxByteSize:" + chunkSize);
+            }
+            startTime = SystemClock.elapsedRealtimeNanos();
+            cursor = writeCursorFor(characteristic);
+            cursor.setChunkSize(chunkSize);
+            cursor.start(data);
+            chunkCount = cursor.remainingChunks();
+            if (submitNextChunk() == SUBMIT_FAILED) {
+                cursor.clear();
+                return "Write failed";
+            }
+            if (chunkCount > 1) {
+                // 多包写入期间保持 HIGH
+                bulk = true;
+                priorityController.beginBulkTransfer();
+            }
+            return null;
+        }
+
+        void onChunkWritten() {
+            linkStatsRecorder.recordSent(cursor.currentLength());
+            cursor.advance();
+            if (!cursor.hasRemaining()) {
+                finish(null);
+                return;
+            }
+            priorityController.onRequestCompleted(SystemClock.elapsedRealtimeNanos() - submitTime);
+            if (submitNextChunk() == SUBMIT_FAILED) {
+                finish("Write failed");
+            } else {
+                // 有进展就重新计时，长数据不会因为总耗时超过超时时间而失败
+                armTimeout(this);
+            }
+        }
+
+        /**
+         * 写入游标当前的一包，成功提交后等待 onCharacteristicWrite 再移动游标。
+         */
+        private int submitNextChunk() {
+            int result = submitChunk(characteristic, cursor.current(), writeType);
+            if (result == SUBMIT_BUSY) {
+                if (++busyRetries > WRITE_BUSY_RETRY_MAX) {
+                    return SUBMIT_FAILED;
+                }
+                dispatcher.postDelayed(this, WRITE_BUSY_RETRY_DELAY);
+            } else if (result == SUBMIT_SUCCESS) {
+                busyRetries = 0;
+                awaitingCallbacks++;
+            }
+            return result;
+        }
+
+        /**
+         * 操作结束时还没收到的回调记到特征值上，之后到达时丢弃。
+         * 回调丢失时系统的 GATT 仍处于 busy，下一个写入无法提交，因此不会一直错位。
+         */
+        private void abandonCallbacks() {
+            if (awaitingCallbacks > 0) {
+                Integer stale = staleWriteCallbacks.get(characteristic);
+                staleWriteCallbacks.put(characteristic, (stale != null ? stale : 0) + awaitingCallbacks);
+                awaitingCallbacks = 0;
+            }
+        }
+
+        @Override
+        public void run() {
+            // busy 重试，操作已经结束（断开连接等）时忽略
+            if (peekOperation(WriteOperation.class) != this || !cursor.hasRemaining()) {
+                return;
+            }
+            if (submitNextChunk() == SUBMIT_FAILED) {
+                finish("Write failed");
+            }
+        }
+
+        void finish(String error) {
+            dispatcher.removeCallbacks(this);
+            cursor.clear();
+            endBulk();
+            abandonCallbacks();
+            if (finishOperation(WriteOperation.class) != this) {
+                return;
+            }
+            if (error != null) {
+                callback.invoke(error, null);
+            } else {
+                callback.invoke(null, new WriteResult(data.length, chunkCount, SystemClock.elapsedRealtimeNanos() - startTime));
+            }
+        }
+
+        @Override
+        void fail(String error) {
+            dispatcher.removeCallbacks(this);
+            if (cursor != null) {
+                cursor.clear();
+            }
+            endBulk();
+            abandonCallbacks();
+            callback.invoke(error, null);
+        }
+
+        private void endBulk() {
+            if (bulk) {
+                bulk = false;
+                priorityController.endBulkTransfer();
+            }
+        }
+    }
+
+    private final class NotifyOperation extends GattOperation {
+        final UUID serviceUUID;
+        final UUID characteristicUUID;
+        final boolean notify;
+        final Callback callback;
+
+        NotifyOperation(UUID serviceUUID, UUID characteristicUUID, boolean notify, Callback callback) {
+            this.serviceUUID = serviceUUID;
+            this.characteristicUUID = characteristicUUID;
+            this.notify = notify;
+            this.callback = callback;
+        }
+
+        @Override
+        String execute() {
+            BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(serviceUUID, characteristicUUID);
+            if (characteristic == null) {
+                return "Characteristic " + characteristicUUID + " not found";
+            }
+            if (!gatt.setCharacteristicNotification(characteristic, notify)) {
+                return "Failed to register notification for " + characteristicUUID;
+            }
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUIDHelper.uuidFromString(CHARACTERISTIC_NOTIFICATION_CONFIG));
+            if (descriptor == null) {
+                return "Set notification failed for " + characteristicUUID;
+            }
+
+            // Prefer notify over indicate
+            if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                BlueLog.d(Peripheral.LOG_TAG, "Characteristic " + characteristicUUID + " set NOTIFY");
+                descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+                BlueLog.d(Peripheral.LOG_TAG, "Characteristic " + characteristicUUID + " set INDICATE");
+                descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            } else {
+                BlueLog.d(Peripheral.LOG_TAG, "Characteristic " + characteristicUUID + " does not have NOTIFY or INDICATE property set");
+            }
+
+            try {
+                if (gatt.writeDescriptor(descriptor)) {
+                    BlueLog.d(Peripheral.LOG_TAG, "setNotify complete");
+                    return null;
+                }
+                return "Failed to set client characteristic notification for " + characteristicUUID;
+            } catch (Exception e) {
+                BlueLog.d(Peripheral.LOG_TAG, "Error on setNotify", e);
+                return "Failed to set client characteristic notification for " + characteristicUUID + ", error: " + e.getMessage();
+            }
+        }
+
+        @Override
+        void fail(String error) {
+            callback.invoke(error);
+        }
+    }
+
+    private final class RssiOperation extends GattOperation {
+        final ValueCallback<Integer> callback;
+
+        RssiOperation(ValueCallback<Integer> callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        String execute() {
+            return gatt.readRemoteRssi() ? null : "Read RSSI failed";
+        }
+
+        @Override
+        void fail(String error) {
+            callback.invoke(error, null);
+        }
+    }
+
+    private final class MtuOperation extends GattOperation {
+        final int mtu;
+        final ValueCallback<Integer> callback;
+
+        MtuOperation(int mtu, ValueCallback<Integer> callback) {
+            this.mtu = mtu;
+            this.callback = callback;
+        }
+
+        @Override
+        String execute() {
+            return gatt.requestMtu(mtu) ? null : "Request MTU failed";
+        }
+
+        @Override
+        void fail(String error) {
+            callback.invoke(error, null);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private final class PhyOperation extends GattOperation {
+        final boolean read;
+        final int txPhy;
+        final int rxPhy;
+        final int phyOptions;
+        final ValueCallback<LinkStats> callback;
+
+        PhyOperation(boolean read, int txPhy, int rxPhy, int phyOptions, ValueCallback<LinkStats> callback) {
+            this.read = read;
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+            this.phyOptions = phyOptions;
+            this.callback = callback;
+        }
+
+        @Override
+        String execute() {
+            // 系统接口没有返回值，结果在 onPhyUpdate / onPhyRead 中返回
+            if (read) {
+                gatt.readPhy();
+            } else {
+                gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+            }
+            return null;
+        }
+
+        @Override
+        void fail(String error) {
+            callback.invoke(error, null);
+        }
+    }
+
     public interface OnConnectionStatusCallback {
         void onPeripheralConnected(Peripheral peripheral);
         void onPeripheralDisconnected(Peripheral peripheral, Exception error);
@@ -817,6 +1520,42 @@ public class Peripheral extends BluetoothGattCallback {
         }
     }
 
+    /**
+     * 一次写入（可能被切割成多包）的结果。
+     */
+    public static class WriteResult {
+        private final int length;
+        private final int chunkCount;
+        private final long elapsedNanos;
+
+        public WriteResult(int length, int chunkCount, long elapsedNanos) {
+            this.length = length;
+            this.chunkCount = chunkCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000L;
+        }
+
+        public float getBytesPerSecond() {
+            return elapsedNanos > 0 ? length * 1e9f / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "WriteResult{length=" + length + ", chunks=" + chunkCount + ", elapsed=" + getElapsedMillis() + "ms, " + getBytesPerSecond() + "B/s}";
+        }
+    }
+
     private static String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder("0x");
         for (byte b : bytes) {
@@ -0,0 +1,206 @@
+package com.cleargrass.lib.blue.core;
+
+import android.os.SystemClock;
+
+import com.cleargrass.lib.log.BlueLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按 MAC 保存扫描或连接过的 Peripheral。
+ *
+ * 查找不加锁。数量超过 capacity 时按最后发现时间淘汰空闲（未连接、没有正在进行的连接）的设备并关闭其 GATT，
+ * 每次淘汰到 capacity 的 7/8 左右，避免之后每加入一个设备都要淘汰一次。
+ * 连接中的设备不会被淘汰，所以数量可能暂时超过 capacity。
+ *
+ * 同时为每个设备保存平滑后的 RSSI（见 {@link #recordRssi(Peripheral, int, long)}），
+ * 用 {@link #nearest(int)} 取信号最强的几个设备。
+ */
+public final class PeripheralRegistry {
+    private static final String LOG_TAG = "PeripheralRegistry";
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public interface Factory {
+        Peripheral create();
+    }
+
+    public interface OnEvictListener {
+        /**
+         * 在触发淘汰的 getOrCreate 调用线程回调
+         */
+        void onEvicted(String address, Peripheral peripheral);
+    }
+
+    private final ConcurrentHashMap<String, Peripheral> peripherals = new ConcurrentHashMap<>();
+    private final Object evictLock = new Object();
+    private volatile int capacity;
+    private volatile OnEvictListener onEvictListener;
+    private final RssiTable<Peripheral> rssiTable;
+
+    public PeripheralRegistry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PeripheralRegistry(int capacity) {
+        setCapacity(capacity);
+        rssiTable = new RssiTable<>(capacity);
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setOnEvictListener(OnEvictListener onEvictListener) {
+        this.onEvictListener = onEvictListener;
+    }
+
+    public Peripheral get(String address) {
+        return peripherals.get(address);
+    }
+
+    /**
+     * 不存在时用 factory 创建并加入。并发调用时只有一个实例会被保存，其它调用返回同一个实例。
+     *
+     * @return factory 返回 null 时为 null
+     */
+    public Peripheral getOrCreate(String address, Factory factory) {
+        Peripheral peripheral = peripherals.get(address);
+        if (peripheral != null) {
+            return peripheral;
+        }
+        Peripheral created = factory.create();
+        if (created == null) {
+            return null;
+        }
+        peripheral = peripherals.putIfAbsent(address, created);
+        if (peripheral != null) {
+            return peripheral;
+        }
+        created.rssiSlot = rssiTable.allocate(created);
+        created.rssiTable = rssiTable;
+        if (peripherals.size() > capacity) {
+            evict(address);
+        }
+        return created;
+    }
+
+    public Peripheral remove(String address) {
+        Peripheral peripheral = peripherals.remove(address);
+        if (peripheral != null) {
+            release(peripheral);
+        }
+        return peripheral;
+    }
+
+    private void release(Peripheral peripheral) {
+        rssiTable.release(peripheral.rssiSlot);
+        peripheral.rssiTable = null;
+        peripheral.rssiSlot = -1;
+    }
+
+    /**
+     * 收到广播时调用，同时更新原始值和平滑值
+     *
+     * @param elapsedRealtime SystemClock.elapsedRealtime()
+     */
+    public void recordRssi(Peripheral peripheral, int rssi, long elapsedRealtime) {
+        peripheral.updateRssi(rssi);
+        if (peripheral.rssiTable == rssiTable) {
+            rssiTable.update(peripheral.rssiSlot, rssi, elapsedRealtime);
+        }
+    }
+
+    /**
+     * @param measurementNoise 单次读数的方差（dBm²），越大越平滑、响应越慢，默认 16
+     * @param processNoise     每秒信号真实变化的方差（dBm²），越大越快跟上移动的设备，默认 2
+     * @param hysteresis       nearest 排名中超过前一名多少 dBm 才交换位置，默认 3
+     */
+    public void setRssiFilter(float measurementNoise, float processNoise, float hysteresis) {
+        rssiTable.setFilter(measurementNoise, processNoise, hysteresis);
+    }
+
+    /**
+     * 超过这个时间没有收到广播的设备不参与 nearest 排名，默认 10 秒
+     */
+    public void setStaleMillis(long staleMillis) {
+        rssiTable.setStaleMillis(staleMillis);
+    }
+
+    /**
+     * 平滑 RSSI 最强的 count 个设备，从近到远排列。
+     * 只维护 count 大小的堆，不对全部设备排序；排名带滞后，相近的设备不会来回交换。
+     */
+    public List<Peripheral> nearest(int count) {
+        return rssiTable.nearest(count, SystemClock.elapsedRealtime());
+    }
+
+    public int size() {
+        return peripherals.size();
+    }
+
+    /**
+     * @return 当前所有设备的快照
+     */
+    public Collection<Peripheral> values() {
+        return new ArrayList<>(peripherals.values());
+    }
+
+    /**
+     * @param keep 刚加入的设备，不参与淘汰
+     */
+    private void evict(String keep) {
+        List<Map.Entry<String, Peripheral>> evicted;
+        synchronized (evictLock) {
+            int target = capacity - capacity / 8;
+            int excess = peripherals.size() - target;
+            if (excess <= 0) {
+                return;
+            }
+            List<Map.Entry<String, Peripheral>> candidates = new ArrayList<>(peripherals.size());
+            for (Map.Entry<String, Peripheral> entry : peripherals.entrySet()) {
+                if (!entry.getKey().equals(keep) && entry.getValue().isIdle()) {
+                    candidates.add(entry);
+                }
+            }
+            Collections.sort(candidates, new Comparator<Map.Entry<String, Peripheral>>() {
+                @Override
+                public int compare(Map.Entry<String, Peripheral> a, Map.Entry<String, Peripheral> b) {
+                    return Long.compare(a.getValue().getLastSeenTime(), b.getValue().getLastSeenTime());
+                }
+            });
+            evicted = new ArrayList<>(Math.min(excess, candidates.size()));
+            for (int i = 0; i < candidates.size() && evicted.size() < excess; i++) {
+                Map.Entry<String, Peripheral> entry = candidates.get(i);
+                // 期间被替换或移除的不处理
+                if (peripherals.remove(entry.getKey(), entry.getValue())) {
+                    evicted.add(entry);
+                }
+            }
+        }
+        if (evicted.isEmpty()) {
+            return;
+        }
+        BlueLog.d(LOG_TAG, "evict " + evicted.size() + " idle peripherals, " + peripherals.size() + " left");
+        OnEvictListener listener = onEvictListener;
+        for (Map.Entry<String, Peripheral> entry : evicted) {
+            release(entry.getValue());
+            entry.getValue().close();
+            if (listener != null) {
+                listener.onEvicted(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.cleargrass.lib.blue.core;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 扫描过滤条件。
+ *
+ * 条件转换成系统的 ScanFilter 交给蓝牙控制器，不相关的广播不会唤醒应用进程。
+ * fdcd 的 service data 格式为 [frame control][product id][mac 倒序 6 字节]...，
+ * 产品 ID 通过 service data 掩码只比较第 2 个字节。
+ * 条件组合太多、超过控制器能容纳的数量时，退回到在回调中用 {@link #matches(ScanResult)} 过滤。
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+public final class QingpingScanFilter {
+
+    static final ParcelUuid QP_UUID = ParcelUuid.fromString("0000fdcd-0000-1000-8000-00805f9b34fb");
+    static final ParcelUuid QP_UUID_LEGACY = ParcelUuid.fromString("0000fff9-0000-1000-8000-00805f9b34fb");
+
+    // 多数手机的控制器可以容纳 16~32 个过滤条件，超过时系统会退回软件过滤或直接报错
+    private static final int MAX_HARDWARE_FILTERS = 16;
+
+    private static final byte[] PRODUCT_ID_MASK = new byte[]{0, (byte) 0xFF};
+
+    private final boolean includeLegacy;
+    private final byte[] productIds;
+    private final Set<String> macAddresses;
+
+    private QingpingScanFilter(Builder builder) {
+        this.includeLegacy = builder.includeLegacy;
+        this.productIds = new byte[builder.productIds.size()];
+        for (int i = 0; i < productIds.length; i++) {
+            productIds[i] = builder.productIds.get(i);
+        }
+        this.macAddresses = Collections.unmodifiableSet(new HashSet<>(builder.macAddresses));
+    }
+
+    /**
+     * @return 只接收 fdcd 广播的默认条件
+     */
+    public static QingpingScanFilter defaultFilter() {
+        return new Builder().build();
+    }
+
+    /**
+     * @return 交给系统的过滤条件；为空列表时需要全部在回调中过滤
+     */
+    List<ScanFilter> toScanFilters() {
+        List<ScanFilter> filters = new ArrayList<>();
+        int macCount = Math.max(1, macAddresses.size());
+        int productCount = Math.max(1, productIds.length);
+        int uuidCount = includeLegacy ? 2 : 1;
+        boolean withMac = !macAddresses.isEmpty();
+        boolean withProduct = productIds.length > 0;
+        // 组合太多时先放弃 MAC 条件，再放弃产品 ID，剩下的交给 matches 过滤
+        if (withMac && macCount * productCount * uuidCount > MAX_HARDWARE_FILTERS) {
+            withMac = false;
+            macCount = 1;
+        }
+        if (withProduct && macCount * productCount * uuidCount > MAX_HARDWARE_FILTERS) {
+            withProduct = false;
+        }
+        List<String> macs = withMac ? new ArrayList<>(macAddresses) : Collections.<String>singletonList(null);
+        for (String mac : macs) {
+            if (withProduct) {
+                for (byte productId : productIds) {
+                    filters.add(newFilter(QP_UUID, new byte[]{0, productId}, mac));
+                }
+            } else {
+                filters.add(newFilter(QP_UUID, null, mac));
+            }
+            if (includeLegacy) {
+                // 旧广播格式不同，只按 UUID 过滤
+                filters.add(newFilter(QP_UUID_LEGACY, null, mac));
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * @return 系统过滤条件是否已经完整表达了所有条件，为 false 时回调中仍需调用 matches
+     */
+    boolean isFullyOffloaded() {
+        int uuidCount = includeLegacy ? 2 : 1;
+        return Math.max(1, macAddresses.size()) * Math.max(1, productIds.length) * uuidCount <= MAX_HARDWARE_FILTERS;
+    }
+
+    private static ScanFilter newFilter(ParcelUuid uuid, byte[] serviceData, String mac) {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+        if (serviceData != null) {
+            builder.setServiceData(uuid, serviceData, PRODUCT_ID_MASK);
+        } else {
+            builder.setServiceData(uuid, new byte[0]);
+        }
+        if (mac != null) {
+            builder.setDeviceAddress(mac);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 在 Java 中检查广播是否满足条件，系统过滤不可用或不完整时使用。
+     */
+    public boolean matches(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        if (record == null) {
+            return false;
+        }
+        Map<ParcelUuid, byte[]> serviceData = record.getServiceData();
+        if (serviceData == null) {
+            return false;
+        }
+        byte[] data = serviceData.get(QP_UUID);
+        if (data != null) {
+            if (productIds.length > 0 && !containsProductId(data)) {
+                return false;
+            }
+        } else if (!includeLegacy || !serviceData.containsKey(QP_UUID_LEGACY)) {
+            return false;
+        }
+        return macAddresses.isEmpty() || macAddresses.contains(result.getDevice().getAddress());
+    }
+
+    private boolean containsProductId(byte[] data) {
+        if (data.length < 2) {
+            return false;
+        }
+        for (byte productId : productIds) {
+            if (data[1] == productId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static final class Builder {
+        private boolean includeLegacy = false;
+        private final List<Byte> productIds = new ArrayList<>();
+        private final Set<String> macAddresses = new HashSet<>();
+
+        /**
+         * 同时接收旧的 fff9 广播，默认不接收
+         */
+        public Builder includeLegacyUuid(boolean includeLegacy) {
+            this.includeLegacy = includeLegacy;
+            return this;
+        }
+
+        /**
+         * 只接收指定产品的 fdcd 广播，可以多次调用
+         */
+        public Builder addProductId(int productId) {
+            byte id = (byte) productId;
+            if (!productIds.contains(id)) {
+                productIds.add(id);
+            }
+            return this;
+        }
+
+        /**
+         * 只接收指定 MAC 的设备，可以多次调用
+         *
+         * @param macAddress 形如 AA:BB:CC:DD:EE:FF
+         */
+        public Builder addMacAddress(String macAddress) {
+            String mac = macAddress.toUpperCase(Locale.US);
+            if (!BluetoothAdapter.checkBluetoothAddress(mac)) {
+                throw new IllegalArgumentException("invalid mac address: " + macAddress);
+            }
+            macAddresses.add(mac);
+            return this;
+        }
+
+        public QingpingScanFilter build() {
+            return new QingpingScanFilter(this);
+        }
+    }
+}
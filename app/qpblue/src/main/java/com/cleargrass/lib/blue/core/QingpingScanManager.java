@@ -8,31 +8,122 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Build;
-import android.os.ParcelUuid;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import androidx.annotation.RequiresApi;
 
+import com.cleargrass.lib.log.BlueLog;
+
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
 @SuppressLint("MissingPermission")
 public class QingpingScanManager {
+    private static final String LOG_TAG = "QingpingScanManager";
     ScanCallback callback;
     protected BluetoothAdapter bluetoothAdapter;
     protected AtomicInteger scanSessionId = new AtomicInteger();
+    private volatile QingpingScanFilter filter = QingpingScanFilter.defaultFilter();
+    // 系统过滤条件不完整时，在回调中再检查一次
+    private volatile boolean filterInCallback = false;
+
+    // 批量模式：大于 0 时每隔 reportDelay 回调一次 onAcceptDevices
+    private long reportDelayMillis = 0;
+    private volatile boolean batching = false;
+    // 控制器不支持批量上报时，在这里缓存结果，由 worker 定时处理。worker 只在批量扫描期间存在，stopScan 时结束
+    private final Object pendingLock = new Object();
+    private List<ScanResult> pendingResults = new ArrayList<>();
+    private volatile GattDispatcher worker;
+    private boolean hardwareBatching = false;
+
+    // Android 7.0 起 30 秒内 startScan 超过 5 次，之后的扫描会被系统静默忽略
+    private static final int MAX_STARTS_PER_WINDOW = 5;
+    private static final long START_WINDOW_MILLIS = 30000;
+    private final long[] startTimes = new long[MAX_STARTS_PER_WINDOW];
+    private int nextStartSlot;
+
+    // 扫描窗口的开始和结束都在主线程调度
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private ScanScheduler scheduler;
+    private List<ScanFilter> scanFilters;
+    private boolean scanning = false;
+    private int scanMode;
+    private long windowStartedAt;
+
+    private volatile AdvertRecorder recorder;
 
     public QingpingScanManager(Context context) {
         android.bluetooth.BluetoothManager manager = (android.bluetooth.BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         bluetoothAdapter = manager.getAdapter();
     }
 
+    /**
+     * 开启批量模式，需要在 scan 之前调用。
+     * 控制器缓存扫描结果，每隔 reportDelayMillis 一次性上报；结果在后台线程处理，
+     * 每个周期只回调一次 {@link ScanCallback#onAcceptDevices(List)}（主线程）。
+     * 控制器不支持时在应用内按同样的周期合并。
+     *
+     * @param reportDelayMillis 0 表示关闭，逐条回调 onAcceptDevice
+     */
+    public void setReportDelay(long reportDelayMillis) {
+        this.reportDelayMillis = reportDelayMillis;
+    }
+
+    /**
+     * 设置扫描调度，需要在 scan 之前调用。为 null 时（默认）一直以低延迟模式扫描直到 stopScan。
+     */
+    public void setScheduler(ScanScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public ScanScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * 录制通过过滤的广播，用于之后在 AdvertReplayer 中回放。为 null 时停止录制，recorder 由调用者关闭。
+     */
+    public void setRecorder(AdvertRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    private void record(ScanResult result) {
+        AdvertRecorder recorder = this.recorder;
+        if (recorder == null) {
+            return;
+        }
+        ScanRecord scanRecord = result.getScanRecord();
+        try {
+            recorder.record(result.getTimestampNanos(), result.getDevice().getAddress(), result.getRssi(),
+                    scanRecord != null ? scanRecord.getBytes() : null);
+        } catch (Exception e) {
+            // 写入失败后不再录制，扫描不受影响
+            BlueLog.w(LOG_TAG, "record advert failed, recording stopped", e);
+            this.recorder = null;
+        }
+    }
+
     public void stopScan() {
         // update scanSessionId to prevent stopping next scan by running timeout thread
         scanSessionId.incrementAndGet();
-        bluetoothAdapter.getBluetoothLeScanner().stopScan(mScanCallback);
+        handler.removeCallbacks(startTask);
+        handler.removeCallbacks(endWindowTask);
+        if (scanning) {
+            stopScanInternal();
+        }
+        if (batching) {
+            batching = false;
+            synchronized (pendingLock) {
+                pendingResults.clear();
+            }
+        }
+        quitWorker();
         if (QingpingScanManager.this.callback != null) {
             QingpingScanManager.this.callback.onScanStop();
         }
@@ -40,49 +131,171 @@ public class QingpingScanManager {
     }
 
     public void scan(ScanCallback callback) {
+        scan(callback, QingpingScanFilter.defaultFilter());
+    }
+
+    public void scan(ScanCallback callback, QingpingScanFilter filter) {
         this.callback = callback;
-        ScanSettings.Builder scanSettingsBuilder = new ScanSettings.Builder();
-        List<ScanFilter> filters = new ArrayList<>();
+        this.filter = filter;
+        scanFilters = filter.toScanFilters();
+        filterInCallback = !filter.isFullyOffloaded();
+
+        hardwareBatching = false;
+        batching = reportDelayMillis > 0;
+        if (batching) {
+            if (worker == null) {
+                worker = GattDispatcher.newThread("qpblue-scan");
+            }
+            // 没有 stopScan 就再次 scan 时，不能启动第二个 flush 循环
+            worker.removeCallbacks(flushPendingTask);
+            hardwareBatching = bluetoothAdapter.isOffloadedScanBatchingSupported();
+            if (!hardwareBatching) {
+                worker.postDelayed(flushPendingTask, reportDelayMillis);
+            }
+        } else {
+            quitWorker();
+        }
+        if (scheduler != null) {
+            scheduler.reset();
+        }
+
+        startScanning();
+
+        if (QingpingScanManager.this.callback != null) {
+            QingpingScanManager.this.callback.onScanStart();
+        }
+    }
+
+    /**
+     * 结束批量处理线程。已经在处理的一批仍会执行完，结果按 scanSessionId 丢弃。
+     */
+    private void quitWorker() {
+        GattDispatcher worker = this.worker;
+        if (worker != null) {
+            this.worker = null;
+            worker.removeCallbacks(flushPendingTask);
+            worker.quit();
+        }
+    }
+
+    private final Runnable startTask = new Runnable() {
+        @Override
+        public void run() {
+            startScanning();
+        }
+    };
+
+    private final Runnable endWindowTask = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+
+    /**
+     * 开始扫描（有调度时开始一个扫描窗口）。超过系统的启动次数限制时推迟到允许的时间。
+     */
+    private void startScanning() {
+        long now = SystemClock.elapsedRealtime();
+        long wait = startQuotaWait(now);
+        if (wait > 0) {
+            BlueLog.w(LOG_TAG, "startScan quota reached, retry in " + wait + "ms");
+            handler.postDelayed(startTask, wait);
+            return;
+        }
+        ScanProfile profile = scheduler != null ? scheduler.current() : null;
+        startScanInternal(profile != null ? profile.getScanMode() : ScanSettings.SCAN_MODE_LOW_LATENCY, now);
+        if (profile != null) {
+            windowStartedAt = now;
+            handler.postDelayed(endWindowTask, profile.getWindowMillis());
+        }
+    }
+
+    private void endWindow() {
+        long now = SystemClock.elapsedRealtime();
+        ScanProfile finished = scheduler.current();
+        ScanProfile next = scheduler.onWindowFinished(now - windowStartedAt);
+        BlueLog.d(LOG_TAG, "scan window " + finished + " finished, next " + next);
+        if (finished.getPauseMillis() == 0 && resolveScanMode(next.getScanMode()) == scanMode) {
+            // 模式不变，继续扫描，不占用启动次数
+            windowStartedAt = now;
+            handler.postDelayed(endWindowTask, next.getWindowMillis());
+            return;
+        }
+        stopScanInternal();
+        handler.postDelayed(startTask, finished.getPauseMillis());
+    }
+
+    /**
+     * @return 还需要等待多久才能再次 startScan，0 表示可以立即开始
+     */
+    private long startQuotaWait(long now) {
+        // nextStartSlot 处是最早的一次启动
+        long oldest = startTimes[nextStartSlot];
+        if (oldest == 0) {
+            return 0;
+        }
+        // 多留一点余量，避免与系统的计时边界重合
+        return Math.max(0, oldest + START_WINDOW_MILLIS + 100 - now);
+    }
+
+    private static int resolveScanMode(int scanMode) {
+        if (scanMode == ScanSettings.SCAN_MODE_OPPORTUNISTIC && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return ScanSettings.SCAN_MODE_LOW_POWER;
+        }
+        return scanMode;
+    }
 
-        scanSettingsBuilder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+    private void startScanInternal(int mode, long now) {
+        scanMode = resolveScanMode(mode);
+        ScanSettings.Builder scanSettingsBuilder = new ScanSettings.Builder();
+        scanSettingsBuilder.setScanMode(scanMode);
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        if (hardwareBatching) {
+            scanSettingsBuilder.setReportDelay(reportDelayMillis);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
 //            scanSettingsBuilder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
             scanSettingsBuilder.setNumOfMatches(1);
             scanSettingsBuilder.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE);
         }
 
-        bluetoothAdapter.getBluetoothLeScanner().startScan(filters, scanSettingsBuilder.build(), mScanCallback);
+        bluetoothAdapter.getBluetoothLeScanner().startScan(scanFilters, scanSettingsBuilder.build(), mScanCallback);
+        startTimes[nextStartSlot] = now;
+        nextStartSlot = (nextStartSlot + 1) % MAX_STARTS_PER_WINDOW;
+        scanning = true;
+    }
 
-        if (QingpingScanManager.this.callback != null) {
-            QingpingScanManager.this.callback.onScanStart();
+    private void stopScanInternal() {
+        if (hardwareBatching) {
+            // 停止前取回控制器中缓存的结果
+            bluetoothAdapter.getBluetoothLeScanner().flushPendingScanResults(mScanCallback);
         }
+        bluetoothAdapter.getBluetoothLeScanner().stopScan(mScanCallback);
+        scanning = false;
     }
 
-    private static final ParcelUuid qp_uuid = ParcelUuid.fromString("0000fdcd-0000-1000-8000-00805f9b34fb");
-    private static final ParcelUuid qp_uuid_legacy = ParcelUuid.fromString("0000fff9-0000-1000-8000-00805f9b34fb");
-
     private android.bluetooth.le.ScanCallback mScanCallback = new android.bluetooth.le.ScanCallback() {
         @Override
         public void onScanResult(final int callbackType, final ScanResult result) {
             if (QingpingScanManager.this.callback == null) {
                 return;
             }
-            ScanRecord record = result.getScanRecord();
-            if (record == null) {
+            if (batching) {
+                // 控制器不支持批量上报，先缓存，由 flushPendingTask 统一处理
+                synchronized (pendingLock) {
+                    pendingResults.add(result);
+                }
                 return;
             }
-
-            if (record.getServiceData() == null) {
+            // 正常情况下控制器已经按 filter 过滤，这里只在条件没有完整交给系统时检查
+            if (filterInCallback && !filter.matches(result)) {
                 return;
             }
-
-            Set<ParcelUuid> uuidsSet = record.getServiceData().keySet();
-            if (!uuidsSet.contains(qp_uuid)) {
-                return;
+            ScanScheduler scheduler = QingpingScanManager.this.scheduler;
+            if (scheduler != null) {
+                scheduler.onDeviceSeen(result.getDevice().getAddress());
             }
-            String name = result.getDevice().getName();
-            String mac = result.getDevice().getAddress();
+            record(result);
             if (QingpingScanManager.this.callback != null) {
                 QingpingScanManager.this.callback.onAcceptDevice(result);
             }
@@ -90,7 +303,17 @@ public class QingpingScanManager {
 
         @Override
         public void onBatchScanResults(final List<ScanResult> results) {
-
+            GattDispatcher worker = QingpingScanManager.this.worker;
+            if (!batching || worker == null || results.isEmpty()) {
+                return;
+            }
+            final int session = scanSessionId.get();
+            worker.post(new Runnable() {
+                @Override
+                public void run() {
+                    processBatch(results, session);
+                }
+            });
         }
 
         @Override
@@ -102,4 +325,69 @@ public class QingpingScanManager {
         }
     };
 
+    private final Runnable flushPendingTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!batching) {
+                return;
+            }
+            List<ScanResult> results;
+            synchronized (pendingLock) {
+                results = pendingResults;
+                pendingResults = new ArrayList<>(Math.max(16, results.size()));
+            }
+            processBatch(results, scanSessionId.get());
+            GattDispatcher worker = QingpingScanManager.this.worker;
+            // 已经换成新的 worker 时由新的 scan 启动循环
+            if (worker != null && worker.isDispatchThread()) {
+                worker.postDelayed(this, reportDelayMillis);
+            }
+        }
+    };
+
+    /**
+     * 在 worker 线程执行：一次遍历完成过滤和同一设备的合并（保留最新的一条），再切回主线程回调。
+     */
+    private void processBatch(List<ScanResult> results, final int session) {
+        if (results.isEmpty()) {
+            return;
+        }
+        Map<String, ScanResult> latest = new LinkedHashMap<>(results.size() * 2);
+        boolean checkFilter = filterInCallback;
+        QingpingScanFilter filter = this.filter;
+        ScanScheduler scheduler = this.scheduler;
+        for (ScanResult result : results) {
+            if (checkFilter && !filter.matches(result)) {
+                continue;
+            }
+            String address = result.getDevice().getAddress();
+            if (scheduler != null) {
+                scheduler.onDeviceSeen(address);
+            }
+            record(result);
+            ScanResult previous = latest.get(address);
+            if (previous == null || previous.getTimestampNanos() <= result.getTimestampNanos()) {
+                latest.put(address, result);
+            }
+        }
+        if (latest.isEmpty()) {
+            return;
+        }
+        GattDispatcher worker = this.worker;
+        if (worker == null) {
+            // 已经 stopScan
+            return;
+        }
+        final List<ScanResult> accepted = new ArrayList<>(latest.values());
+        worker.deliver(new Runnable() {
+            @Override
+            public void run() {
+                ScanCallback callback = QingpingScanManager.this.callback;
+                // 停止扫描后到达的批次丢弃
+                if (callback != null && session == scanSessionId.get()) {
+                    callback.onAcceptDevices(accepted);
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,230 @@
+package com.cleargrass.lib.blue.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 每个设备的 RSSI 平滑值，由 PeripheralRegistry 管理。
+ *
+ * 使用一维卡尔曼滤波：两次广播间隔越长，估计的不确定度越大，新读数的权重也越大。
+ * 所有状态按槽位保存在基本类型数组中，设备加入时分配槽位、淘汰时回收，不为每次广播创建对象。
+ *
+ * 最近设备的排名带有滞后：已经在前 N 名中的设备只有被超过 hysteresis 以上才会让出位置，
+ * 避免 RSSI 抖动时排名来回跳动。
+ *
+ * 槽位的所有者（Peripheral）只用于返回排名结果，时间由调用者传入，不依赖 Android。
+ */
+final class RssiTable<T> {
+    // 超过这个时间没有收到广播的设备不参与排名
+    static final long DEFAULT_STALE_MILLIS = 10000;
+
+    private float measurementNoise = 16f;   // 单次读数的方差，约 4 dBm 标准差
+    private float processNoise = 2f;        // 每秒真实信号变化的方差
+    private float hysteresis = 3f;
+    private long staleMillis = DEFAULT_STALE_MILLIS;
+
+    private float[] estimate;
+    private float[] covariance;
+    private long[] updatedAt;
+    private int[] rank;
+    private Object[] owners;
+
+    private int[] freeSlots;
+    private int freeCount;
+    private int size;
+
+    // 上一次 nearest 结果中的槽位
+    private int[] ranked = new int[0];
+
+    RssiTable(int initialCapacity) {
+        int capacity = Math.max(8, initialCapacity);
+        estimate = new float[capacity];
+        covariance = new float[capacity];
+        updatedAt = new long[capacity];
+        rank = new int[capacity];
+        owners = new Object[capacity];
+        freeSlots = new int[capacity];
+    }
+
+    synchronized void setFilter(float measurementNoise, float processNoise, float hysteresis) {
+        this.measurementNoise = measurementNoise;
+        this.processNoise = processNoise;
+        this.hysteresis = hysteresis;
+    }
+
+    synchronized void setStaleMillis(long staleMillis) {
+        this.staleMillis = staleMillis;
+    }
+
+    synchronized int allocate(T owner) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (size == estimate.length) {
+                grow();
+            }
+            slot = size++;
+        }
+        estimate[slot] = Float.NaN;
+        covariance[slot] = 0;
+        updatedAt[slot] = 0;
+        rank[slot] = -1;
+        owners[slot] = owner;
+        return slot;
+    }
+
+    synchronized void release(int slot) {
+        if (slot < 0 || owners[slot] == null) {
+            return;
+        }
+        owners[slot] = null;
+        estimate[slot] = Float.NaN;
+        rank[slot] = -1;
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void grow() {
+        int capacity = estimate.length * 2;
+        estimate = Arrays.copyOf(estimate, capacity);
+        covariance = Arrays.copyOf(covariance, capacity);
+        updatedAt = Arrays.copyOf(updatedAt, capacity);
+        rank = Arrays.copyOf(rank, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+    }
+
+    synchronized void update(int slot, int rssi, long now) {
+        if (slot < 0) {
+            return;
+        }
+        float x = estimate[slot];
+        if (Float.isNaN(x)) {
+            estimate[slot] = rssi;
+            covariance[slot] = measurementNoise;
+        } else {
+            float p = covariance[slot] + processNoise * (now - updatedAt[slot]) / 1000f;
+            float gain = p / (p + measurementNoise);
+            estimate[slot] = x + gain * (rssi - x);
+            covariance[slot] = (1 - gain) * p;
+        }
+        updatedAt[slot] = now;
+    }
+
+    /**
+     * @return 平滑后的 RSSI，还没有读数时为 NaN
+     */
+    synchronized float get(int slot) {
+        return slot < 0 ? Float.NaN : estimate[slot];
+    }
+
+    /**
+     * @return 上一次 nearest 中的名次（从 0 开始），不在其中时为 -1
+     */
+    synchronized int rankOf(int slot) {
+        return slot < 0 ? -1 : rank[slot];
+    }
+
+    /**
+     * 取信号最强的 count 个设备。用大小为 count 的小根堆筛选，不对全部设备排序。
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> nearest(int count, long now) {
+        int[] heap = new int[Math.max(0, count)];
+        int heapSize = 0;
+        for (int slot = 0; slot < size && count > 0; slot++) {
+            if (owners[slot] == null || Float.isNaN(estimate[slot]) || now - updatedAt[slot] > staleMillis) {
+                continue;
+            }
+            if (heapSize < count) {
+                heap[heapSize] = slot;
+                siftUp(heap, heapSize++);
+            } else if (score(slot) > score(heap[0])) {
+                heap[0] = slot;
+                siftDown(heap, 0, heapSize);
+            }
+        }
+
+        // 先按上次名次排列（新进入的排在后面），再只在差距超过 hysteresis 时交换相邻位置
+        int[] selected = Arrays.copyOf(heap, heapSize);
+        for (int i = 1; i < heapSize; i++) {
+            int slot = selected[i];
+            int j = i;
+            while (j > 0 && previousBefore(slot, selected[j - 1])) {
+                selected[j] = selected[j - 1];
+                j--;
+            }
+            selected[j] = slot;
+        }
+        for (int i = 1; i < heapSize; i++) {
+            int slot = selected[i];
+            int j = i;
+            while (j > 0 && estimate[slot] > estimate[selected[j - 1]] + hysteresis) {
+                selected[j] = selected[j - 1];
+                j--;
+            }
+            selected[j] = slot;
+        }
+
+        for (int slot : ranked) {
+            rank[slot] = -1;
+        }
+        List<T> result = new ArrayList<>(heapSize);
+        for (int i = 0; i < heapSize; i++) {
+            rank[selected[i]] = i;
+            result.add((T) owners[selected[i]]);
+        }
+        ranked = selected;
+        return result;
+    }
+
+    // 上次已在前 N 名中的设备加上 hysteresis，新设备需要明显更强才能挤进来
+    private float score(int slot) {
+        return rank[slot] >= 0 ? estimate[slot] + hysteresis : estimate[slot];
+    }
+
+    private boolean previousBefore(int a, int b) {
+        int rankA = rank[a];
+        int rankB = rank[b];
+        if (rankA >= 0 && rankB >= 0) {
+            return rankA < rankB;
+        }
+        if (rankA >= 0 || rankB >= 0) {
+            return rankA >= 0;
+        }
+        return estimate[a] > estimate[b];
+    }
+
+    private void siftUp(int[] heap, int i) {
+        int slot = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (score(heap[parent]) <= score(slot)) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = slot;
+    }
+
+    private void siftDown(int[] heap, int i, int heapSize) {
+        int slot = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && score(heap[child + 1]) < score(heap[child])) {
+                child++;
+            }
+            if (score(slot) <= score(heap[child])) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = slot;
+    }
+}
@@ -2,10 +2,21 @@ package com.cleargrass.lib.blue.core;
 
 import android.bluetooth.le.ScanResult;
 
+import java.util.List;
+
 public interface ScanCallback {
     void onScanStart();
     void onScanStop();
     void onAcceptDevice(ScanResult scanResult);
     void onScanFailed(int errorCode);
 
+    /**
+     * 批量模式下每个周期回调一次，同一设备只保留最新的结果。默认逐个交给 onAcceptDevice。
+     */
+    default void onAcceptDevices(List<ScanResult> scanResults) {
+        for (ScanResult scanResult : scanResults) {
+            onAcceptDevice(scanResult);
+        }
+    }
+
 }
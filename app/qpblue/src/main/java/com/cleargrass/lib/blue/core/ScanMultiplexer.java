@@ -0,0 +1,250 @@
+package com.cleargrass.lib.blue.core;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * 多个使用者共用同一个系统扫描。
+ *
+ * 第一个订阅开始时启动扫描，最后一个订阅取消时停止，中间订阅的加入和退出不会重启扫描，
+ * 不占用系统 30 秒 5 次的扫描启动次数。
+ * 每个订阅有自己的过滤条件、同一设备的最小回调间隔和回调线程。
+ *
+ * 交给系统的过滤条件由 {@link #setHardwareFilter(QingpingScanFilter)} 统一设置，订阅的条件只能在它的范围内再筛选。
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+public final class ScanMultiplexer {
+
+    public interface Predicate {
+        boolean accept(ScanResult scanResult);
+    }
+
+    public interface AdvertObserver {
+        /**
+         * 每条广播在分发给各订阅之前调用一次（与订阅数量无关），在扫描回调线程执行
+         */
+        void onAdvert(ScanResult scanResult);
+    }
+
+    public static final class Subscription {
+        private final ScanCallback callback;
+        private final Predicate predicate;
+        private final long throttleMillis;
+        private final Executor executor;
+        // 只在扫描回调线程（主线程）访问
+        private final Map<String, Long> lastDelivered = new HashMap<>();
+        private volatile boolean active = true;
+
+        private Subscription(ScanCallback callback, Predicate predicate, long throttleMillis, Executor executor) {
+            this.callback = callback;
+            this.predicate = predicate;
+            this.throttleMillis = throttleMillis;
+            this.executor = executor;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        private boolean accept(ScanResult result, long now) {
+            if (predicate != null && !predicate.accept(result)) {
+                return false;
+            }
+            if (throttleMillis > 0) {
+                String address = result.getDevice().getAddress();
+                Long last = lastDelivered.get(address);
+                if (last != null && now - last < throttleMillis) {
+                    return false;
+                }
+                lastDelivered.put(address, now);
+            }
+            return true;
+        }
+    }
+
+    private final QingpingScanManager scanManager;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private QingpingScanFilter hardwareFilter = QingpingScanFilter.defaultFilter();
+    private volatile AdvertObserver advertObserver;
+    private boolean scanning = false;
+
+    public ScanMultiplexer(QingpingScanManager scanManager) {
+        this.scanManager = scanManager;
+    }
+
+    /**
+     * 交给系统的过滤条件，下次启动扫描时生效。默认只接收 fdcd 广播。
+     */
+    public void setHardwareFilter(QingpingScanFilter hardwareFilter) {
+        this.hardwareFilter = hardwareFilter;
+    }
+
+    /**
+     * 设置每条广播只需要处理一次的逻辑，如更新设备注册表和 RSSI 平滑
+     */
+    public void setAdvertObserver(AdvertObserver advertObserver) {
+        this.advertObserver = advertObserver;
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @param predicate      为 null 时接收所有通过系统过滤的广播
+     * @param throttleMillis 同一设备两次回调的最小间隔，0 表示不限制
+     * @param executor       回调执行的线程
+     */
+    @MainThread
+    public Subscription subscribe(ScanCallback callback, Predicate predicate, long throttleMillis, Executor executor) {
+        final Subscription subscription = new Subscription(callback, predicate, throttleMillis, executor);
+        subscriptions.add(subscription);
+        if (!scanning) {
+            scanning = true;
+            // onScanStart 会回调给包括这个订阅在内的所有订阅
+            scanManager.scan(hardwareCallback, hardwareFilter);
+        } else {
+            subscription.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (subscription.active) {
+                        subscription.callback.onScanStart();
+                    }
+                }
+            });
+        }
+        return subscription;
+    }
+
+    @MainThread
+    public void unsubscribe(final Subscription subscription) {
+        if (!subscriptions.remove(subscription)) {
+            return;
+        }
+        subscription.active = false;
+        subscription.lastDelivered.clear();
+        subscription.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                subscription.callback.onScanStop();
+            }
+        });
+        if (subscriptions.isEmpty() && scanning) {
+            scanning = false;
+            scanManager.stopScan();
+        }
+    }
+
+    @MainThread
+    public void unsubscribeAll() {
+        for (Subscription subscription : subscriptions) {
+            unsubscribe(subscription);
+        }
+    }
+
+    private final ScanCallback hardwareCallback = new ScanCallback() {
+        @Override
+        public void onScanStart() {
+            for (final Subscription subscription : subscriptions) {
+                subscription.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (subscription.active) {
+                            subscription.callback.onScanStart();
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onScanStop() {
+            // 只在最后一个订阅取消后停止，各订阅的 onScanStop 已在 unsubscribe 中回调
+        }
+
+        @Override
+        public void onAcceptDevice(final ScanResult scanResult) {
+            AdvertObserver observer = advertObserver;
+            if (observer != null) {
+                observer.onAdvert(scanResult);
+            }
+            long now = SystemClock.elapsedRealtime();
+            for (final Subscription subscription : subscriptions) {
+                if (!subscription.accept(scanResult, now)) {
+                    continue;
+                }
+                subscription.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (subscription.active) {
+                            subscription.callback.onAcceptDevice(scanResult);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onAcceptDevices(List<ScanResult> scanResults) {
+            AdvertObserver observer = advertObserver;
+            if (observer != null) {
+                for (ScanResult scanResult : scanResults) {
+                    observer.onAdvert(scanResult);
+                }
+            }
+            long now = SystemClock.elapsedRealtime();
+            for (final Subscription subscription : subscriptions) {
+                final List<ScanResult> accepted = new ArrayList<>(scanResults.size());
+                for (ScanResult scanResult : scanResults) {
+                    if (subscription.accept(scanResult, now)) {
+                        accepted.add(scanResult);
+                    }
+                }
+                if (accepted.isEmpty()) {
+                    continue;
+                }
+                subscription.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (subscription.active) {
+                            subscription.callback.onAcceptDevices(accepted);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            // 系统扫描已经结束，所有订阅随之失效
+            scanning = false;
+            List<Subscription> failed = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+            scanManager.stopScan();
+            for (final Subscription subscription : failed) {
+                subscription.active = false;
+                subscription.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscription.callback.onScanFailed(errorCode);
+                    }
+                });
+            }
+        }
+    };
+}
@@ -0,0 +1,62 @@
+package com.cleargrass.lib.blue.core;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * 扫描调度中的一档：用什么扫描模式扫多久，之后停多久。
+ * pauseMillis 为 0 且下一档模式相同时连续扫描，不会重新 startScan。
+ */
+public final class ScanProfile {
+
+    /**
+     * 发现设备：连续低延迟扫描
+     */
+    public static final ScanProfile DISCOVERY = new ScanProfile("discovery", ScanSettings.SCAN_MODE_LOW_LATENCY, 10000, 0);
+    public static final ScanProfile BALANCED = new ScanProfile("balanced", ScanSettings.SCAN_MODE_BALANCED, 10000, 5000);
+    public static final ScanProfile LOW_POWER = new ScanProfile("low_power", ScanSettings.SCAN_MODE_LOW_POWER, 15000, 15000);
+    /**
+     * 只接收其它应用扫描时顺带收到的广播，自身不耗电。Android 6.0 以下按 LOW_POWER 处理。
+     */
+    public static final ScanProfile OPPORTUNISTIC = new ScanProfile("opportunistic", ScanSettings.SCAN_MODE_OPPORTUNISTIC, 30000, 0);
+
+    private final String name;
+    private final int scanMode;
+    private final long windowMillis;
+    private final long pauseMillis;
+
+    /**
+     * @param scanMode ScanSettings.SCAN_MODE_*
+     * @param windowMillis 每次扫描的时长，结束时重新选择下一档
+     * @param pauseMillis 扫描结束后暂停的时长
+     */
+    public ScanProfile(String name, int scanMode, long windowMillis, long pauseMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be > 0: " + windowMillis);
+        }
+        this.name = name;
+        this.scanMode = scanMode;
+        this.windowMillis = windowMillis;
+        this.pauseMillis = pauseMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public long getPauseMillis() {
+        return pauseMillis;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
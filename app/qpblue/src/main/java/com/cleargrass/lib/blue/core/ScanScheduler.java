@@ -0,0 +1,104 @@
+package com.cleargrass.lib.blue.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 按发现新设备的速度在多档 {@link ScanProfile} 之间切换。
+ *
+ * profiles 按从积极到省电排列。每个扫描窗口结束时计算这段时间内新设备的速度：
+ * 低于 stallRate 时降一档，达到 burstRate 时回到第一档，其余情况保持当前档位。
+ * 需要其它策略时继承并覆盖 {@link #selectNext(int, long)}。
+ *
+ * 由 QingpingScanManager 调用，onDeviceSeen 可能在后台线程执行。
+ */
+public class ScanScheduler {
+
+    private final List<ScanProfile> profiles;
+    private float stallRate = 1f;
+    private float burstRate = 5f;
+
+    private final Set<String> seen = new HashSet<>();
+    private int newDevices;
+    private int index;
+
+    public ScanScheduler(List<ScanProfile> profiles) {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("profiles is empty");
+        }
+        this.profiles = new ArrayList<>(profiles);
+    }
+
+    /**
+     * @return 低延迟发现 -> 平衡 -> 低功耗 的默认调度
+     */
+    public static ScanScheduler adaptive() {
+        return new ScanScheduler(Arrays.asList(ScanProfile.DISCOVERY, ScanProfile.BALANCED, ScanProfile.LOW_POWER));
+    }
+
+    /**
+     * @param stallRate 每分钟新设备少于该值时降一档，默认 1
+     * @param burstRate 每分钟新设备达到该值时回到第一档，默认 5
+     */
+    public void setRates(float stallRate, float burstRate) {
+        this.stallRate = stallRate;
+        this.burstRate = burstRate;
+    }
+
+    public final synchronized ScanProfile current() {
+        return profiles.get(index);
+    }
+
+    protected final List<ScanProfile> getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * 开始新一轮扫描时调用，回到第一档并清空已发现的设备
+     */
+    synchronized void reset() {
+        seen.clear();
+        newDevices = 0;
+        index = 0;
+    }
+
+    synchronized void onDeviceSeen(String address) {
+        if (seen.add(address)) {
+            newDevices++;
+        }
+    }
+
+    /**
+     * 扫描窗口结束时调用
+     *
+     * @return 下一个窗口使用的档位
+     */
+    synchronized ScanProfile onWindowFinished(long windowMillis) {
+        int next = selectNext(newDevices, windowMillis);
+        index = Math.max(0, Math.min(profiles.size() - 1, next));
+        newDevices = 0;
+        return profiles.get(index);
+    }
+
+    /**
+     * @param newDevices 刚结束的窗口内首次发现的设备数
+     * @return 下一档在 profiles 中的位置
+     */
+    protected int selectNext(int newDevices, long windowMillis) {
+        float perMinute = newDevices * 60000f / Math.max(1, windowMillis);
+        if (perMinute >= burstRate) {
+            return 0;
+        }
+        if (perMinute < stallRate) {
+            return index + 1;
+        }
+        return index;
+    }
+
+    protected final int currentIndex() {
+        return index;
+    }
+}
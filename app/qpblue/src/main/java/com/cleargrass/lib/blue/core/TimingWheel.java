@@ -0,0 +1,228 @@
+package com.cleargrass.lib.blue.core;
+
+import com.cleargrass.lib.log.BlueLog;
+
+/**
+ * 所有 Peripheral 共用的超时调度器（hashed timing wheel）。
+ *
+ * 任务按到期的 tick 放入环形数组的桶中，用双向链表连接，加入和取消都是 O(1)，
+ * 不会为每个任务 post 一个 Handler runnable。只有一个后台线程，休眠到最早的到期 tick 再处理，
+ * 没有待执行任务时一直休眠，不会每个 tick 唤醒一次。
+ *
+ * 到期回调在调度线程执行，应尽快把工作转交给自己的线程。
+ */
+public final class TimingWheel {
+
+    private static final String LOG_TAG = "TimingWheel";
+    private static final long DEFAULT_TICK_MILLIS = 50;
+    private static final int DEFAULT_BUCKET_COUNT = 256;
+
+    private static volatile TimingWheel shared;
+
+    /**
+     * 需要定时的对象继承此类，任务对象本身就是链表节点，调度不需要额外创建对象。
+     */
+    public abstract static class Task {
+        private Task prev;
+        private Task next;
+        // 到期后在锁外执行前使用的链表
+        private Task nextExpired;
+        private int bucket = -1;
+        private long deadlineTick;
+
+        /**
+         * 在调度线程执行
+         */
+        protected abstract void onExpired();
+
+        public final boolean isScheduled() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickNanos;
+    private final Task[] buckets;
+    private final int mask;
+    private final long startNanos;
+    private final String threadName;
+
+    private final Object lock = new Object();
+    private int pending;
+    private long processedTick;
+    // 最早的到期 tick 的下界：加入任务时更新，取消时不更新（最多提前唤醒一次），每次处理后重新计算
+    private long minDeadlineTick = Long.MAX_VALUE;
+    private Thread worker;
+
+    public TimingWheel(long tickMillis, int bucketCount, String threadName) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be > 0: " + tickMillis);
+        }
+        int size = 1;
+        while (size < bucketCount) {
+            size <<= 1;
+        }
+        this.tickNanos = tickMillis * 1000000L;
+        this.buckets = new Task[size];
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.threadName = threadName;
+    }
+
+    /**
+     * @return 所有设备共用的实例，tick 为 50ms
+     */
+    public static TimingWheel shared() {
+        if (shared == null) {
+            synchronized (TimingWheel.class) {
+                if (shared == null) {
+                    shared = new TimingWheel(DEFAULT_TICK_MILLIS, DEFAULT_BUCKET_COUNT, "qpblue-timer");
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * 在 delayMillis 后执行 task.onExpired()。已经在等待中的 task 会按新的时间重新计时。
+     * 实际执行时间会向后对齐到 tick。
+     */
+    public void schedule(Task task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis * 1000000L + tickNanos - 1) / tickNanos);
+        synchronized (lock) {
+            if (task.bucket >= 0) {
+                unlink(task);
+            }
+            long now = currentTick();
+            task.deadlineTick = now + ticks;
+            link(task, (int) (task.deadlineTick & mask));
+            boolean earlier = task.deadlineTick < minDeadlineTick;
+            if (earlier) {
+                minDeadlineTick = task.deadlineTick;
+            }
+            if (worker == null) {
+                processedTick = now;
+                worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        workLoop();
+                    }
+                }, threadName);
+                worker.setDaemon(true);
+                worker.start();
+            } else if (earlier) {
+                // 比 worker 正在等待的时间更早，唤醒它重新计算
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * @return task 尚未执行并已被取消时为 true
+     */
+    public boolean cancel(Task task) {
+        synchronized (lock) {
+            if (task.bucket < 0) {
+                return false;
+            }
+            unlink(task);
+            return true;
+        }
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void link(Task task, int bucket) {
+        Task head = buckets[bucket];
+        task.prev = null;
+        task.next = head;
+        if (head != null) {
+            head.prev = task;
+        }
+        buckets[bucket] = task;
+        task.bucket = bucket;
+        pending++;
+    }
+
+    private void unlink(Task task) {
+        if (task.prev != null) {
+            task.prev.next = task.next;
+        } else {
+            buckets[task.bucket] = task.next;
+        }
+        if (task.next != null) {
+            task.next.prev = task.prev;
+        }
+        task.prev = null;
+        task.next = null;
+        task.bucket = -1;
+        pending--;
+    }
+
+    private void updateMinDeadline() {
+        long min = Long.MAX_VALUE;
+        if (pending > 0) {
+            for (Task head : buckets) {
+                for (Task task = head; task != null; task = task.next) {
+                    if (task.deadlineTick < min) {
+                        min = task.deadlineTick;
+                    }
+                }
+            }
+        }
+        minDeadlineTick = min;
+    }
+
+    private void workLoop() {
+        while (true) {
+            Task expired = null;
+            synchronized (lock) {
+                try {
+                    // 唤醒时不重置 processedTick：唤醒可能晚于新任务的到期 tick，重置会跳过那个桶
+                    while (pending == 0) {
+                        lock.wait();
+                    }
+                    long waitNanos = startNanos + minDeadlineTick * tickNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        lock.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = currentTick();
+                // 落后超过一圈时每个桶都需要检查
+                long from = Math.max(processedTick + 1, now - mask);
+                for (long tick = from; tick <= now; tick++) {
+                    Task task = buckets[(int) (tick & mask)];
+                    while (task != null) {
+                        Task next = task.next;
+                        if (task.deadlineTick <= now) {
+                            unlink(task);
+                            task.nextExpired = expired;
+                            expired = task;
+                        }
+                        task = next;
+                    }
+                }
+                processedTick = now;
+                updateMinDeadline();
+            }
+            while (expired != null) {
+                Task task = expired;
+                expired = task.nextExpired;
+                task.nextExpired = null;
+                if (task.isScheduled()) {
+                    // 前面的任务在回调中重新调度了它
+                    continue;
+                }
+                try {
+                    task.onExpired();
+                } catch (RuntimeException e) {
+                    BlueLog.e(LOG_TAG, "TimingWheel task failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.cleargrass.lib.blue.core;
+
+/**
+ * 长数据分包写入时使用的游标。
+ *
+ * 只保存原始数据和 offset/length，不会为每一包复制出新的数组；
+ * 每一包的数据复制到游标自带的缓冲区中，同一个特征值的所有写入共用这个缓冲区。
+ * 每次只切割一段数据：GATT 队列中的写入逐个执行，每个写入有自己的回调和结果，不会合并。
+ */
+final class WriteCursor {
+
+    private byte[] payload;
+    private int offset;
+    private int chunkSize;
+
+    // 整包缓冲区，长度等于 chunkSize
+    private byte[] chunkBuffer;
+    // 最后一包长度不足 chunkSize 时使用。writeCharacteristic 写入整个数组，不能只传长度，
+    // 所以只有长度与上一次相同时才能复用（连续发送同样长度的指令时），否则重新分配
+    private byte[] tailBuffer;
+    private byte[] current;
+
+    void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be > 0: " + chunkSize);
+        }
+        if (this.chunkSize != chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunkBuffer = null;
+            this.current = null;
+        }
+    }
+
+    /**
+     * 开始切割 data，之前没有写完的数据被丢弃
+     */
+    void start(byte[] data) {
+        payload = data;
+        offset = 0;
+        current = null;
+    }
+
+    boolean hasRemaining() {
+        return payload != null;
+    }
+
+    /**
+     * @return 当前一包的长度
+     */
+    int currentLength() {
+        return payload == null ? 0 : Math.min(chunkSize, payload.length - offset);
+    }
+
+    /**
+     * @return 当前一包的数据。返回的数组会被下一包复用，提交写入后不要再持有它。
+     */
+    byte[] current() {
+        if (payload == null) {
+            return null;
+        }
+        if (current != null) {
+            return current;
+        }
+        int length = currentLength();
+        if (offset == 0 && length == payload.length) {
+            // 不需要切割，直接使用原数组
+            current = payload;
+            return current;
+        }
+        byte[] buffer;
+        if (length == chunkSize) {
+            if (chunkBuffer == null) {
+                chunkBuffer = new byte[chunkSize];
+            }
+            buffer = chunkBuffer;
+        } else {
+            if (tailBuffer == null || tailBuffer.length != length) {
+                tailBuffer = new byte[length];
+            }
+            buffer = tailBuffer;
+        }
+        System.arraycopy(payload, offset, buffer, 0, length);
+        current = buffer;
+        return current;
+    }
+
+    /**
+     * 当前一包已写入，移动到下一包
+     */
+    void advance() {
+        if (payload == null) {
+            return;
+        }
+        offset += currentLength();
+        current = null;
+        if (offset >= payload.length) {
+            payload = null;
+            offset = 0;
+        }
+    }
+
+    /**
+     * @return 剩余（包括当前一包）的分包数量
+     */
+    int remainingChunks() {
+        if (payload == null) {
+            return 0;
+        }
+        int length = payload.length - offset;
+        // 空数据也写一包
+        return length == 0 ? 1 : (length + chunkSize - 1) / chunkSize;
+    }
+
+    void clear() {
+        payload = null;
+        offset = 0;
+        current = null;
+    }
+}
@@ -0,0 +1,177 @@
+package com.cleargrass.lib.blue.data
+
+/**
+ * 可复用的 fdcd 广播解析器。
+ *
+ * 直接在原始 scan record 上遍历 AD 结构，把 frame control、产品 ID、MAC 和传感器读数写入基本类型字段，
+ * 解析过程不创建对象；同一个实例可以反复 decode，适合大量设备的被动监测。
+ * 解析结果只在下一次 decode 之前有效。
+ *
+ * fdcd service data: [frame control][product id][mac 倒序 6 字节][type][len][value]...
+ */
+class QingpingAdvert {
+    var frameControl: Int = 0
+        private set
+    var productId: Byte = 0
+        private set
+
+    /** MAC，按显示顺序（AA:BB:.. 中的 AA 在前） */
+    val macBytes = ByteArray(6)
+
+    /** 温度（°C），没有时为 NaN */
+    var temperature: Float = Float.NaN
+        private set
+    /** 相对湿度（%），没有时为 NaN */
+    var humidity: Float = Float.NaN
+        private set
+    /** 电量（%），没有时为 -1 */
+    var battery: Int = -1
+        private set
+    /** 气压（hPa），没有时为 NaN */
+    var pressure: Float = Float.NaN
+        private set
+    /** PM2.5 / PM10（μg/m³），没有时为 -1 */
+    var pm25: Int = -1
+        private set
+    var pm10: Int = -1
+        private set
+    /** CO2（ppm），没有时为 -1 */
+    var co2: Int = -1
+        private set
+
+    val isEncrypted: Boolean
+        get() = frameControl and 0x01 != 0
+    val isBinding: Boolean
+        get() = frameControl and 0x02 != 0
+    val isBooting: Boolean
+        get() = frameControl and 0x04 != 0
+    val version: Int
+        get() = (frameControl shr 3) and 0x07
+    val isEvent: Boolean
+        get() = frameControl and 0x40 != 0
+    val hasBind: Boolean
+        get() = frameControl and 0x80 != 0
+
+    /**
+     * @param scanRecord ScanRecord.getBytes() 或 Peripheral.getAdvertisingBytes()
+     * @return 是否找到 fdcd service data
+     */
+    fun decode(scanRecord: ByteArray): Boolean {
+        reset()
+        var i = 0
+        while (i + 1 < scanRecord.size) {
+            val length = scanRecord[i].toInt() and 0xFF
+            if (length == 0) {
+                // 剩下的是补齐的 0
+                break
+            }
+            val end = i + 1 + length
+            if (end > scanRecord.size) {
+                break
+            }
+            // 0x16: Service Data - 16-bit UUID，UUID 为小端
+            if (scanRecord[i + 1] == SERVICE_DATA_16
+                    && length >= 3
+                    && scanRecord[i + 2] == UUID_FDCD_LOW
+                    && scanRecord[i + 3] == UUID_FDCD_HIGH) {
+                return decodeServiceData(scanRecord, i + 4, end)
+            }
+            i = end
+        }
+        return false
+    }
+
+    private fun decodeServiceData(bytes: ByteArray, start: Int, end: Int): Boolean {
+        if (end - start < 8) {
+            return false
+        }
+        frameControl = bytes[start].toInt() and 0xFF
+        productId = bytes[start + 1]
+        for (k in 0 until 6) {
+            macBytes[k] = bytes[start + 7 - k]
+        }
+        var p = start + 8
+        while (p + 2 <= end) {
+            val type = bytes[p].toInt() and 0xFF
+            val length = bytes[p + 1].toInt() and 0xFF
+            val value = p + 2
+            if (value + length > end) {
+                break
+            }
+            when (type) {
+                0x01 -> if (length >= 4) {
+                    temperature = int16(bytes, value) / 10f
+                    humidity = uint16(bytes, value + 2) / 10f
+                }
+                0x02 -> if (length >= 1) {
+                    battery = bytes[value].toInt() and 0xFF
+                }
+                0x07 -> if (length >= 2) {
+                    pressure = uint16(bytes, value) / 10f
+                }
+                0x12 -> if (length >= 4) {
+                    pm25 = uint16(bytes, value)
+                    pm10 = uint16(bytes, value + 2)
+                }
+                0x13 -> if (length >= 2) {
+                    co2 = uint16(bytes, value)
+                }
+            }
+            p = value + length
+        }
+        return true
+    }
+
+    private fun reset() {
+        frameControl = 0
+        productId = 0
+        macBytes.fill(0)
+        temperature = Float.NaN
+        humidity = Float.NaN
+        battery = -1
+        pressure = Float.NaN
+        pm25 = -1
+        pm10 = -1
+        co2 = -1
+    }
+
+    /**
+     * @return 形如 AA:BB:CC:DD:EE:FF 的 MAC，每次调用都会创建新的字符串
+     */
+    fun macAddress(): String {
+        return macString(macBytes, 0, false)
+    }
+
+    companion object {
+        private const val SERVICE_DATA_16: Byte = 0x16
+        private const val UUID_FDCD_LOW: Byte = 0xCD.toByte()
+        private const val UUID_FDCD_HIGH: Byte = 0xFD.toByte()
+        private val HEX = "0123456789ABCDEF".toCharArray()
+
+        private fun uint16(bytes: ByteArray, offset: Int): Int {
+            return (bytes[offset].toInt() and 0xFF) or ((bytes[offset + 1].toInt() and 0xFF) shl 8)
+        }
+
+        private fun int16(bytes: ByteArray, offset: Int): Int {
+            return (bytes[offset].toInt() and 0xFF) or (bytes[offset + 1].toInt() shl 8)
+        }
+
+        /**
+         * 一次生成大写、冒号分隔的 MAC 字符串
+         *
+         * @param reversed bytes 中是否为倒序（广播中的格式）
+         */
+        fun macString(bytes: ByteArray, offset: Int, reversed: Boolean): String {
+            val chars = CharArray(17)
+            for (k in 0 until 6) {
+                val b = bytes[if (reversed) offset + 5 - k else offset + k].toInt() and 0xFF
+                chars[k * 3] = HEX[b ushr 4]
+                chars[k * 3 + 1] = HEX[b and 0x0F]
+                if (k < 5) {
+                    chars[k * 3 + 2] = ':'
+                }
+            }
+            return String(chars)
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.cleargrass.lib.blue.protocal
+
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+
+/**
+ * 青萍协议的指令和响应。
+ *
+ * 帧格式：长度(类型 + 数据) | 类型 | 数据
+ *  - 结果帧：长度 | FF | 指令类型 | 状态（小端，0 表示成功），如 04FF010000
+ *  - 分页响应由 ResponseCollector 拼接后为：FF | 类型 | 全部数据（长度可能超过一个字节，首字节固定为 FF）
+ */
+object QpCodec {
+    const val TYPE_BIND: Byte = 0x01
+    const val TYPE_VERIFY: Byte = 0x02
+    /** 0015 上的连接 wifi 与绑定共用 0x01 */
+    const val TYPE_CONNECT_WIFI: Byte = 0x01
+    const val TYPE_WIFI_LIST_OLD: Byte = 0x04
+    const val TYPE_WIFI_LIST: Byte = 0x07
+    const val TYPE_ENABLE_DATA_CHANNEL: Byte = 0x0D
+    const val TYPE_CLIENT_ID: Byte = 0x1E
+    const val TYPE_RESULT: Byte = -1
+
+    /** 长度字节最大 255，数据最多 254 字节 */
+    const val MAX_PAYLOAD_LENGTH = 254
+}
+
+/**
+ * 指令。encodeTo 写入调用者复用的 ByteBuffer，encode 只分配一个正好大小的数组。
+ *
+ * 交给 writeCommand / writeInternalCommand 的数组会在 GATT 队列中保留到写完，不能复用，
+ * 这时用 encode；需要把多条指令拼到同一个缓冲区（如录制、批量下发）时用 encodeTo。
+ */
+sealed class QpCommand(val type: Byte) {
+
+    /** 数据部分的长度，不包括长度和类型字节 */
+    abstract val payloadLength: Int
+
+    /** 整帧长度 */
+    val frameLength: Int
+        get() = 2 + payloadLength
+
+    protected abstract fun writePayload(buffer: ByteBuffer)
+
+    /**
+     * 从 buffer 的 position 开始写入整帧，position 移到帧尾
+     *
+     * @return 写入的字节数
+     */
+    fun encodeTo(buffer: ByteBuffer): Int {
+        val payload = payloadLength
+        if (payload > QpCodec.MAX_PAYLOAD_LENGTH) {
+            throw IllegalArgumentException("payload too long: $payload")
+        }
+        if (buffer.remaining() < 2 + payload) {
+            throw BufferOverflowException()
+        }
+        buffer.put((payload + 1).toByte())
+        buffer.put(type)
+        writePayload(buffer)
+        return 2 + payload
+    }
+
+    fun encode(): ByteArray {
+        val bytes = ByteArray(frameLength)
+        encodeTo(ByteBuffer.wrap(bytes))
+        return bytes
+    }
+
+    /** 只有类型、没有数据的指令 */
+    open class Simple(type: Byte) : QpCommand(type) {
+        override val payloadLength: Int
+            get() = 0
+
+        override fun writePayload(buffer: ByteBuffer) {
+        }
+    }
+
+    /** 数据为 token 的指令 */
+    abstract class WithToken(type: Byte, private val token: ByteArray) : QpCommand(type) {
+        override val payloadLength: Int
+            get() = token.size
+
+        override fun writePayload(buffer: ByteBuffer) {
+            buffer.put(token)
+        }
+    }
+
+    /** 0x01 绑定，在 0001 上发送，结果为 [QpMessage.Status] */
+    class Bind(token: ByteArray) : WithToken(QpCodec.TYPE_BIND, token) {
+        constructor(token: String) : this(token.toByteArray())
+    }
+
+    /** 0x02 验证，在 0001 上发送，结果为 [QpMessage.Status] */
+    class Verify(token: ByteArray) : WithToken(QpCodec.TYPE_VERIFY, token) {
+        constructor(token: String) : this(token.toByteArray())
+    }
+
+    /** 0x0D 打开 0015/0016 通道 */
+    object EnableDataChannel : Simple(QpCodec.TYPE_ENABLE_DATA_CHANNEL)
+
+    /** 0x07 获取 wifi 列表，在 0015 上发送，响应为 [QpMessage.WifiList] */
+    object WifiList : Simple(QpCodec.TYPE_WIFI_LIST)
+
+    /** 0x1E 获取 client id，在 0001 上发送，响应为 [QpMessage.ClientId] */
+    object ClientId : Simple(QpCodec.TYPE_CLIENT_ID)
+
+    /**
+     * 0x01 连接 wifi，在 0015 上发送，数据为 "ssid","password"，结果为 [QpMessage.WifiConnectResult]
+     */
+    class ConnectWifi(ssid: String, password: String) : QpCommand(QpCodec.TYPE_CONNECT_WIFI) {
+        private val ssid = ssid.toByteArray()
+        private val password = password.toByteArray()
+
+        override val payloadLength: Int
+            get() = ssid.size + password.size + 5
+
+        override fun writePayload(buffer: ByteBuffer) {
+            buffer.put(QUOTE).put(ssid).put(QUOTE)
+            buffer.put(COMMA)
+            buffer.put(QUOTE).put(password).put(QUOTE)
+        }
+
+        private companion object {
+            const val QUOTE: Byte = 0x22 // "
+            const val COMMA: Byte = 0x2C // ,
+        }
+    }
+}
+
+/**
+ * 解析后的响应，由 [QpDecoder] 复用，只在下一次 decode 之前有效。
+ * 数据不复制，是原始数组中 [dataOffset] 开始的 [dataLength] 个字节。
+ */
+sealed class QpMessage {
+    /** 协议类型，结果帧为对应指令的类型 */
+    var type: Byte = 0
+        internal set
+    var bytes: ByteArray = EMPTY
+        internal set
+    var dataOffset = 0
+        internal set
+    var dataLength = 0
+        internal set
+
+    /** 结果帧的状态为 0 时成功，其它响应都视为成功（与 QpUtils.parseProtocol 一致） */
+    open val isSuccess: Boolean
+        get() = true
+
+    fun dataAt(index: Int): Byte {
+        if (index < 0 || index >= dataLength) {
+            throw IndexOutOfBoundsException("index $index, length $dataLength")
+        }
+        return bytes[dataOffset + index]
+    }
+
+    fun copyData(): ByteArray {
+        return bytes.copyOfRange(dataOffset, dataOffset + dataLength)
+    }
+
+    /** 数据按 UTF-8 解码，会创建字符串 */
+    fun text(): String {
+        return String(bytes, dataOffset, dataLength, Charsets.UTF_8)
+    }
+
+    internal fun set(type: Byte, bytes: ByteArray, dataOffset: Int, dataLength: Int) {
+        this.type = type
+        this.bytes = bytes
+        this.dataOffset = dataOffset
+        this.dataLength = dataLength
+    }
+
+    /** FF 结果帧，绑定、验证等指令的结果 */
+    class Status : QpMessage() {
+        /** 状态字节按小端组成的数值（最多 4 字节） */
+        var status = 0
+            internal set
+
+        override val isSuccess: Boolean
+            get() = status == 0
+
+        override fun toString() = "Status(type=0x${type.toHex()}, status=$status)"
+    }
+
+    /** 拼接后的 wifi 列表（0x07 / 0x04），内容为文本，如 "Qingping AP",4,-60, */
+    class WifiList : QpMessage() {
+        override fun toString() = "WifiList(${text()})"
+    }
+
+    /** 拼接后的 client id（0x1E） */
+    class ClientId : QpMessage() {
+        override fun toString() = "ClientId(${text()})"
+    }
+
+    /** 0016 上的连接 wifi 结果 */
+    class WifiConnectResult : QpMessage() {
+        /** 第一个数据字节为 1 时已连接 */
+        val isConnected: Boolean
+            get() = dataLength > 0 && bytes[dataOffset] == 1.toByte()
+
+        override fun toString() = "WifiConnectResult(connected=$isConnected)"
+    }
+
+    /** 其它类型 */
+    class Raw : QpMessage() {
+        override fun toString() = "Raw(type=0x${type.toHex()}, length=$dataLength)"
+    }
+
+    internal companion object {
+        val EMPTY = ByteArray(0)
+
+        fun Byte.toHex(): String = (toInt() and 0xFF).toString(16).padStart(2, '0')
+    }
+}
+
+/**
+ * 可复用的响应解析器，每种消息各有一个实例，decode 返回其中之一，解析过程不创建对象。
+ * 不是线程安全的，每个线程（如每个 dispatcher）使用自己的实例。
+ */
+class QpDecoder {
+    val status = QpMessage.Status()
+    val wifiList = QpMessage.WifiList()
+    val clientId = QpMessage.ClientId()
+    val wifiConnectResult = QpMessage.WifiConnectResult()
+    val raw = QpMessage.Raw()
+
+    // 非数组支持的 ByteBuffer 复制到这里
+    private var scratch = ByteArray(0)
+
+    /**
+     * @return 解析结果，帧不完整时为 null
+     */
+    fun decode(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset): QpMessage? {
+        if (length < 2) {
+            return null
+        }
+        val first = bytes[offset]
+        val second = bytes[offset + 1]
+        if (second == QpCodec.TYPE_RESULT) {
+            if (length < 3) {
+                return null
+            }
+            val dataOffset = offset + 3
+            val dataLength = length - 3
+            var value = 0
+            for (i in 0 until minOf(dataLength, 4)) {
+                value = value or ((bytes[dataOffset + i].toInt() and 0xFF) shl (8 * i))
+            }
+            status.set(bytes[offset + 2], bytes, dataOffset, dataLength)
+            status.status = value
+            return status
+        }
+        val message = when {
+            first == QpCodec.TYPE_RESULT && (second == QpCodec.TYPE_WIFI_LIST || second == QpCodec.TYPE_WIFI_LIST_OLD) -> wifiList
+            first == QpCodec.TYPE_RESULT && second == QpCodec.TYPE_CLIENT_ID -> clientId
+            second == QpCodec.TYPE_CONNECT_WIFI -> wifiConnectResult
+            else -> raw
+        }
+        message.set(second, bytes, offset + 2, length - 2)
+        return message
+    }
+
+    /**
+     * 解析 buffer 中 position 到 limit 之间的一帧，不改变 position。
+     * 数组支持的 buffer 直接引用其数组，其它复制到内部复用的数组。
+     */
+    fun decode(buffer: ByteBuffer): QpMessage? {
+        val length = buffer.remaining()
+        if (buffer.hasArray()) {
+            return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), length)
+        }
+        if (scratch.size < length) {
+            scratch = ByteArray(length)
+        }
+        buffer.duplicate().get(scratch, 0, length)
+        return decode(scratch, 0, length)
+    }
+}
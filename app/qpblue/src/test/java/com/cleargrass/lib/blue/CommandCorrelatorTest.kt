@@ -0,0 +1,206 @@
+package com.cleargrass.lib.blue
+
+import com.cleargrass.lib.blue.core.UUIDs
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class CommandCorrelatorTest {
+
+    private val collectingChanges = ArrayList<Boolean>()
+    private val correlator = CommandCorrelator { collectingChanges.add(it) }
+    // 按到达顺序记录 "名字:响应"
+    private val received = ArrayList<String>()
+
+    private fun responder(name: String): CommandResponder = { received.add("$name:${it.hex()}") }
+
+    @Test
+    fun sameType_routedByCharacteristic() {
+        correlator.expect(UUIDs.COMMON_READ, 0x01, responder("bind"))
+        correlator.expect(UUIDs.MY_READ, 0x01, responder("wifi"))
+
+        correlator.collect(UUIDs.MY_READ, bytes(0x02, 0x01, 0x01))
+        correlator.collect(UUIDs.COMMON_READ, status(0x01))
+
+        assertEquals(listOf("wifi:020101", "bind:04ff010000"), received)
+    }
+
+    @Test
+    fun differentTypes_waitConcurrently() {
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("verify"))
+        correlator.expect(UUIDs.COMMON_READ, 0x1E, responder("clientId"))
+
+        // 响应顺序与发送顺序相反
+        correlator.collect(UUIDs.COMMON_READ, status(0x1E))
+        correlator.collect(UUIDs.COMMON_READ, status(0x02))
+
+        assertEquals(listOf("clientId:04ff1e0000", "verify:04ff020000"), received)
+    }
+
+    @Test
+    fun sameType_answeredInOrder() {
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("first"))
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("second"))
+
+        correlator.collect(UUIDs.COMMON_READ, status(0x02, 0x00))
+        correlator.collect(UUIDs.COMMON_READ, status(0x02, 0x01))
+        correlator.collect(UUIDs.COMMON_READ, status(0x02, 0x02))
+
+        assertEquals(listOf("first:04ff020000", "second:04ff020100"), received)
+    }
+
+    @Test
+    fun pagedResponse_assembledPerType() {
+        correlator.expect(UUIDs.COMMON_READ, 0x1E, responder("clientId"))
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x05, 0x1E, 0x02, 0x02, 0x62))
+        assertArrayEquals(intArrayOf(1), correlator.missingPages(UUIDs.COMMON_READ, 0x1E))
+        assertEquals(listOf(true), collectingChanges)
+
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x05, 0x1E, 0x02, 0x01, 0x61))
+
+        assertEquals(listOf("clientId:ff1e6162"), received)
+        assertEquals(listOf(true, false), collectingChanges)
+        assertEquals(0, correlator.missingPages(UUIDs.COMMON_READ, 0x1E).size)
+    }
+
+    @Test
+    fun unknownType_notDeliveredToOtherWaiter() {
+        correlator.expect(UUIDs.MY_READ, 0x07, responder("wifiList"))
+
+        // 主动上报的数据没有等待者，不能当作 wifi 列表的响应
+        correlator.collect(UUIDs.MY_READ, bytes(0x02, 0x16, 0x01))
+        assertTrue(received.isEmpty())
+
+        correlator.collect(UUIDs.MY_READ, bytes(0x04, 0xFF, 0x07, 0x00, 0x00))
+        assertEquals(listOf("wifiList:04ff070000"), received)
+    }
+
+    @Test
+    fun alias_routesResponseTypeToRequest() {
+        correlator.alias(0x55, 0x56)
+        val request = responder("request")
+        correlator.expect(UUIDs.COMMON_READ, 0x55, request)
+
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x02, 0x55, 0x00))
+        assertTrue(received.isEmpty())
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x02, 0x56, 0x00))
+        assertEquals(listOf("request:025600"), received)
+
+        // cancel 也按登记的响应类型查找
+        correlator.expect(UUIDs.COMMON_READ, 0x55, request)
+        correlator.cancel(UUIDs.COMMON_READ, 0x55, request)
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x02, 0x56, 0x01))
+        assertEquals(1, received.size)
+    }
+
+    @Test
+    fun responder_canSendNextCommand() {
+        correlator.expect(UUIDs.COMMON_READ, 0x02, { response ->
+            received.add("verify:${response.hex()}")
+            correlator.expect(UUIDs.COMMON_READ, 0x1E, responder("clientId"))
+        })
+
+        correlator.collect(UUIDs.COMMON_READ, status(0x02))
+        correlator.collect(UUIDs.COMMON_READ, status(0x1E))
+
+        assertEquals(listOf("verify:04ff020000", "clientId:04ff1e0000"), received)
+    }
+
+    @Test
+    fun unknownType_noWaiterOnCharacteristic_dropped() {
+        correlator.expect(UUIDs.MY_READ, 0x07, responder("wifiList"))
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x02, 0x55, 0x00))
+        assertTrue(received.isEmpty())
+    }
+
+    @Test
+    fun cancelHead_armsNextWaiter() {
+        val first = responder("first")
+        var cancelled = 0
+        correlator.expect(UUIDs.COMMON_READ, 0x02, first) { cancelled++ }
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("second"))
+
+        correlator.cancel(UUIDs.COMMON_READ, 0x02, first)
+        correlator.collect(UUIDs.COMMON_READ, status(0x02))
+
+        assertEquals(listOf("second:04ff020000"), received)
+        // cancel 不回调 onCancel
+        assertEquals(0, cancelled)
+    }
+
+    @Test
+    fun cancelQueued_keepsOrderOfOthers() {
+        val second = responder("second")
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("first"))
+        correlator.expect(UUIDs.COMMON_READ, 0x02, second)
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("third"))
+
+        correlator.cancel(UUIDs.COMMON_READ, 0x02, second)
+        correlator.collect(UUIDs.COMMON_READ, status(0x02, 0x00))
+        correlator.collect(UUIDs.COMMON_READ, status(0x02, 0x01))
+
+        assertEquals(listOf("first:04ff020000", "third:04ff020100"), received)
+    }
+
+    @Test
+    fun cancelHeadWhileCollecting_discardsPages() {
+        val first = responder("first")
+        correlator.expect(UUIDs.COMMON_READ, 0x1E, first)
+        correlator.expect(UUIDs.COMMON_READ, 0x1E, responder("second"))
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x05, 0x1E, 0x02, 0x01, 0x61))
+
+        correlator.cancel(UUIDs.COMMON_READ, 0x1E, first)
+        assertEquals(listOf(true, false), collectingChanges)
+
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x05, 0x1E, 0x02, 0x02, 0x62))
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x05, 0x1E, 0x02, 0x01, 0x63))
+        assertEquals(listOf("second:ff1e6362"), received)
+    }
+
+    @Test
+    fun cancelUnknown_ignored() {
+        correlator.cancel(UUIDs.COMMON_READ, 0x02, responder("none"))
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("first"))
+        correlator.cancel(UUIDs.COMMON_READ, 0x02, responder("other"))
+
+        correlator.collect(UUIDs.COMMON_READ, status(0x02))
+        assertEquals(listOf("first:04ff020000"), received)
+    }
+
+    @Test
+    fun cancelAll_notifiesEveryWaiterOnce() {
+        val cancelled = ArrayList<String>()
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("verify")) { cancelled.add("verify") }
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("verify2")) { cancelled.add("verify2") }
+        correlator.expect(UUIDs.COMMON_READ, 0x1E, responder("clientId")) { cancelled.add("clientId") }
+        correlator.expect(UUIDs.MY_READ, 0x07, responder("wifiList")) { cancelled.add("wifiList") }
+        correlator.collect(UUIDs.COMMON_READ, bytes(0x05, 0x1E, 0x02, 0x01, 0x61))
+
+        correlator.cancelAll()
+
+        assertEquals(setOf("verify", "verify2", "clientId", "wifiList"), cancelled.toSet())
+        assertEquals(4, cancelled.size)
+        assertEquals(listOf(true, false), collectingChanges)
+
+        correlator.collect(UUIDs.COMMON_READ, status(0x02))
+        correlator.collect(UUIDs.MY_READ, bytes(0x02, 0x07, 0x00))
+        assertTrue(received.isEmpty())
+    }
+
+    @Test
+    fun expectAfterCancelAll_works() {
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("old"))
+        correlator.cancelAll()
+        correlator.expect(UUIDs.COMMON_READ, 0x02, responder("new"))
+
+        correlator.collect(UUIDs.COMMON_READ, status(0x02))
+        assertEquals(listOf("new:04ff020000"), received)
+    }
+
+    private fun bytes(vararg values: Int): ByteArray = ByteArray(values.size) { values[it].toByte() }
+
+    private fun status(type: Int, status: Int = 0): ByteArray = bytes(0x04, 0xFF, type, status, 0x00)
+
+    private fun ByteArray.hex(): String = joinToString("") { "%02x".format(it.toInt() and 0xFF) }
+}
@@ -0,0 +1,134 @@
+package com.cleargrass.lib.blue
+
+import com.cleargrass.lib.blue.core.UUIDs
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * 0x1E (clientid) 在 0002 上分页返回，用它验证分页拼接
+ */
+class ResponseCollectorTest {
+
+    private val collectingChanges = ArrayList<Boolean>()
+    private val collector = ResponseCollector { collectingChanges.add(it) }
+    private var response: ByteArray? = null
+
+    @Before
+    fun setUp() {
+        collector.setResponder(TYPE, UUIDs.COMMON_READ) { response = it }
+    }
+
+    @Test
+    fun pagesOutOfOrder_assembledInPageOrder() {
+        collector.collect(UUIDs.COMMON_READ, page(3, 2, "bb"))
+        collector.collect(UUIDs.COMMON_READ, page(3, 3, "c"))
+        assertNull(response)
+        collector.collect(UUIDs.COMMON_READ, page(3, 1, "aaa"))
+
+        assertArrayEquals(expected("aaabbc"), response)
+        assertEquals(listOf(true, false), collectingChanges)
+        assertFalse(collector.isCollecting)
+    }
+
+    @Test
+    fun duplicatePage_keepsFirstCopy() {
+        collector.collect(UUIDs.COMMON_READ, page(2, 1, "aa"))
+        collector.collect(UUIDs.COMMON_READ, page(2, 1, "zz"))
+        assertEquals(1, collector.duplicatePages)
+        assertArrayEquals(intArrayOf(2), collector.missingPages())
+
+        collector.collect(UUIDs.COMMON_READ, page(2, 2, "bb"))
+        assertArrayEquals(expected("aabb"), response)
+    }
+
+    @Test
+    fun missingPages_reportedUntilComplete() {
+        assertEquals(0, collector.missingPages().size)
+        collector.collect(UUIDs.COMMON_READ, page(4, 1, "a"))
+        collector.collect(UUIDs.COMMON_READ, page(4, 3, "c"))
+
+        assertArrayEquals(intArrayOf(2, 4), collector.missingPages())
+        assertNull(response)
+        assertTrue(collector.isCollecting)
+    }
+
+    @Test
+    fun pageOutOfRange_ignored() {
+        collector.collect(UUIDs.COMMON_READ, page(2, 0, "x"))
+        collector.collect(UUIDs.COMMON_READ, page(2, 3, "x"))
+        assertArrayEquals(intArrayOf(1, 2), collector.missingPages())
+    }
+
+    @Test
+    fun pageLongerThanStride_restridesReceivedPages() {
+        // 第一页很短，缓冲区按最小间隔 20 分配，第二页超过它
+        val long = "x".repeat(25)
+        collector.collect(UUIDs.COMMON_READ, page(3, 1, "ab"))
+        collector.collect(UUIDs.COMMON_READ, page(3, 3, "cd"))
+        collector.collect(UUIDs.COMMON_READ, page(3, 2, long))
+
+        assertArrayEquals(expected("ab" + long + "cd"), response)
+    }
+
+    @Test
+    fun newPageCount_restartsCollecting() {
+        collector.collect(UUIDs.COMMON_READ, page(3, 1, "old"))
+        collector.collect(UUIDs.COMMON_READ, page(2, 2, "bb"))
+        assertArrayEquals(intArrayOf(1), collector.missingPages())
+
+        collector.collect(UUIDs.COMMON_READ, page(2, 1, "aa"))
+        assertArrayEquals(expected("aabb"), response)
+    }
+
+    @Test
+    fun statusFrame_deliveredWithoutPaging() {
+        val status = byteArrayOf(0x04, -1, TYPE, 0x01, 0x00)
+        collector.collect(UUIDs.COMMON_READ, status)
+
+        assertSame(status, response)
+        assertEquals(0.toByte(), collector.waitingType)
+        assertTrue(collectingChanges.isEmpty())
+    }
+
+    @Test
+    fun otherCharacteristic_ignored() {
+        collector.collect(UUIDs.MY_READ, page(1, 1, "a"))
+        assertNull(response)
+        assertEquals(TYPE, collector.waitingType)
+    }
+
+    @Test
+    fun reusedAfterResponse() {
+        collector.collect(UUIDs.COMMON_READ, page(1, 1, "first"))
+        assertArrayEquals(expected("first"), response)
+
+        collector.setResponder(TYPE, UUIDs.COMMON_READ) { response = it }
+        collector.collect(UUIDs.COMMON_READ, page(2, 2, "2"))
+        collector.collect(UUIDs.COMMON_READ, page(2, 1, "1"))
+        assertArrayEquals(expected("12"), response)
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun setResponder_whileWaiting_throws() {
+        collector.setResponder(TYPE, UUIDs.COMMON_READ) { }
+    }
+
+    private fun page(count: Int, page: Int, data: String): ByteArray {
+        val bytes = data.toByteArray()
+        return byteArrayOf((bytes.size + 3).toByte(), TYPE, count.toByte(), page.toByte()) + bytes
+    }
+
+    private fun expected(data: String): ByteArray {
+        return byteArrayOf(-1, TYPE) + data.toByteArray()
+    }
+
+    private companion object {
+        const val TYPE: Byte = 0x1E
+    }
+}
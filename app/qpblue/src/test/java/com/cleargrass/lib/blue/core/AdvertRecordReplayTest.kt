@@ -0,0 +1,183 @@
+package com.cleargrass.lib.blue.core
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+
+class AdvertRecordReplayTest {
+
+    private class Advert(val timestampNanos: Long, val address: String, val rssi: Int, val scanRecord: ByteArray)
+
+    private val adverts = listOf(
+        Advert(5_000_000_123_000L, "AA:BB:CC:DD:EE:01", -40, byteArrayOf(0x02, 0x01, 0x06)),
+        Advert(5_000_000_124_000L, "aa:bb:cc:dd:ee:02", -100, ByteArray(0)),
+        Advert(5_000_250_000_000L, "AA:BB:CC:DD:EE:01", 7, ByteArray(300) { it.toByte() }),
+    )
+
+    private fun capture(adverts: List<Advert>): ByteArray {
+        val output = ByteArrayOutputStream()
+        AdvertRecorder(output).use { recorder ->
+            adverts.forEach { recorder.record(it.timestampNanos, it.address, it.rssi, it.scanRecord) }
+            assertEquals(adverts.size, recorder.count)
+        }
+        return output.toByteArray()
+    }
+
+    @Test
+    fun recordThenReplay_roundTrip() {
+        AdvertReplayer(ByteArrayInputStream(capture(adverts))).use { replayer ->
+            for (expected in adverts) {
+                val record = replayer.next()!!
+                assertEquals(expected.timestampNanos, record.timestampNanos)
+                assertEquals(expected.address.uppercase(), record.address)
+                assertEquals(expected.rssi, record.rssi)
+                assertEquals(expected.scanRecord.size, record.length)
+                assertArrayEquals(expected.scanRecord, record.copyScanRecord())
+            }
+            assertNull(replayer.next())
+        }
+    }
+
+    @Test
+    fun nullScanRecord_recordedAsEmpty() {
+        val output = ByteArrayOutputStream()
+        AdvertRecorder(output).use { it.record(1_000L, "00:11:22:33:44:55", -60, null) }
+
+        val record = AdvertReplayer(ByteArrayInputStream(output.toByteArray())).next()!!
+        assertEquals(0, record.length)
+        assertEquals("00:11:22:33:44:55", record.address)
+    }
+
+    @Test
+    fun timestamps_keptAtMicrosecondPrecision() {
+        val bytes = capture(listOf(Advert(1_234_567_891L, "00:00:00:00:00:01", 0, ByteArray(0))))
+        assertEquals(1_234_567_000L, AdvertReplayer(ByteArrayInputStream(bytes)).next()!!.timestampNanos)
+    }
+
+    @Test
+    fun outOfOrderTimestamps_neverGoBackwards() {
+        val bytes = capture(listOf(
+            Advert(2_000_000L, "00:00:00:00:00:01", 0, ByteArray(0)),
+            Advert(1_000_000L, "00:00:00:00:00:02", 0, ByteArray(0)),
+            Advert(3_000_000L, "00:00:00:00:00:03", 0, ByteArray(0)),
+        ))
+        val replayer = AdvertReplayer(ByteArrayInputStream(bytes))
+        assertEquals(2_000_000L, replayer.next()!!.timestampNanos)
+        assertEquals(2_000_000L, replayer.next()!!.timestampNanos)
+        assertEquals(3_000_000L, replayer.next()!!.timestampNanos)
+    }
+
+    @Test
+    fun replay_unpaced_reusesRecord() {
+        val records = ArrayList<AdvertRecord>()
+        val addresses = ArrayList<String>()
+        val count = AdvertReplayer(ByteArrayInputStream(capture(adverts))).use { replayer ->
+            replayer.replay({ record ->
+                records.add(record)
+                addresses.add(record.address)
+            }, 0f)
+        }
+
+        assertEquals(adverts.size, count)
+        assertEquals(adverts.map { it.address.uppercase() }, addresses)
+        assertSame(records[0], records[2])
+    }
+
+    @Test
+    fun replay_paced_followsRecordedGaps() {
+        // 录制间隔 250ms，10 倍速约 25ms
+        val startNanos = System.nanoTime()
+        AdvertReplayer(ByteArrayInputStream(capture(adverts))).use { it.replay({ }, 10f) }
+        val elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000
+        assertTrue("elapsed $elapsedMillis", elapsedMillis >= 20)
+    }
+
+    @Test
+    fun emptyCapture_hasNoRecords() {
+        val output = ByteArrayOutputStream()
+        AdvertRecorder(output).close()
+
+        assertNull(AdvertReplayer(ByteArrayInputStream(output.toByteArray())).next())
+    }
+
+    @Test
+    fun truncatedRecord_throwsEof() {
+        val bytes = capture(adverts)
+        // 去掉最后一条 scan record 的一部分
+        val truncated = bytes.copyOf(bytes.size - 10)
+        AdvertReplayer(ByteArrayInputStream(truncated)).use { replayer ->
+            replayer.next()!!
+            replayer.next()!!
+            try {
+                replayer.next()
+                fail("expected EOFException")
+            } catch (expected: EOFException) {
+            }
+        }
+    }
+
+    @Test(expected = EOFException::class)
+    fun truncatedHeader_throwsEof() {
+        AdvertReplayer(ByteArrayInputStream(byteArrayOf(0x51, 0x50)))
+    }
+
+    @Test
+    fun wrongMagic_rejected() {
+        val bytes = capture(adverts)
+        bytes[0] = 0x00
+        assertIOException("not an advert capture") { AdvertReplayer(ByteArrayInputStream(bytes)) }
+    }
+
+    @Test
+    fun unsupportedVersion_rejected() {
+        val bytes = capture(adverts)
+        bytes[4] = 99
+        assertIOException("unsupported capture version") { AdvertReplayer(ByteArrayInputStream(bytes)) }
+    }
+
+    @Test
+    fun corruptedLength_rejected() {
+        // header | 时间差 0 | MAC | RSSI | 长度 0xFFFF (varint)
+        val bytes = header() + byteArrayOf(0x00, 1, 2, 3, 4, 5, 6, -50, -1, -1, 0x03)
+        AdvertReplayer(ByteArrayInputStream(bytes)).use { replayer ->
+            assertIOException("corrupted capture") { replayer.next() }
+        }
+    }
+
+    @Test
+    fun corruptedVarint_rejected() {
+        val bytes = header() + ByteArray(10) { -1 }
+        AdvertReplayer(ByteArrayInputStream(bytes)).use { replayer ->
+            assertIOException("varint too long") { replayer.next() }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun invalidAddress_rejected() {
+        AdvertRecorder(ByteArrayOutputStream()).record(0, "AA:BB:CC:DD:EE", 0, null)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun oversizedScanRecord_rejected() {
+        AdvertRecorder(ByteArrayOutputStream()).record(0, "AA:BB:CC:DD:EE:FF", 0, ByteArray(1651))
+    }
+
+    private fun header(): ByteArray = capture(emptyList())
+
+    private fun assertIOException(message: String, block: () -> Unit) {
+        try {
+            block()
+            fail("expected IOException")
+        } catch (e: IOException) {
+            assertTrue(e.message, e.message!!.contains(message))
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.cleargrass.lib.blue.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class RssiTableTest {
+
+    private val table = RssiTable<String>(4)
+
+    /** 几乎不平滑，估计值等于最新读数，便于验证排名 */
+    private fun raw() {
+        table.setFilter(0.001f, 1000f, 3f)
+    }
+
+    @Test
+    fun firstReading_usedAsIs() {
+        val slot = table.allocate("a")
+        assertTrue(table.get(slot).isNaN())
+
+        table.update(slot, -60, 0)
+        assertEquals(-60f, table.get(slot), 0f)
+    }
+
+    @Test
+    fun laterReading_smoothed() {
+        val slot = table.allocate("a")
+        table.update(slot, -60, 0)
+        table.update(slot, -80, 1000)
+
+        // p = 16 + 2，gain = 18 / 34
+        assertEquals(-60f - 20f * 18f / 34f, table.get(slot), 0.01f)
+    }
+
+    @Test
+    fun longerGap_trustsNewReadingMore() {
+        val other = RssiTable<String>(4)
+        val shortGap = table.allocate("a")
+        val longGap = other.allocate("a")
+        table.update(shortGap, -60, 0)
+        table.update(shortGap, -80, 1000)
+        other.update(longGap, -60, 0)
+        other.update(longGap, -80, 10000)
+
+        assertTrue(other.get(longGap) < table.get(shortGap))
+    }
+
+    @Test
+    fun nearest_selectsStrongestInOrder() {
+        raw()
+        val rssi = intArrayOf(-70, -40, -90, -55, -60, -85, -45, -75, -65, -50)
+        rssi.forEachIndexed { i, value -> table.update(table.allocate("d$i"), value, 0) }
+
+        assertEquals(listOf("d1", "d6", "d9"), table.nearest(3, 0))
+        assertEquals(10, table.nearest(20, 0).size)
+        assertTrue(table.nearest(0, 0).isEmpty())
+    }
+
+    @Test
+    fun nearest_skipsStaleUnmeasuredAndReleased() {
+        raw()
+        table.setStaleMillis(1000)
+        val stale = table.allocate("stale")
+        val fresh = table.allocate("fresh")
+        table.allocate("unmeasured")
+        val released = table.allocate("released")
+        table.update(stale, -40, 0)
+        table.update(fresh, -70, 5000)
+        table.update(released, -30, 5000)
+        table.release(released)
+
+        assertEquals(listOf("fresh"), table.nearest(4, 5000))
+    }
+
+    @Test
+    fun releasedSlot_reused() {
+        val first = table.allocate("a")
+        table.update(first, -50, 0)
+        table.release(first)
+
+        val second = table.allocate("b")
+        assertEquals(first, second)
+        assertTrue(table.get(second).isNaN())
+        assertEquals(-1, table.rankOf(second))
+    }
+
+    @Test
+    fun grows_beyondInitialCapacity() {
+        raw()
+        val slots = IntArray(40) { table.allocate("d$it") }
+        slots.forEachIndexed { i, slot -> table.update(slot, -100 + i, 0) }
+
+        assertEquals(listOf("d39", "d38"), table.nearest(2, 0))
+    }
+
+    @Test
+    fun rankOf_followsLastNearest() {
+        raw()
+        val a = table.allocate("a")
+        val b = table.allocate("b")
+        val c = table.allocate("c")
+        table.update(a, -60, 0)
+        table.update(b, -62, 0)
+        table.update(c, -90, 0)
+        table.nearest(2, 0)
+
+        assertEquals(0, table.rankOf(a))
+        assertEquals(1, table.rankOf(b))
+        assertEquals(-1, table.rankOf(c))
+    }
+
+    @Test
+    fun hysteresis_keepsOrderUntilClearlyStronger() {
+        raw()
+        val a = table.allocate("a")
+        val b = table.allocate("b")
+        table.update(a, -60, 0)
+        table.update(b, -62, 0)
+        assertEquals(listOf("a", "b"), table.nearest(2, 0))
+
+        // 超过 a 但不到 3 dB，不交换
+        table.update(a, -60, 1000)
+        table.update(b, -58, 1000)
+        assertEquals(listOf("a", "b"), table.nearest(2, 1000))
+
+        table.update(a, -60, 2000)
+        table.update(b, -56, 2000)
+        assertEquals(listOf("b", "a"), table.nearest(2, 2000))
+    }
+
+    @Test
+    fun hysteresis_newcomerNeedsMarginToEnter() {
+        raw()
+        val a = table.allocate("a")
+        val c = table.allocate("c")
+        table.update(a, -60, 0)
+        assertEquals(listOf("a"), table.nearest(1, 0))
+
+        table.update(a, -60, 1000)
+        table.update(c, -58, 1000)
+        assertEquals(listOf("a"), table.nearest(1, 1000))
+
+        table.update(a, -60, 2000)
+        table.update(c, -56, 2000)
+        assertEquals(listOf("c"), table.nearest(1, 2000))
+        assertEquals(-1, table.rankOf(a))
+    }
+}
@@ -0,0 +1,160 @@
+package com.cleargrass.lib.blue.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * 使用 10ms tick、8 个桶的实例（一圈 80ms）。到期时间按 tick 对齐，可能比 delay 早不到一个 tick，断言留有余量
+ */
+class TimingWheelTest {
+
+    private val wheel = TimingWheel(10, 8, "timing-wheel-test")
+    private val startNanos = System.nanoTime()
+    private val expired = CopyOnWriteArrayList<String>()
+
+    private inner class NamedTask(val name: String, private val latch: CountDownLatch? = null) : TimingWheel.Task() {
+        @Volatile
+        var expiredAtMillis = -1L
+        @Volatile
+        var count = 0
+
+        override fun onExpired() {
+            expiredAtMillis = (System.nanoTime() - startNanos) / 1_000_000
+            count++
+            expired.add(name)
+            latch?.countDown()
+        }
+    }
+
+    @Test
+    fun expires_afterDelay() {
+        val latch = CountDownLatch(1)
+        val task = NamedTask("task", latch)
+        wheel.schedule(task, 30)
+        assertTrue(task.isScheduled)
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS))
+        assertTrue(task.expiredAtMillis >= 20)
+        assertFalse(task.isScheduled)
+        assertEquals(1, task.count)
+    }
+
+    @Test
+    fun delayLongerThanOneRound_notExpiredEarly() {
+        val latch = CountDownLatch(1)
+        val task = NamedTask("task", latch)
+        wheel.schedule(task, 200)
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS))
+        assertTrue("expired at ${task.expiredAtMillis}", task.expiredAtMillis >= 190)
+    }
+
+    @Test
+    fun cancel_preventsExpiry() {
+        val task = NamedTask("task")
+        wheel.schedule(task, 30)
+
+        assertTrue(wheel.cancel(task))
+        assertFalse(task.isScheduled)
+        assertFalse(wheel.cancel(task))
+        Thread.sleep(150)
+        assertEquals(0, task.count)
+    }
+
+    @Test
+    fun cancel_neverScheduled() {
+        assertFalse(wheel.cancel(NamedTask("task")))
+    }
+
+    @Test
+    fun reschedule_replacesDeadline() {
+        val latch = CountDownLatch(1)
+        val task = NamedTask("task", latch)
+        wheel.schedule(task, 30)
+        wheel.schedule(task, 250)
+
+        Thread.sleep(120)
+        assertEquals(0, task.count)
+        assertTrue(latch.await(2, TimeUnit.SECONDS))
+        assertTrue("expired at ${task.expiredAtMillis}", task.expiredAtMillis >= 240)
+        Thread.sleep(100)
+        assertEquals(1, task.count)
+    }
+
+    @Test
+    fun earlierTask_wakesSleepingWorker() {
+        val latch = CountDownLatch(2)
+        val late = NamedTask("late", latch)
+        val early = NamedTask("early", latch)
+        wheel.schedule(late, 400)
+        // worker 正在等待 late 时加入更早的任务
+        Thread.sleep(30)
+        wheel.schedule(early, 20)
+
+        assertTrue(latch.await(3, TimeUnit.SECONDS))
+        assertEquals(listOf("early", "late"), expired)
+        assertTrue("expired at ${early.expiredAtMillis}", early.expiredAtMillis < 300)
+    }
+
+    @Test
+    fun cancelEarliest_laterTaskStillExpires() {
+        val latch = CountDownLatch(1)
+        val early = NamedTask("early")
+        val late = NamedTask("late", latch)
+        wheel.schedule(early, 30)
+        wheel.schedule(late, 120)
+        wheel.cancel(early)
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS))
+        assertEquals(listOf("late"), expired)
+    }
+
+    @Test
+    fun manyTasks_allExpireOnce() {
+        val latch = CountDownLatch(50)
+        val tasks = List(50) { NamedTask("task$it", latch) }
+        tasks.forEachIndexed { i, task -> wheel.schedule(task, 10L + i * 7) }
+
+        assertTrue(latch.await(3, TimeUnit.SECONDS))
+        Thread.sleep(50)
+        tasks.forEach { assertEquals(it.name, 1, it.count) }
+    }
+
+    @Test
+    fun idleWorkerWakesAfterDeadlineTick_stillExpires() {
+        // 1ms tick、一圈约 1s：漏掉到期的桶时要等一整圈才会执行
+        val start = System.nanoTime()
+        val fine = TimingWheel(1, 1024, "timing-wheel-test-fine")
+        repeat(50) {
+            val latch = CountDownLatch(1)
+            val task = NamedTask("task$it", latch)
+            // 在 tick 快结束时加入下一个 tick 到期的任务，空闲的 worker 被唤醒时通常已进入到期 tick
+            while ((System.nanoTime() - start) % 1_000_000 < 990_000) {
+            }
+            fine.schedule(task, 1)
+            assertTrue("task$it expired late", latch.await(100, TimeUnit.MILLISECONDS))
+        }
+    }
+
+    @Test
+    fun rescheduleFromCallback() {
+        val latch = CountDownLatch(3)
+        val task = object : TimingWheel.Task() {
+            override fun onExpired() {
+                latch.countDown()
+                if (latch.count > 0) {
+                    wheel.schedule(this, 20)
+                }
+            }
+        }
+        wheel.schedule(task, 20)
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS))
+        assertFalse(task.isScheduled)
+    }
+}
@@ -0,0 +1,175 @@
+package com.cleargrass.lib.blue.core
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class WriteCursorTest {
+
+    private val cursor = WriteCursor()
+
+    private fun data(size: Int) = ByteArray(size) { it.toByte() }
+
+    /** 依次取出所有分包（复制，因为缓冲区会被下一包复用） */
+    private fun drain(): List<ByteArray> {
+        val chunks = ArrayList<ByteArray>()
+        while (cursor.hasRemaining()) {
+            val chunk = cursor.current()
+            assertEquals(cursor.currentLength(), chunk.size)
+            chunks.add(chunk.copyOf())
+            cursor.advance()
+        }
+        return chunks
+    }
+
+    @Test
+    fun splitsAtChunkBoundaries() {
+        val payload = data(45)
+        cursor.setChunkSize(20)
+        cursor.start(payload)
+        assertEquals(3, cursor.remainingChunks())
+
+        val chunks = drain()
+        assertEquals(listOf(20, 20, 5), chunks.map { it.size })
+        assertArrayEquals(payload, chunks.reduce { a, b -> a + b })
+        assertEquals(0, cursor.remainingChunks())
+        assertNull(cursor.current())
+    }
+
+    @Test
+    fun exactMultiple_hasNoTail() {
+        cursor.setChunkSize(20)
+        cursor.start(data(40))
+        assertEquals(2, cursor.remainingChunks())
+        assertEquals(listOf(20, 20), drain().map { it.size })
+    }
+
+    @Test
+    fun remainingChunks_countsDown() {
+        cursor.setChunkSize(10)
+        cursor.start(data(25))
+        val remaining = ArrayList<Int>()
+        while (cursor.hasRemaining()) {
+            remaining.add(cursor.remainingChunks())
+            cursor.advance()
+        }
+        assertEquals(listOf(3, 2, 1), remaining)
+    }
+
+    @Test
+    fun singleChunk_usesOriginalArray() {
+        val small = data(5)
+        cursor.setChunkSize(20)
+        cursor.start(small)
+        assertSame(small, cursor.current())
+
+        val exact = data(20)
+        cursor.start(exact)
+        assertSame(exact, cursor.current())
+        assertEquals(1, cursor.remainingChunks())
+    }
+
+    @Test
+    fun zeroLengthPayload_isOneEmptyChunk() {
+        val empty = ByteArray(0)
+        cursor.setChunkSize(20)
+        cursor.start(empty)
+
+        assertTrue(cursor.hasRemaining())
+        assertEquals(1, cursor.remainingChunks())
+        assertEquals(0, cursor.currentLength())
+        assertSame(empty, cursor.current())
+
+        cursor.advance()
+        assertFalse(cursor.hasRemaining())
+        assertEquals(0, cursor.currentLength())
+    }
+
+    @Test
+    fun current_stableUntilAdvance() {
+        cursor.setChunkSize(4)
+        cursor.start(data(10))
+        val first = cursor.current()
+        assertSame(first, cursor.current())
+        assertArrayEquals(byteArrayOf(0, 1, 2, 3), first)
+    }
+
+    @Test
+    fun fullChunks_shareOneBuffer() {
+        cursor.setChunkSize(4)
+        cursor.start(data(12))
+        val first = cursor.current()
+        cursor.advance()
+        val second = cursor.current()
+
+        assertSame(first, second)
+        assertArrayEquals(byteArrayOf(4, 5, 6, 7), second)
+    }
+
+    @Test
+    fun tailBuffer_reusedForSameLength() {
+        cursor.setChunkSize(4)
+        cursor.start(data(6))
+        cursor.advance()
+        val tail = cursor.current()
+        assertEquals(2, tail.size)
+
+        cursor.start(ByteArray(10) { (it + 100).toByte() })
+        cursor.advance()
+        cursor.advance()
+        val sameLength = cursor.current()
+        assertSame(tail, sameLength)
+        assertArrayEquals(byteArrayOf(108, 109), sameLength)
+
+        cursor.start(data(7))
+        cursor.advance()
+        assertNotSame(tail, cursor.current())
+        assertEquals(3, cursor.currentLength())
+    }
+
+    @Test
+    fun chunkSizeChange_appliesToNextPayload() {
+        cursor.setChunkSize(4)
+        cursor.start(data(8))
+        assertEquals(4, cursor.current().size)
+
+        cursor.setChunkSize(6)
+        cursor.start(data(8))
+        assertEquals(listOf(6, 2), drain().map { it.size })
+    }
+
+    @Test
+    fun start_replacesUnfinishedPayload() {
+        cursor.setChunkSize(4)
+        cursor.start(data(12))
+        cursor.advance()
+
+        val next = ByteArray(3) { 9.toByte() }
+        cursor.start(next)
+        assertEquals(1, cursor.remainingChunks())
+        assertSame(next, cursor.current())
+    }
+
+    @Test
+    fun clear_dropsPayload() {
+        cursor.setChunkSize(4)
+        cursor.start(data(12))
+        cursor.clear()
+
+        assertFalse(cursor.hasRemaining())
+        assertEquals(0, cursor.remainingChunks())
+        assertNull(cursor.current())
+        cursor.advance()
+        assertFalse(cursor.hasRemaining())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun invalidChunkSize_rejected() {
+        cursor.setChunkSize(0)
+    }
+}
@@ -0,0 +1,171 @@
+package com.cleargrass.lib.blue.protocal
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+
+class QpCodecTest {
+
+    private val decoder = QpDecoder()
+
+    @Test
+    fun encode_tokenCommands() {
+        assertArrayEquals(bytes(0x04, 0x01, 'a'.code, 'b'.code, 'c'.code), QpCommand.Bind("abc").encode())
+        assertArrayEquals(bytes(0x03, 0x02, 0x10, 0x20), QpCommand.Verify(bytes(0x10, 0x20)).encode())
+    }
+
+    @Test
+    fun encode_simpleCommands() {
+        assertArrayEquals(bytes(0x01, 0x0D), QpCommand.EnableDataChannel.encode())
+        assertArrayEquals(bytes(0x01, 0x07), QpCommand.WifiList.encode())
+        assertArrayEquals(bytes(0x01, 0x1E), QpCommand.ClientId.encode())
+    }
+
+    @Test
+    fun encode_connectWifi() {
+        val command = QpCommand.ConnectWifi("ap", "pw")
+        assertEquals(11, command.frameLength)
+        assertArrayEquals(byteArrayOf(0x0A, 0x01) + "\"ap\",\"pw\"".toByteArray(), command.encode())
+    }
+
+    @Test
+    fun encodeTo_appendsFrames() {
+        val buffer = ByteBuffer.allocate(16)
+        buffer.put(0x7F.toByte())
+        assertEquals(2, QpCommand.EnableDataChannel.encodeTo(buffer))
+        assertEquals(4, QpCommand.Bind(bytes(0x31, 0x32)).encodeTo(buffer))
+        assertEquals(7, buffer.position())
+        assertArrayEquals(bytes(0x7F, 0x01, 0x0D, 0x03, 0x01, 0x31, 0x32), buffer.array().copyOf(7))
+    }
+
+    @Test
+    fun encodeTo_bufferTooSmall_writesNothing() {
+        val buffer = ByteBuffer.allocate(3)
+        try {
+            QpCommand.Bind("abc").encodeTo(buffer)
+            throw AssertionError("expected BufferOverflowException")
+        } catch (expected: BufferOverflowException) {
+        }
+        assertEquals(0, buffer.position())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun encode_payloadTooLong() {
+        QpCommand.Bind(ByteArray(QpCodec.MAX_PAYLOAD_LENGTH + 1)).encode()
+    }
+
+    @Test
+    fun encode_maxPayload() {
+        val frame = QpCommand.Bind(ByteArray(QpCodec.MAX_PAYLOAD_LENGTH)).encode()
+        assertEquals(256, frame.size)
+        assertEquals(0xFF, frame[0].toInt() and 0xFF)
+    }
+
+    @Test
+    fun roundTrip_commandFrames() {
+        val token = "token-1234".toByteArray()
+        val bind = decoder.decode(QpCommand.Bind(token).encode())!!
+        assertEquals(QpCodec.TYPE_BIND, bind.type)
+        assertArrayEquals(token, bind.copyData())
+
+        val enable = decoder.decode(QpCommand.EnableDataChannel.encode())!!
+        assertTrue(enable is QpMessage.Raw)
+        assertEquals(QpCodec.TYPE_ENABLE_DATA_CHANNEL, enable.type)
+        assertEquals(0, enable.dataLength)
+
+        val wifi = decoder.decode(QpCommand.ConnectWifi("ap", "pw").encode())!!
+        assertEquals("\"ap\",\"pw\"", wifi.text())
+    }
+
+    @Test
+    fun decode_statusSuccess() {
+        val message = decoder.decode(bytes(0x04, 0xFF, 0x01, 0x00, 0x00))
+        assertSame(decoder.status, message)
+        assertEquals(QpCodec.TYPE_BIND, decoder.status.type)
+        assertEquals(0, decoder.status.status)
+        assertTrue(decoder.status.isSuccess)
+    }
+
+    @Test
+    fun decode_statusFailure_littleEndian() {
+        decoder.decode(bytes(0x04, 0xFF, 0x02, 0x01, 0x00))
+        assertEquals(QpCodec.TYPE_VERIFY, decoder.status.type)
+        assertEquals(1, decoder.status.status)
+        assertFalse(decoder.status.isSuccess)
+
+        decoder.decode(bytes(0x06, 0xFF, 0x02, 0x01, 0x02, 0x03, 0x04))
+        assertEquals(0x04030201, decoder.status.status)
+    }
+
+    @Test
+    fun decode_statusWithoutStatusBytes_isSuccess() {
+        decoder.decode(bytes(0x02, 0xFF, 0x0D))
+        assertEquals(QpCodec.TYPE_ENABLE_DATA_CHANNEL, decoder.status.type)
+        assertEquals(0, decoder.status.dataLength)
+        assertTrue(decoder.status.isSuccess)
+    }
+
+    @Test
+    fun decode_incompleteFrames() {
+        assertNull(decoder.decode(bytes()))
+        assertNull(decoder.decode(bytes(0x04)))
+        assertNull(decoder.decode(bytes(0x04, 0xFF)))
+    }
+
+    @Test
+    fun decode_assembledResponses() {
+        val wifiList = decoder.decode(bytes(0xFF, 0x07) + "\"ap\",4,-60,".toByteArray())
+        assertTrue(wifiList is QpMessage.WifiList)
+        assertEquals("\"ap\",4,-60,", wifiList!!.text())
+        assertTrue(decoder.decode(bytes(0xFF, 0x04, 0x41)) is QpMessage.WifiList)
+
+        val clientId = decoder.decode(bytes(0xFF, 0x1E) + "cid".toByteArray())
+        assertSame(decoder.clientId, clientId)
+        assertEquals("cid", clientId!!.text())
+    }
+
+    @Test
+    fun decode_wifiConnectResult() {
+        assertTrue((decoder.decode(bytes(0x02, 0x01, 0x01)) as QpMessage.WifiConnectResult).isConnected)
+        assertFalse((decoder.decode(bytes(0x02, 0x01, 0x00)) as QpMessage.WifiConnectResult).isConnected)
+        assertFalse((decoder.decode(bytes(0x01, 0x01)) as QpMessage.WifiConnectResult).isConnected)
+    }
+
+    @Test
+    fun decode_offsetAndLength_referencesOriginalArray() {
+        val bytes = bytes(0x00, 0x00, 0x03, 0x55, 0x61, 0x62, 0x00)
+        val message = decoder.decode(bytes, 2, 4)!!
+        assertSame(decoder.raw, message)
+        assertSame(bytes, message.bytes)
+        assertEquals(4, message.dataOffset)
+        assertEquals(2, message.dataLength)
+        assertEquals(0x62.toByte(), message.dataAt(1))
+    }
+
+    @Test(expected = IndexOutOfBoundsException::class)
+    fun dataAt_outOfRange() {
+        decoder.decode(bytes(0x03, 0x55, 0x61, 0x62))!!.dataAt(2)
+    }
+
+    @Test
+    fun decode_byteBuffer() {
+        val frame = bytes(0x04, 0xFF, 0x02, 0x01, 0x00)
+        val heap = ByteBuffer.allocate(8)
+        heap.put(0.toByte()).put(frame).flip().position(1)
+        assertEquals(1, (decoder.decode(heap) as QpMessage.Status).status)
+        assertEquals(1, heap.position())
+
+        val direct = ByteBuffer.allocateDirect(8)
+        direct.put(frame).flip()
+        assertEquals(1, (decoder.decode(direct) as QpMessage.Status).status)
+        assertEquals(0, direct.position())
+    }
+
+    private fun bytes(vararg values: Int): ByteArray = ByteArray(values.size) { values[it].toByte() }
+}
@@ -48,10 +48,14 @@ import com.cleargrass.demo.bluesparrow.ui.theme.QpDemoBlueSparrowTheme
 import com.cleargrass.lib.blue.BlueManager
 import com.cleargrass.lib.blue.DebugCommand
 import com.cleargrass.lib.blue.QingpingDevice
+import com.cleargrass.lib.blue.QingpingException
 import com.cleargrass.lib.blue.QpUtils
-import com.cleargrass.lib.blue.core.Peripheral
-import com.cleargrass.lib.blue.core.Peripheral.OnConnectionStatusCallback
+import com.cleargrass.lib.blue.awaitDisconnect
+import com.cleargrass.lib.blue.connectAndVerify
 import com.cleargrass.lib.blue.data.*
+import com.cleargrass.lib.blue.protocal.QpCommand
+import com.cleargrass.lib.blue.protocal.QpDecoder
+import com.cleargrass.lib.blue.protocal.QpMessage
 import com.cleargrass.lib.ti.ota.TiOtaCallback
 import com.cleargrass.lib.ti.ota.UpdateState
 import com.telink.ota.ble.GattConnection
@@ -61,6 +65,7 @@ import com.telink.ota.ble.OtaController.OTA_STATE_PROGRESS
 import java.io.File
 import java.io.FileOutputStream
 import java.lang.Integer.max
+import kotlinx.coroutines.launch
 
 
 class DeviceActivity : ComponentActivity() {
@@ -109,6 +114,9 @@ fun DeviceDetail(d: ScanResultDevice) {
         mutableStateOf(listOf<DebugCommand>())
     }
 
+    val scope = rememberCoroutineScope()
+    val commandDecoder = remember { QpDecoder() }
+
     var otaHelper: QpOtaHelper = remember {  QpOtaHelper(context = context)  }
     LaunchedEffect(key1 = device) {
         device?.debugCommandListener = { command ->
@@ -137,61 +145,29 @@ fun DeviceDetail(d: ScanResultDevice) {
                                     QpUtils.wrapProtocol(if (bind) 1 else 2, token.toByteArray())
                                 )
                                 toCommonCharacteristic.value = true
-                                val connectionStatusCallback = object: OnConnectionStatusCallback {
-                                    override fun onPeripheralConnected(peripheral: Peripheral?) {
+                                if (device == null) {
+                                    isLoading = false
+                                } else scope.launch {
+                                    val action = if (bind) "[Bind]" else "[Verify]"
+                                    try {
+                                        device.connectAndVerify(context, token, bind)
                                         isConnected = true
-                                        toCommonCharacteristic.value = true
-                                        debugCommands = debugCommands + DebugCommand("[Connected]", d.macAddress, byteArrayOf())
-                                    }
-
-                                    override fun onPeripheralDisconnected(
-                                        peripheral: Peripheral?,
-                                        error: Exception?
-                                    ) {
+                                        isLoading = false
+                                        debugCommands = debugCommands + DebugCommand("$action Result", "SUCCESS", byteArrayOf())
+                                        debugCommands = debugCommands + DebugCommand("[Timeline]", device.lastConnectTimeline.toString(), byteArrayOf())
+                                        toCommonCharacteristic.value = device.productType != 0x0d.toByte()
+                                        // 离开页面时 scope 取消，连接随之断开
+                                        val error = device.awaitDisconnect()
+                                        debugCommands = debugCommands + DebugCommand("[Disconnected]", error?.localizedMessage.toString(), byteArrayOf())
+                                    } catch (e: QingpingException) {
+                                        debugCommands = debugCommands + DebugCommand("$action Result", "FAILED ${e.localizedMessage}", byteArrayOf())
+                                    } catch (e: IllegalArgumentException) {
+                                        debugCommands = debugCommands + DebugCommand("[Error]", e.localizedMessage, byteArrayOf())
+                                    } finally {
                                         isLoading = false
                                         isConnected = false
                                         toCommonCharacteristic.value = true
-                                        debugCommands = debugCommands + DebugCommand("[Disconnected]", error?.localizedMessage.toString(), byteArrayOf())
-                                    }
-                                }
-                                try {
-                                    if (bind) {
-                                        device?.connectBind(
-                                            context = context,
-                                            tokenString = token,
-                                            statusChange = connectionStatusCallback
-                                        ) { bindResult ->
-                                            Log.e("blue", "connectBind: $bindResult")
-                                            debugCommands = debugCommands + DebugCommand(
-                                                "[Bind] Result",
-                                                if (bindResult) "SUCCESS" else "FAILED",
-                                                byteArrayOf()
-                                            )
-                                            isLoading = false
-                                            toCommonCharacteristic.value = !(bindResult && device.productType == 0x0d.toByte())
-                                        }
-                                    } else {
-                                        device?.connectVerify(
-                                            context = context,
-                                            tokenString = token,
-                                            statusChange = connectionStatusCallback
-                                        ) { verifyResult ->
-                                            Log.e("blue", "connectVerify: $verifyResult")
-                                            debugCommands = debugCommands + DebugCommand(
-                                                "[Verify] Result",
-                                                if (verifyResult) "SUCCESS" else "FAILED",
-                                                byteArrayOf()
-                                            )
-                                            isLoading = false
-                                            toCommonCharacteristic.value = !(verifyResult && device.productType == 0x0d.toByte())
-                                        }
                                     }
-                                } catch (e: Exception) {
-                                    debugCommands = debugCommands + DebugCommand(
-                                        "[Error]",
-                                        e.localizedMessage,
-                                        byteArrayOf()
-                                    )
                                 }
                             }
                             Log.e("blue", "正在连接...")
@@ -337,25 +313,21 @@ fun DeviceDetail(d: ScanResultDevice) {
                     device.writeCommand(command = QpUtils.hexToBytes(it)) { it ->
                         Log.d("blue", "ble response  ${it.display()}")
                         //这里把比较特殊的协议回应解析后显示到界面上中方便查看。
-                        // WIFI列表
-                        if (it[0].isFF() && it[1] == 0x7.toByte()) {
-                            // 这是WIFI 列表
-                            val data = it.slice(2 until it.size)
-                            debugCommands += DebugCommand( "parse", "WIFI列表", it)
-                        }
-
-                        // 连接WIFI结果
-                        if (it[1] == 0x01.toByte()) {
-                            debugCommands += DebugCommand("parse", if (it[2] == 1.toByte()) "连接WIFI成功" else "连接WIFI失败", it)
+                        when (val message = commandDecoder.decode(it)) {
+                            // WIFI列表
+                            is QpMessage.WifiList -> debugCommands += DebugCommand("parse", "WIFI列表 ${message.text()}", it)
+                            // 连接WIFI结果
+                            is QpMessage.WifiConnectResult -> debugCommands += DebugCommand("parse", if (message.isConnected) "连接WIFI成功" else "连接WIFI失败", it)
+                            else -> {}
                         }
                     }
                 } else {
                     device.writeInternalCommand(command = QpUtils.hexToBytes(it)) {
                         Log.d("blue", "ble response ${it.display()}")
 
-                        if (it[0].isFF() && it[1] == 0x1e.toByte()) {
-                            // 这是WIFI 列表
-                            debugCommands += DebugCommand("parse", "0002; client_id", it)
+                        val message = commandDecoder.decode(it)
+                        if (message is QpMessage.ClientId) {
+                            debugCommands += DebugCommand("parse", "0002; client_id ${message.text()}", it)
                         }
                     }
                 }
@@ -372,10 +344,8 @@ fun DeviceDetail(d: ScanResultDevice) {
                 onConnect = { wifiName, password ->
                     Log.d("blue", "Connect wifi $wifiName $password")
                     // 这里创建 连接WIFI的命令，数据主体是： `"${wifi}","${password}"`
-                    var command = "\"${wifiName}\",\"${password}\""
-
                     showInputWifi?.invoke(
-                        QpUtils.wrapProtocol(1, QpUtils.stringToBytes(command)).display()
+                        QpCommand.ConnectWifi(wifiName, password).encode().display()
                     )
                     showInputWifi = null
                 },
@@ -128,13 +128,7 @@ fun MainPage() {
                         BlueManager.scan(object :DeviceScanCallback() {
                             override fun onDeviceInRange(qingpingDevice: QingpingDevice) {
                                 Log.d("blue", "onDeviceInRange: $qingpingDevice")
-                                ScanResultDevice(qingpingDevice).let {
-                                    scanDevice.remove(it)
-                                    scanDevice.add(it)
-                                    scanDevice.sortWith { o1, o2 ->
-                                        o2?.rssi?.compareTo(o1?.rssi ?: 0) ?: 0
-                                    }
-                                }
+                                updateDeviceList(scanDevice, ScanResultDevice(qingpingDevice))
                             }
 
                             override fun onScanStart() {
@@ -224,6 +218,32 @@ fun MainPage() {
         }
     }
 }
+// 列表按平滑后的 RSSI 排列，只有超过相邻设备 RSSI_HYSTERESIS 时才移动位置，不对整个列表重新排序
+private const val RSSI_HYSTERESIS = 3
+
+private fun updateDeviceList(list: MutableList<ScanResultDevice>, device: ScanResultDevice) {
+    var index = list.indexOf(device)
+    if (index < 0) {
+        index = list.size
+        list.add(device)
+    } else {
+        list[index] = device
+    }
+    var target = index
+    while (target > 0 && device.rssi > list[target - 1].rssi + RSSI_HYSTERESIS) {
+        target--
+    }
+    if (target == index) {
+        while (target < list.size - 1 && list[target + 1].rssi > device.rssi + RSSI_HYSTERESIS) {
+            target++
+        }
+    }
+    if (target != index) {
+        list.removeAt(index)
+        list.add(target, device)
+    }
+}
+
 @Composable
 fun Greeting(name: String, modifier: Modifier = Modifier) {
     Text(
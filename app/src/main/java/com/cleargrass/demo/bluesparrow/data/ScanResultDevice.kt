@@ -26,7 +26,7 @@ data class ScanResultDevice(
     )
 
     constructor(qingpingDevice: QingpingDevice) : this(
-            qingpingDevice.name, qingpingDevice.rssi, ScanResultParsed(qingpingDevice.scanData)
+            qingpingDevice.name, qingpingDevice.smoothedRssi, ScanResultParsed(qingpingDevice.scanData)
     )
 
     override fun equals(other: Any?): Boolean {